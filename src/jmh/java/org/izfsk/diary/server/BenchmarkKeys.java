@@ -0,0 +1,48 @@
+package org.izfsk.diary.server;
+
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.util.io.Streams;
+import org.pgpainless.PGPainless;
+import org.pgpainless.algorithm.DocumentSignatureType;
+import org.pgpainless.encryption_signing.ProducerOptions;
+import org.pgpainless.encryption_signing.SigningOptions;
+import org.pgpainless.key.protection.SecretKeyRingProtector;
+import org.pgpainless.util.ArmorUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Throwaway key for benchmarks, so they run offline without the owner's private key.
+ */
+public final class BenchmarkKeys {
+	private static PGPSecretKeyRing secretKeyRing = null;
+
+	/**
+	 * Generate a key once per JVM and make it the server's target key through <code>-Ddiary.publicKey</code>.
+	 * Must run before <code>Configure</code> is loaded.
+	 *
+	 * @return the secret key
+	 */
+	public static synchronized PGPSecretKeyRing install() throws Exception {
+		if (secretKeyRing == null) {
+			secretKeyRing = PGPainless.generateKeyRing().modernKeyRing("benchmark <benchmark@localhost>", (String) null);
+			System.setProperty("diary.publicKey", PGPainless.asciiArmor(PGPainless.extractCertificate(secretKeyRing)));
+		}
+		return secretKeyRing;
+	}
+
+	/**
+	 * Sign like the frontend does : a detached, ascii-armored text signature.
+	 */
+	public static String signDetached(PGPSecretKeyRing secretKeyRing, byte[] message) throws Exception {
+		var signingStream = PGPainless.encryptAndOrSign()
+				.onOutputStream(new ByteArrayOutputStream())
+				.withOptions(ProducerOptions.sign(SigningOptions.get().addDetachedSignature(
+						SecretKeyRingProtector.unprotectedKeys(), secretKeyRing, DocumentSignatureType.CANONICAL_TEXT_DOCUMENT)));
+		Streams.pipeAll(new ByteArrayInputStream(message), signingStream);
+		signingStream.close();
+		var signature = signingStream.getResult().getDetachedSignatures().values().iterator().next().iterator().next();
+		return ArmorUtils.toAsciiArmoredString(signature);
+	}
+}
@@ -0,0 +1,243 @@
+package org.izfsk.diary.server;
+
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.izfsk.diary.server.utils.StringUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compare the pooled and the virtual thread execution mode under many slow clients.
+ * <p>
+ * For each mode a server is booted in its own JVM on a temp <code>DiaryRootDir</code> with a throwaway key.
+ * Slow clients open <code>POST /save</code> uploads and trickle the body, each one pins a request thread
+ * in pooled mode. Meanwhile probe clients read today's entry and record the latency.
+ * <p>
+ * Usage : <code>mvn -P jmh test-compile exec:exec -Dbench.main=org.izfsk.diary.server.ExecutionModeLoad
+ * -Djmh.args="[slowClients] [seconds]"</code>. The virtual mode needs the build to run on JDK 21+.
+ */
+public final class ExecutionModeLoad {
+	private static final int port = 8080;
+	private static final int probeClients = 4;
+	private static final Duration probeTimeout = Duration.ofSeconds(5);
+	private static final Duration trickleInterval = Duration.ofMillis(500);
+
+	private record Result(String mode, int slowClients, int concurrentUploads, long[] latencies, int timeouts, int errors) {
+		long percentile(double p) {
+			if (latencies.length == 0) {
+				return -1;
+			}
+			return latencies[Math.min(latencies.length - 1, (int) Math.ceil(p * latencies.length) - 1)];
+		}
+
+		String toJson() {
+			return "{\"mode\":\"" + mode + "\",\"slowClients\":" + slowClients +
+					",\"concurrentUploads\":" + concurrentUploads + ",\"requests\":" + latencies.length +
+					",\"p50Micros\":" + percentile(0.50) + ",\"p99Micros\":" + percentile(0.99) +
+					",\"maxMicros\":" + percentile(1.0) + ",\"timeouts\":" + timeouts + ",\"errors\":" + errors + "}";
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		var slowClients = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+		var seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+		var results = new ArrayList<Result>();
+		results.add(run("pooled", slowClients, seconds));
+		if (Runtime.version().feature() >= 21) {
+			results.add(run("virtual", slowClients, seconds));
+		} else {
+			System.out.println("Virtual mode skipped : Java " + Runtime.version() + " has no virtual threads.");
+		}
+
+		System.out.printf("%-8s %12s %10s %10s %10s %10s %10s %8s%n",
+				"mode", "slowClients", "uploads", "requests", "p50(us)", "p99(us)", "max(us)", "timeouts");
+		for (var result : results) {
+			System.out.printf("%-8s %12d %10d %10d %10d %10d %10d %8d%n",
+					result.mode(), result.slowClients(), result.concurrentUploads(), result.latencies().length,
+					result.percentile(0.50), result.percentile(0.99), result.percentile(1.0), result.timeouts());
+		}
+		var json = "[" + String.join(",", results.stream().map(Result::toJson).toList()) + "]\n";
+		Files.createDirectories(Path.of("target"));
+		Files.writeString(Path.of("target", "execution-mode-load.json"), json);
+	}
+
+	private static Result run(String mode, int slowClients, int seconds) throws Exception {
+		var secretKeyRing = BenchmarkKeys.install();
+		var rootDir = Files.createTempDirectory("diary-load");
+		var assetsDir = Files.createTempDirectory("diary-assets");
+		var today = LocalDate.now();
+		var entryPath = rootDir.resolve(StringUtils.formatDate(today)).resolve("diary.asc");
+		Files.createDirectories(entryPath.getParent());
+		Files.writeString(entryPath, "-----BEGIN PGP MESSAGE-----\n" + "A".repeat(2048) + "\n-----END PGP MESSAGE-----\n");
+
+		var server = new ProcessBuilder(
+				Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+				"-Ddiary.publicKey=" + System.getProperty("diary.publicKey"),
+				"-Ddiary.rootDir=" + rootDir,
+				"-Ddiary.assetsDir=" + assetsDir,
+				"-Ddiary.virtualThreads=" + mode.equals("virtual"),
+				"-Ddiary.rate.enabled=false",
+				"-cp", System.getProperty("java.class.path"),
+				Main.class.getName())
+				.redirectErrorStream(true)
+				.redirectOutput(Path.of("target", "execution-mode-load-" + mode + ".log").toFile())
+				.start();
+		var sockets = Collections.synchronizedList(new ArrayList<Socket>());
+		var trickler = Executors.newSingleThreadScheduledExecutor();
+		try {
+			var baseUri = "http://127.0.0.1:" + port;
+			var httpClient = HttpClient.newBuilder()
+					.version(HttpClient.Version.HTTP_1_1)
+					.connectTimeout(probeTimeout)
+					.build();
+			awaitServer(httpClient, baseUri);
+			var token = authenticate(httpClient, baseUri, secretKeyRing);
+
+			// slow uploads, each one announces a body that will not be complete before the run ends
+			var bodyPrefix = ("--diaryload\r\nContent-Disposition: form-data; name=\"data\"\r\n\r\n")
+					.getBytes(StandardCharsets.US_ASCII);
+			for (int i = 0; i < slowClients; i++) {
+				try {
+					var socket = new Socket("127.0.0.1", port);
+					var outputStream = socket.getOutputStream();
+					outputStream.write(("POST /save HTTP/1.1\r\nHost: 127.0.0.1\r\nx-token: " + token +
+							"\r\nContent-Type: multipart/form-data; boundary=diaryload\r\nContent-Length: 1048576\r\n\r\n")
+							.getBytes(StandardCharsets.US_ASCII));
+					outputStream.write(bodyPrefix);
+					outputStream.flush();
+					sockets.add(socket);
+				} catch (IOException e) {
+					break;
+				}
+			}
+			trickler.scheduleAtFixedRate(() -> {
+				synchronized (sockets) {
+					for (var iterator = sockets.iterator(); iterator.hasNext(); ) {
+						try {
+							OutputStream outputStream = iterator.next().getOutputStream();
+							outputStream.write('A');
+							outputStream.flush();
+						} catch (IOException e) {
+							iterator.remove();
+						}
+					}
+				}
+			}, trickleInterval.toMillis(), trickleInterval.toMillis(), TimeUnit.MILLISECONDS);
+			// let the server dispatch the uploads before probing
+			Thread.sleep(2000);
+			var concurrentUploads = sockets.size();
+
+			// probes
+			var probeRequest = HttpRequest.newBuilder(URI.create(baseUri + "/data/" + StringUtils.formatDate(today)))
+					.header("x-token", token)
+					.timeout(probeTimeout)
+					.build();
+			var latencies = Collections.synchronizedList(new ArrayList<Long>());
+			var timeouts = new AtomicInteger();
+			var errors = new AtomicInteger();
+			var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+			var probes = Executors.newFixedThreadPool(probeClients);
+			for (int i = 0; i < probeClients; i++) {
+				probes.execute(() -> {
+					while (System.nanoTime() < deadline) {
+						var start = System.nanoTime();
+						try {
+							var response = httpClient.send(probeRequest, HttpResponse.BodyHandlers.discarding());
+							if (response.statusCode() == 200) {
+								latencies.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+							} else {
+								errors.incrementAndGet();
+							}
+						} catch (HttpTimeoutException e) {
+							timeouts.incrementAndGet();
+						} catch (IOException | InterruptedException e) {
+							errors.incrementAndGet();
+						}
+					}
+				});
+			}
+			probes.shutdown();
+			probes.awaitTermination(seconds + probeTimeout.toSeconds() + 5, TimeUnit.SECONDS);
+
+			var sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+			Arrays.sort(sorted);
+			return new Result(mode, slowClients, concurrentUploads, sorted, timeouts.get(), errors.get());
+		} finally {
+			trickler.shutdownNow();
+			synchronized (sockets) {
+				for (var socket : sockets) {
+					socket.close();
+				}
+			}
+			server.destroy();
+			server.waitFor();
+			deleteRecursively(rootDir);
+			deleteRecursively(assetsDir);
+		}
+	}
+
+	private static void awaitServer(HttpClient httpClient, String baseUri) throws Exception {
+		for (int i = 0; i < 60; i++) {
+			try {
+				httpClient.send(HttpRequest.newBuilder(URI.create(baseUri + "/index/2000")).build(),
+						HttpResponse.BodyHandlers.discarding());
+				return;
+			} catch (ConnectException e) {
+				Thread.sleep(500);
+			}
+		}
+		throw new IllegalStateException("Server did not start");
+	}
+
+	private static String authenticate(HttpClient httpClient, String baseUri,
+	                                   PGPSecretKeyRing secretKeyRing) throws Exception {
+		var serverSideSalt = httpClient.send(
+				HttpRequest.newBuilder(URI.create(baseUri + "/auth")).build(),
+				HttpResponse.BodyHandlers.ofString()).body();
+		var clientSideSalt = StringUtils.getRandomString(16);
+		var signature = BenchmarkKeys.signDetached(secretKeyRing,
+				(serverSideSalt + clientSideSalt).getBytes(StandardCharsets.UTF_8));
+		var authResponse = httpClient.send(
+				HttpRequest.newBuilder(URI.create(baseUri + "/auth"))
+						.header("x-serverside-salt", serverSideSalt)
+						.header("x-clientside-salt", clientSideSalt)
+						.header("Content-Type", "application/x-www-form-urlencoded")
+						.POST(HttpRequest.BodyPublishers.ofString(
+								"signature=" + URLEncoder.encode(signature, StandardCharsets.UTF_8)))
+						.build(),
+				HttpResponse.BodyHandlers.discarding());
+		if (authResponse.statusCode() != 200) {
+			throw new IllegalStateException("Auth failed : " + authResponse.statusCode());
+		}
+		return serverSideSalt + clientSideSalt;
+	}
+
+	private static void deleteRecursively(Path root) throws IOException {
+		try (var paths = Files.walk(root)) {
+			for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+}
@@ -0,0 +1,408 @@
+package org.izfsk.diary.server;
+
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.izfsk.diary.server.utils.StringUtils;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closed-loop load of the whole protocol : <code>GET /auth</code>, a signed <code>POST /auth</code>, then
+ * <code>GET /data/&lt;date&gt;</code> and signed <code>POST /save</code> with the token, over HTTP/2 with TLS.
+ * <p>
+ * The server is booted in its own JVM on a temp <code>DiaryRootDir</code> seeded with entries, a throwaway PGP key
+ * and a throwaway TLS key for 127.0.0.1. Each simulated user has its own connection and its own client IP, sent as
+ * <code>X-Forwarded-For</code> and believed because the server trusts 127.0.0.1 as a proxy : all users sign with the
+ * one throwaway key, and a login replaces the token of the same key and IP. A user authenticates, sends
+ * <code>requestsPerSession</code> reads and saves, then authenticates again. Saves use pre-signed payloads, so the
+ * signing cost stays out of the loop. Latencies are recorded after a warm-up.
+ * <p>
+ * Usage : <code>mvn -P jmh test-compile exec:exec -Dbench.main=org.izfsk.diary.server.ProtocolLoad
+ * -Djmh.args="[users] [seconds] [writePercent] [entryBytes,...] [-Ddiary.key=value ...]"</code>,
+ * the trailing options are passed to the server.
+ */
+public final class ProtocolLoad {
+	private static final int warmupSeconds = 5;
+	private static final int requestsPerSession = 100;
+	private static final int seededDays = 60;
+	private static final int payloadsPerSize = 16;
+	private static final Duration requestTimeout = Duration.ofSeconds(10);
+	private static final String keyStorePassword = "diaryload";
+	private static final List<String> endpoints = List.of("GET /auth", "POST /auth", "GET /data/<date>", "POST /save");
+
+	private record Payload(byte[] body, String contentType) {
+	}
+
+	/**
+	 * Latencies and errors of one user, merged after the run.
+	 */
+	private static final class Recorder {
+		private final long[][] latencies = new long[endpoints.size()][1024];
+		private final int[] counts = new int[endpoints.size()];
+		private final int[] errors = new int[endpoints.size()];
+		private volatile boolean recording = false;
+
+		void record(int endpoint, long startNanos, boolean ok) {
+			if (! recording) {
+				return;
+			}
+			if (! ok) {
+				errors[endpoint]++;
+				return;
+			}
+			if (counts[endpoint] == latencies[endpoint].length) {
+				latencies[endpoint] = Arrays.copyOf(latencies[endpoint], counts[endpoint] * 2);
+			}
+			latencies[endpoint][counts[endpoint]++] = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos);
+		}
+	}
+
+	private record Result(String endpoint, long[] latencies, int errors, double seconds) {
+		long percentile(double p) {
+			if (latencies.length == 0) {
+				return -1;
+			}
+			return latencies[Math.min(latencies.length - 1, (int) Math.ceil(p * latencies.length) - 1)];
+		}
+
+		double errorRate() {
+			var total = latencies.length + errors;
+			return total == 0 ? 0 : (double) errors / total;
+		}
+
+		String toJson() {
+			return "{\"endpoint\":\"" + endpoint + "\",\"requests\":" + latencies.length + ",\"errors\":" + errors +
+					",\"perSecond\":" + Math.round(latencies.length / seconds) + ",\"p50Micros\":" + percentile(0.50) +
+					",\"p99Micros\":" + percentile(0.99) + ",\"p999Micros\":" + percentile(0.999) +
+					",\"maxMicros\":" + percentile(1.0) + "}";
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		var users = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+		var seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+		var writePercent = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+		var entrySizes = Arrays.stream((args.length > 3 ? args[3] : "2048,65536").split(","))
+				.mapToInt(Integer::parseInt).toArray();
+		var serverOptions = args.length > 4 ? List.of(args).subList(4, args.length) : List.<String>of();
+
+		var secretKeyRing = BenchmarkKeys.install();
+		var rootDir = Files.createTempDirectory("diary-load");
+		var assetsDir = Files.createTempDirectory("diary-assets");
+		var keyStore = rootDir.resolveSibling(rootDir.getFileName() + ".p12");
+		var random = new Random(42);
+		var dates = new ArrayList<String>();
+		for (int i = 1; i <= seededDays; i++) {
+			var date = StringUtils.formatDate(LocalDate.now().minusDays(i));
+			var entryPath = rootDir.resolve(date).resolve("diary.asc");
+			Files.createDirectories(entryPath.getParent());
+			Files.writeString(entryPath, newEntry(random, entrySizes[i % entrySizes.length]));
+			dates.add(date);
+		}
+		var payloads = new ArrayList<Payload>();
+		for (var entrySize : entrySizes) {
+			for (int i = 0; i < payloadsPerSize; i++) {
+				payloads.add(newSavePayload(secretKeyRing, newEntry(random, entrySize)));
+			}
+		}
+		createKeyStore(keyStore);
+
+		int httpPort;
+		int httpsPort;
+		try (var first = new ServerSocket(0); var second = new ServerSocket(0)) {
+			httpPort = first.getLocalPort();
+			httpsPort = second.getLocalPort();
+		}
+		var command = new ArrayList<>(List.of(
+				Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+				"-Ddiary.publicKey=" + System.getProperty("diary.publicKey"),
+				"-Ddiary.rootDir=" + rootDir,
+				"-Ddiary.assetsDir=" + assetsDir,
+				"-Ddiary.http.port=" + httpPort,
+				"-Ddiary.https.port=" + httpsPort,
+				"-Ddiary.http.trustedProxies=127.0.0.1",
+				"-Ddiary.tls.keyStore=" + keyStore,
+				"-Ddiary.tls.keyStorePassword=" + keyStorePassword,
+				"-Ddiary.rate.enabled=false"));
+		command.addAll(serverOptions);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(Main.class.getName());
+		var server = new ProcessBuilder(command)
+				.redirectErrorStream(true)
+				.redirectOutput(Path.of("target", "protocol-load.log").toFile())
+				.start();
+
+		var clientExecutor = Executors.newCachedThreadPool(runnable -> {
+			var thread = new Thread(runnable, "LoadClient");
+			thread.setDaemon(true);
+			return thread;
+		});
+		var userExecutor = Executors.newFixedThreadPool(users);
+		try {
+			var sslContext = newClientSslContext(keyStore);
+			var baseUri = "https://127.0.0.1:" + httpsPort;
+			awaitServer(newHttpClient(sslContext, clientExecutor), baseUri);
+
+			var recorders = new ArrayList<Recorder>();
+			var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds + seconds);
+			for (int i = 0; i < users; i++) {
+				var recorder = new Recorder();
+				recorders.add(recorder);
+				var clientIp = "10." + ((i + 1) >> 16 & 0xff) + "." + ((i + 1) >> 8 & 0xff) + "." + ((i + 1) & 0xff);
+				var httpClient = newHttpClient(sslContext, clientExecutor);
+				userExecutor.execute(() -> runUser(httpClient, baseUri, clientIp, secretKeyRing, dates, payloads,
+						writePercent, deadline, recorder));
+			}
+			Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+			for (var recorder : recorders) {
+				recorder.recording = true;
+			}
+			var start = System.nanoTime();
+			userExecutor.shutdown();
+			userExecutor.awaitTermination(seconds + requestTimeout.toSeconds() + 5, TimeUnit.SECONDS);
+			var elapsed = (System.nanoTime() - start) / 1e9;
+
+			var results = new ArrayList<Result>();
+			for (int endpoint = 0; endpoint < endpoints.size(); endpoint++) {
+				var merged = new long[0];
+				var errors = 0;
+				for (var recorder : recorders) {
+					var offset = merged.length;
+					merged = Arrays.copyOf(merged, offset + recorder.counts[endpoint]);
+					System.arraycopy(recorder.latencies[endpoint], 0, merged, offset, recorder.counts[endpoint]);
+					errors += recorder.errors[endpoint];
+				}
+				Arrays.sort(merged);
+				results.add(new Result(endpoints.get(endpoint), merged, errors, elapsed));
+			}
+
+			System.out.printf("%d users, %d s, %d%% writes, entries of %s bytes%n", users, seconds, writePercent,
+					Arrays.toString(entrySizes));
+			System.out.printf("%-18s %9s %8s %9s %10s %10s %10s %10s%n",
+					"endpoint", "requests", "per s", "errors", "p50(us)", "p99(us)", "p999(us)", "max(us)");
+			var total = 0;
+			for (var result : results) {
+				total += result.latencies().length;
+				System.out.printf("%-18s %9d %8d %8.2f%% %10d %10d %10d %10d%n", result.endpoint(), result.latencies().length,
+						Math.round(result.latencies().length / elapsed), result.errorRate() * 100,
+						result.percentile(0.50), result.percentile(0.99), result.percentile(0.999), result.percentile(1.0));
+			}
+			System.out.printf("%-18s %9d %8d%n", "total", total, Math.round(total / elapsed));
+			var json = "{\"users\":" + users + ",\"seconds\":" + seconds + ",\"writePercent\":" + writePercent +
+					",\"entryBytes\":" + Arrays.toString(entrySizes) + ",\"perSecond\":" + Math.round(total / elapsed) +
+					",\"endpoints\":[" + String.join(",", results.stream().map(Result::toJson).toList()) + "]}\n";
+			Files.writeString(Path.of("target", "protocol-load.json"), json);
+		} finally {
+			userExecutor.shutdownNow();
+			server.destroy();
+			server.waitFor();
+			deleteRecursively(rootDir);
+			deleteRecursively(assetsDir);
+			Files.deleteIfExists(keyStore);
+		}
+	}
+
+	private static void runUser(HttpClient httpClient, String baseUri, String clientIp, PGPSecretKeyRing secretKeyRing,
+	                            List<String> dates, List<Payload> payloads, int writePercent, long deadline,
+	                            Recorder recorder) {
+		var random = ThreadLocalRandom.current();
+		while (System.nanoTime() < deadline) {
+			var token = authenticate(httpClient, baseUri, clientIp, secretKeyRing, recorder);
+			if (token == null) {
+				continue;
+			}
+			for (int i = 0; i < requestsPerSession && System.nanoTime() < deadline; i++) {
+				HttpRequest request;
+				int endpoint;
+				if (random.nextInt(100) < writePercent) {
+					var payload = payloads.get(random.nextInt(payloads.size()));
+					endpoint = 3;
+					request = newRequest(baseUri + "/save", clientIp)
+							.header("x-token", token)
+							.header("Content-Type", payload.contentType())
+							.POST(HttpRequest.BodyPublishers.ofByteArray(payload.body()))
+							.build();
+				} else {
+					endpoint = 2;
+					request = newRequest(baseUri + "/data/" + dates.get(random.nextInt(dates.size())), clientIp)
+							.header("x-token", token)
+							.build();
+				}
+				var status = send(httpClient, request, endpoint, recorder);
+				if (status == 403) {
+					// token lost, start a new session
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the token, or null if either stage failed
+	 */
+	private static String authenticate(HttpClient httpClient, String baseUri, String clientIp,
+	                                   PGPSecretKeyRing secretKeyRing, Recorder recorder) {
+		var start = System.nanoTime();
+		String serverSideSalt;
+		try {
+			var response = httpClient.send(newRequest(baseUri + "/auth", clientIp).build(), HttpResponse.BodyHandlers.ofString());
+			recorder.record(0, start, response.statusCode() == 200);
+			if (response.statusCode() != 200) {
+				return null;
+			}
+			serverSideSalt = response.body();
+		} catch (IOException | InterruptedException e) {
+			recorder.record(0, start, false);
+			return null;
+		}
+
+		var clientSideSalt = StringUtils.getRandomString(16);
+		String signature;
+		try {
+			signature = BenchmarkKeys.signDetached(secretKeyRing,
+					(serverSideSalt + clientSideSalt).getBytes(StandardCharsets.UTF_8));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+		var request = newRequest(baseUri + "/auth", clientIp)
+				.header("x-serverside-salt", serverSideSalt)
+				.header("x-clientside-salt", clientSideSalt)
+				.header("Content-Type", "application/x-www-form-urlencoded")
+				.POST(HttpRequest.BodyPublishers.ofString("signature=" + URLEncoder.encode(signature, StandardCharsets.UTF_8)))
+				.build();
+		return send(httpClient, request, 1, recorder) == 200 ? serverSideSalt + clientSideSalt : null;
+	}
+
+	/**
+	 * @return the status, or -1 on a timeout or an I/O error
+	 */
+	private static int send(HttpClient httpClient, HttpRequest request, int endpoint, Recorder recorder) {
+		var start = System.nanoTime();
+		try {
+			var response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+			recorder.record(endpoint, start, response.statusCode() == 200);
+			return response.statusCode();
+		} catch (IOException | InterruptedException e) {
+			// timeouts included
+			recorder.record(endpoint, start, false);
+			return -1;
+		}
+	}
+
+	private static HttpRequest.Builder newRequest(String uri, String clientIp) {
+		return HttpRequest.newBuilder(URI.create(uri))
+				.header("X-Forwarded-For", clientIp)
+				.timeout(requestTimeout);
+	}
+
+	private static HttpClient newHttpClient(SSLContext sslContext, ExecutorService executor) {
+		return HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_2)
+				.sslContext(sslContext)
+				.executor(executor)
+				.connectTimeout(requestTimeout)
+				.build();
+	}
+
+	/**
+	 * An armored message of random Base64 lines, like the frontend uploads.
+	 */
+	private static String newEntry(Random random, int size) {
+		var bytes = new byte[size * 3 / 4];
+		random.nextBytes(bytes);
+		var body = Base64.getMimeEncoder(64, new byte[]{'\n'}).encodeToString(bytes);
+		return "-----BEGIN PGP MESSAGE-----\n\n" + body + "\n-----END PGP MESSAGE-----\n";
+	}
+
+	/**
+	 * Multipart body of <code>/save</code>, the signature is over <code>btoa(data)</code>.
+	 */
+	private static Payload newSavePayload(PGPSecretKeyRing secretKeyRing, String entry) throws Exception {
+		var data = entry.getBytes(StandardCharsets.UTF_8);
+		var signature = BenchmarkKeys.signDetached(secretKeyRing, Base64.getEncoder().encode(data));
+		var boundary = "diaryload" + StringUtils.getRandomString(16);
+		var body = new ByteArrayOutputStream(data.length + signature.length() + 512);
+		body.write(("--" + boundary + "\r\nContent-Disposition: form-data; name=\"data\"\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+		body.write(data);
+		body.write(("\r\n--" + boundary + "\r\nContent-Disposition: form-data; name=\"signature\"\r\n\r\n" + signature +
+				"\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII));
+		return new Payload(body.toByteArray(), "multipart/form-data; boundary=" + boundary);
+	}
+
+	/**
+	 * Throwaway TLS key for 127.0.0.1, made by the JDK's keytool.
+	 */
+	private static void createKeyStore(Path keyStore) throws Exception {
+		var keytool = new ProcessBuilder(
+				Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+				"-genkeypair", "-alias", "load", "-keyalg", "EC", "-groupname", "secp256r1",
+				"-dname", "CN=localhost", "-ext", "SAN=dns:localhost,ip:127.0.0.1", "-validity", "2",
+				"-storetype", "PKCS12", "-keystore", keyStore.toString(),
+				"-storepass", keyStorePassword, "-keypass", keyStorePassword)
+				.redirectErrorStream(true)
+				.start();
+		var output = new String(keytool.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+		if (keytool.waitFor() != 0) {
+			throw new IllegalStateException("keytool failed : " + output);
+		}
+	}
+
+	private static SSLContext newClientSslContext(Path keyStore) throws Exception {
+		var trustStore = KeyStore.getInstance("PKCS12");
+		try (InputStream inputStream = Files.newInputStream(keyStore)) {
+			trustStore.load(inputStream, keyStorePassword.toCharArray());
+		}
+		var trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		trustManagerFactory.init(trustStore);
+		var sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(null, trustManagerFactory.getTrustManagers(), null);
+		return sslContext;
+	}
+
+	private static void awaitServer(HttpClient httpClient, String baseUri) throws Exception {
+		for (int i = 0; i < 120; i++) {
+			try {
+				httpClient.send(HttpRequest.newBuilder(URI.create(baseUri + "/index/2000")).build(),
+						HttpResponse.BodyHandlers.discarding());
+				return;
+			} catch (IOException e) {
+				Thread.sleep(500);
+			}
+		}
+		throw new IllegalStateException("Server did not start");
+	}
+
+	private static void deleteRecursively(Path root) throws IOException {
+		try (var paths = Files.walk(root)) {
+			for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+}
@@ -0,0 +1,257 @@
+package org.izfsk.diary.server;
+
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.izfsk.diary.server.utils.StringUtils;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compare blocking and asynchronous storage, <code>diary.storage.async</code>, on a slow disk with few request threads.
+ * <p>
+ * For each mode a server is booted in its own JVM on a temp <code>DiaryRootDir</code> seeded with entries, with the
+ * entry cache off so every read goes to the disk. The disk is made slow by <code>src/jmh/native/slowdisk.c</code>,
+ * preloaded into the server : every read, write and fsync of a file under the root waits <code>delayMillis</code>.
+ * Readers fetch random entries in a closed loop. Meanwhile probe clients fetch a year index, which never touches
+ * the disk, and record the latency : it only grows if requests wait for a free request thread.
+ * <p>
+ * Usage : <code>mvn -P jmh test-compile exec:exec -Dbench.main=org.izfsk.diary.server.SlowDiskLoad
+ * -Djmh.args="[readers] [seconds] [delayMillis] [requestThreads]"</code>. Linux only, needs a C compiler.
+ */
+public final class SlowDiskLoad {
+	private static final int warmupSeconds = 3;
+	private static final int seededDays = 365;
+	private static final int probeClients = 4;
+	private static final Duration requestTimeout = Duration.ofSeconds(10);
+
+	private record Result(String mode, long[] readLatencies, long[] probeLatencies, int timeouts, int errors, double seconds) {
+		static long percentile(long[] latencies, double p) {
+			if (latencies.length == 0) {
+				return -1;
+			}
+			return latencies[Math.min(latencies.length - 1, (int) Math.ceil(p * latencies.length) - 1)];
+		}
+
+		String toJson() {
+			return "{\"mode\":\"" + mode + "\",\"readsPerSecond\":" + Math.round(readLatencies.length / seconds) +
+					",\"readP50Micros\":" + percentile(readLatencies, 0.50) +
+					",\"readP99Micros\":" + percentile(readLatencies, 0.99) +
+					",\"probeP50Micros\":" + percentile(probeLatencies, 0.50) +
+					",\"probeP99Micros\":" + percentile(probeLatencies, 0.99) +
+					",\"probeMaxMicros\":" + percentile(probeLatencies, 1.0) +
+					",\"timeouts\":" + timeouts + ",\"errors\":" + errors + "}";
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		var readers = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+		var seconds = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+		var delayMillis = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+		var requestThreads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+
+		var library = buildLibrary();
+		var results = new ArrayList<Result>();
+		for (var mode : List.of("blocking", "async")) {
+			results.add(run(mode, library, readers, seconds, delayMillis, requestThreads));
+		}
+
+		System.out.printf("%d readers, %d s, %d ms per disk operation, %d request threads%n",
+				readers, seconds, delayMillis, requestThreads);
+		System.out.printf("%-9s %10s %12s %12s %12s %12s %12s %9s%n", "mode", "reads/s", "read p50(us)",
+				"read p99(us)", "probe p50", "probe p99", "probe max", "timeouts");
+		for (var result : results) {
+			System.out.printf("%-9s %10d %12d %12d %12d %12d %12d %9d%n", result.mode(),
+					Math.round(result.readLatencies().length / result.seconds()),
+					Result.percentile(result.readLatencies(), 0.50), Result.percentile(result.readLatencies(), 0.99),
+					Result.percentile(result.probeLatencies(), 0.50), Result.percentile(result.probeLatencies(), 0.99),
+					Result.percentile(result.probeLatencies(), 1.0), result.timeouts());
+		}
+		var json = "{\"readers\":" + readers + ",\"seconds\":" + seconds + ",\"delayMillis\":" + delayMillis +
+				",\"requestThreads\":" + requestThreads + ",\"modes\":[" +
+				String.join(",", results.stream().map(Result::toJson).toList()) + "]}\n";
+		Files.writeString(Path.of("target", "slow-disk-load.json"), json);
+	}
+
+	/**
+	 * Compile the slow disk library into <code>target</code>.
+	 */
+	private static Path buildLibrary() throws Exception {
+		var library = Path.of("target", "slowdisk.so").toAbsolutePath();
+		var compiler = new ProcessBuilder("cc", "-shared", "-fPIC", "-O2", "-o", library.toString(),
+				Path.of("src", "jmh", "native", "slowdisk.c").toString(), "-ldl")
+				.redirectErrorStream(true)
+				.start();
+		var output = new String(compiler.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+		if (compiler.waitFor() != 0) {
+			throw new IllegalStateException("Unable to build the slow disk library : " + output);
+		}
+		return library;
+	}
+
+	private static Result run(String mode, Path library, int readers, int seconds, int delayMillis,
+	                          int requestThreads) throws Exception {
+		var secretKeyRing = BenchmarkKeys.install();
+		var rootDir = Files.createTempDirectory("diary-load").toRealPath();
+		var assetsDir = Files.createTempDirectory("diary-assets");
+		var dates = new ArrayList<String>();
+		for (int i = 1; i <= seededDays; i++) {
+			var date = StringUtils.formatDate(LocalDate.now().minusDays(i));
+			var entryPath = rootDir.resolve(date).resolve("diary.asc");
+			Files.createDirectories(entryPath.getParent());
+			Files.writeString(entryPath, "-----BEGIN PGP MESSAGE-----\n" + "A".repeat(2048) + "\n-----END PGP MESSAGE-----\n");
+			dates.add(date);
+		}
+
+		int httpPort;
+		int httpsPort;
+		try (var first = new ServerSocket(0); var second = new ServerSocket(0)) {
+			httpPort = first.getLocalPort();
+			httpsPort = second.getLocalPort();
+		}
+		var processBuilder = new ProcessBuilder(
+				Path.of(System.getProperty("java.home"), "bin", "java").toString(),
+				"-Ddiary.publicKey=" + System.getProperty("diary.publicKey"),
+				"-Ddiary.rootDir=" + rootDir,
+				"-Ddiary.assetsDir=" + assetsDir,
+				"-Ddiary.http.port=" + httpPort,
+				"-Ddiary.https.port=" + httpsPort,
+				"-Ddiary.storage.async=" + mode.equals("async"),
+				"-Ddiary.threads.max=" + requestThreads,
+				"-Ddiary.threads.min=" + requestThreads,
+				"-Ddiary.cache.maxBytes=0",
+				"-Ddiary.rate.enabled=false",
+				"-cp", System.getProperty("java.class.path"),
+				Main.class.getName())
+				.redirectErrorStream(true)
+				.redirectOutput(Path.of("target", "slow-disk-load-" + mode + ".log").toFile());
+		processBuilder.environment().put("LD_PRELOAD", library.toString());
+		processBuilder.environment().put("SLOWDISK_DIR", rootDir.toString());
+		processBuilder.environment().put("SLOWDISK_MILLIS", Integer.toString(delayMillis));
+		var server = processBuilder.start();
+		var clients = Executors.newFixedThreadPool(readers + probeClients);
+		try {
+			var baseUri = "http://127.0.0.1:" + httpPort;
+			var httpClient = HttpClient.newBuilder()
+					.version(HttpClient.Version.HTTP_1_1)
+					.connectTimeout(requestTimeout)
+					.build();
+			awaitServer(httpClient, baseUri);
+			var token = authenticate(httpClient, baseUri, secretKeyRing);
+
+			var readLatencies = Collections.synchronizedList(new ArrayList<Long>());
+			var probeLatencies = Collections.synchronizedList(new ArrayList<Long>());
+			var timeouts = new AtomicInteger();
+			var errors = new AtomicInteger();
+			var recordFrom = System.nanoTime() + TimeUnit.SECONDS.toNanos(warmupSeconds);
+			var deadline = recordFrom + TimeUnit.SECONDS.toNanos(seconds);
+			var probeUri = URI.create(baseUri + "/index/" + LocalDate.now().getYear());
+			for (int i = 0; i < readers + probeClients; i++) {
+				var probe = i < probeClients;
+				clients.execute(() -> {
+					var random = ThreadLocalRandom.current();
+					while (System.nanoTime() < deadline) {
+						var uri = probe ? probeUri : URI.create(baseUri + "/data/" + dates.get(random.nextInt(dates.size())));
+						var request = HttpRequest.newBuilder(uri).header("x-token", token).timeout(requestTimeout).build();
+						var start = System.nanoTime();
+						try {
+							var response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+							if (start < recordFrom) {
+								continue;
+							}
+							if (response.statusCode() == 200) {
+								(probe ? probeLatencies : readLatencies).add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+							} else {
+								errors.incrementAndGet();
+							}
+						} catch (HttpTimeoutException e) {
+							timeouts.incrementAndGet();
+						} catch (IOException | InterruptedException e) {
+							errors.incrementAndGet();
+						}
+					}
+				});
+			}
+			clients.shutdown();
+			clients.awaitTermination(warmupSeconds + seconds + requestTimeout.toSeconds() + 5, TimeUnit.SECONDS);
+
+			return new Result(mode, sorted(readLatencies), sorted(probeLatencies), timeouts.get(), errors.get(), seconds);
+		} finally {
+			clients.shutdownNow();
+			server.destroy();
+			server.waitFor();
+			deleteRecursively(rootDir);
+			deleteRecursively(assetsDir);
+		}
+	}
+
+	private static long[] sorted(List<Long> latencies) {
+		var sorted = latencies.stream().mapToLong(Long::longValue).toArray();
+		Arrays.sort(sorted);
+		return sorted;
+	}
+
+	private static void awaitServer(HttpClient httpClient, String baseUri) throws Exception {
+		for (int i = 0; i < 60; i++) {
+			try {
+				httpClient.send(HttpRequest.newBuilder(URI.create(baseUri + "/index/2000")).build(),
+						HttpResponse.BodyHandlers.discarding());
+				return;
+			} catch (ConnectException e) {
+				Thread.sleep(500);
+			}
+		}
+		throw new IllegalStateException("Server did not start");
+	}
+
+	private static String authenticate(HttpClient httpClient, String baseUri,
+	                                   PGPSecretKeyRing secretKeyRing) throws Exception {
+		var serverSideSalt = httpClient.send(
+				HttpRequest.newBuilder(URI.create(baseUri + "/auth")).build(),
+				HttpResponse.BodyHandlers.ofString()).body();
+		var clientSideSalt = StringUtils.getRandomString(16);
+		var signature = BenchmarkKeys.signDetached(secretKeyRing,
+				(serverSideSalt + clientSideSalt).getBytes(StandardCharsets.UTF_8));
+		var authResponse = httpClient.send(
+				HttpRequest.newBuilder(URI.create(baseUri + "/auth"))
+						.header("x-serverside-salt", serverSideSalt)
+						.header("x-clientside-salt", clientSideSalt)
+						.header("Content-Type", "application/x-www-form-urlencoded")
+						.POST(HttpRequest.BodyPublishers.ofString(
+								"signature=" + URLEncoder.encode(signature, StandardCharsets.UTF_8)))
+						.build(),
+				HttpResponse.BodyHandlers.discarding());
+		if (authResponse.statusCode() != 200) {
+			throw new IllegalStateException("Auth failed : " + authResponse.statusCode());
+		}
+		return serverSideSalt + clientSideSalt;
+	}
+
+	private static void deleteRecursively(Path root) throws IOException {
+		try (var paths = Files.walk(root)) {
+			for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package org.izfsk.diary.server;
+
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.izfsk.diary.server.utils.StringUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time from JVM launch to the first successful request, per startup mode.
+ * <p>
+ * Each run boots a server in its own JVM on a temp <code>DiaryRootDir</code> with a throwaway key, polls
+ * <code>GET /auth</code> until it answers, then authenticates once. Reported per mode, as medians :
+ * time to the first <code>GET /auth</code>, time to the first successful <code>POST /auth</code>, and the latency of
+ * that first <code>POST /auth</code>, which verifies a signature and encrypts the token.
+ * The <code>cds</code> mode runs if <code>mvn -P cds -DskipTests package</code> built the archive.
+ * <p>
+ * Usage : <code>mvn -P jmh test-compile exec:exec -Dbench.main=org.izfsk.diary.server.StartupBenchmark
+ * -Djmh.args="[runs]"</code>.
+ */
+public final class StartupBenchmark {
+	private static final int port = 8080;
+	private static final Path archive = Path.of("target", "DiaryServer.jsa");
+	private static final Path archiveClasspath = Path.of("target", "classpath.txt");
+
+	private record Result(String mode, long[] listenMillis, long[] firstAuthMillis, long[] authLatencyMillis) {
+		static long median(long[] values) {
+			var sorted = values.clone();
+			Arrays.sort(sorted);
+			return sorted[sorted.length / 2];
+		}
+
+		String toJson() {
+			return "{\"mode\":\"" + mode + "\",\"runs\":" + listenMillis.length +
+					",\"listenMillis\":" + median(listenMillis) + ",\"firstAuthMillis\":" + median(firstAuthMillis) +
+					",\"authLatencyMillis\":" + median(authLatencyMillis) + "}";
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		var runs = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+		var secretKeyRing = BenchmarkKeys.install();
+
+		// the archive only applies to the class path it was built with
+		var classpath = System.getProperty("java.class.path");
+		var jar = Files.list(Path.of("target"))
+				.filter(path -> path.getFileName().toString().matches("DiaryServer-.*\\.jar"))
+				.findFirst().orElse(null);
+		var hasArchive = Files.exists(archive) && Files.exists(archiveClasspath) && jar != null;
+		if (hasArchive) {
+			classpath = jar + File.pathSeparator + Files.readString(archiveClasspath).trim();
+		}
+
+		var results = new ArrayList<Result>();
+		results.add(run("lazy", List.of("-Ddiary.startup=lazy"), classpath, runs, secretKeyRing));
+		results.add(run("fast", List.of("-Ddiary.startup=fast"), classpath, runs, secretKeyRing));
+		if (hasArchive) {
+			results.add(run("cds", List.of("-Ddiary.startup=fast", "-XX:SharedArchiveFile=" + archive, "-Xlog:cds=error"),
+					classpath, runs, secretKeyRing));
+		} else {
+			System.out.println("CDS mode skipped : build the archive with mvn -P cds -DskipTests package.");
+		}
+
+		System.out.printf("%-6s %6s %14s %16s %18s%n", "mode", "runs", "listen(ms)", "firstAuth(ms)", "authLatency(ms)");
+		for (var result : results) {
+			System.out.printf("%-6s %6d %14d %16d %18d%n", result.mode(), result.listenMillis().length,
+					Result.median(result.listenMillis()), Result.median(result.firstAuthMillis()),
+					Result.median(result.authLatencyMillis()));
+		}
+		var json = "[" + String.join(",", results.stream().map(Result::toJson).toList()) + "]\n";
+		Files.writeString(Path.of("target", "startup.json"), json);
+	}
+
+	private static Result run(String mode, List<String> options, String classpath, int runs,
+	                          PGPSecretKeyRing secretKeyRing) throws Exception {
+		var listenMillis = new long[runs];
+		var firstAuthMillis = new long[runs];
+		var authLatencyMillis = new long[runs];
+		var httpClient = HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofSeconds(5))
+				.build();
+		for (int i = 0; i < runs; i++) {
+			var rootDir = Files.createTempDirectory("diary-startup");
+			var command = new ArrayList<String>();
+			command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+			command.addAll(options);
+			command.add("-Ddiary.publicKey=" + System.getProperty("diary.publicKey"));
+			command.add("-Ddiary.rootDir=" + rootDir);
+			command.add("-Ddiary.rate.enabled=false");
+			command.add("-cp");
+			command.add(classpath);
+			command.add(Main.class.getName());
+
+			var launch = System.nanoTime();
+			var server = new ProcessBuilder(command)
+					.redirectErrorStream(true)
+					.redirectOutput(Path.of("target", "startup-" + mode + ".log").toFile())
+					.start();
+			try {
+				var serverSideSalt = awaitServer(httpClient);
+				var listen = System.nanoTime();
+				authenticate(httpClient, serverSideSalt, secretKeyRing);
+				var authenticated = System.nanoTime();
+				listenMillis[i] = TimeUnit.NANOSECONDS.toMillis(listen - launch);
+				firstAuthMillis[i] = TimeUnit.NANOSECONDS.toMillis(authenticated - launch);
+				authLatencyMillis[i] = TimeUnit.NANOSECONDS.toMillis(authenticated - listen);
+			} finally {
+				server.destroy();
+				server.waitFor();
+				deleteRecursively(rootDir);
+			}
+		}
+		return new Result(mode, listenMillis, firstAuthMillis, authLatencyMillis);
+	}
+
+	/**
+	 * @return the server side salt of the first answered <code>GET /auth</code>
+	 */
+	private static String awaitServer(HttpClient httpClient) throws Exception {
+		var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+		while (System.nanoTime() < deadline) {
+			try {
+				var response = httpClient.send(HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/auth")).build(),
+						HttpResponse.BodyHandlers.ofString());
+				if (response.statusCode() == 200) {
+					return response.body();
+				}
+			} catch (ConnectException e) {
+				// not listening yet
+			}
+			Thread.sleep(5);
+		}
+		throw new IllegalStateException("Server did not start");
+	}
+
+	private static void authenticate(HttpClient httpClient, String serverSideSalt,
+	                                 PGPSecretKeyRing secretKeyRing) throws Exception {
+		// signed before the clock starts in a real client, but cheap next to the server side
+		var clientSideSalt = StringUtils.getRandomString(16);
+		var signature = BenchmarkKeys.signDetached(secretKeyRing,
+				(serverSideSalt + clientSideSalt).getBytes(StandardCharsets.UTF_8));
+		var authResponse = httpClient.send(
+				HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/auth"))
+						.header("x-serverside-salt", serverSideSalt)
+						.header("x-clientside-salt", clientSideSalt)
+						.header("Content-Type", "application/x-www-form-urlencoded")
+						.POST(HttpRequest.BodyPublishers.ofString(
+								"signature=" + URLEncoder.encode(signature, StandardCharsets.UTF_8)))
+						.build(),
+				HttpResponse.BodyHandlers.discarding());
+		if (authResponse.statusCode() != 200) {
+			throw new IllegalStateException("Auth failed : " + authResponse.statusCode());
+		}
+	}
+
+	private static void deleteRecursively(Path root) throws IOException {
+		try (var paths = Files.walk(root)) {
+			for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.deleteIfExists(path);
+			}
+		}
+	}
+}
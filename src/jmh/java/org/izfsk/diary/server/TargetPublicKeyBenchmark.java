@@ -0,0 +1,71 @@
+package org.izfsk.diary.server;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Signature verification and encryption, with a throwaway target key.
+ * <p>
+ * <code>verifyUncached</code> cycles through more (message, signature) pairs than the
+ * verification result cache holds, so every call reaches the verification pool.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TargetPublicKeyBenchmark {
+	@Param({"2048", "65536"})
+	public int messageSize;
+
+	private byte[][] messages;
+	private byte[][] signatures;
+	private SignatureVerifier signatureVerifier;
+	private int next = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		var secretKeyRing = BenchmarkKeys.install();
+		signatureVerifier = new SignatureVerifier(TargetPublicKey.targetPublicKey);
+
+		// signed payloads are Base64 of the armored ciphertext, like /save
+		var random = new Random(42);
+		messages = new byte[Configure.VerifyCacheMaxEntries * 2][];
+		signatures = new byte[messages.length][];
+		for (int i = 0; i < messages.length; i++) {
+			var raw = new byte[messageSize * 3 / 4];
+			random.nextBytes(raw);
+			messages[i] = Base64.getEncoder().encode(raw);
+			signatures[i] = BenchmarkKeys.signDetached(secretKeyRing, messages[i]).getBytes(StandardCharsets.US_ASCII);
+		}
+	}
+
+	@Benchmark
+	public boolean verifyUncached() {
+		var i = next;
+		next = (i + 1) % messages.length;
+		return TargetPublicKey.verifyDetachedSignature(messages[i], signatures[i]);
+	}
+
+	@Benchmark
+	public boolean verifyCached() {
+		return TargetPublicKey.verifyDetachedSignature(messages[0], signatures[0]);
+	}
+
+	@Benchmark
+	public boolean verifyOnCallerThread() {
+		var i = next;
+		next = (i + 1) % messages.length;
+		return signatureVerifier.verify(messages[i], signatures[i]);
+	}
+
+	@Benchmark
+	public String encryptStringForClient() {
+		return TargetPublicKey.encryptStringForClient("0123456789abcdef");
+	}
+}
@@ -0,0 +1,32 @@
+package org.izfsk.diary.server.controllers;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token check for a valid token. Rejections are not measured, they are dominated by their log line.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AuthBenchmark {
+	private static final String serverSideSalt = "aaaaaaaaaaaaaaaa";
+	private static final String clientSideSalt = "bbbbbbbbbbbbbbbb";
+
+	@Setup
+	public void setup() {
+		authTokenStore.getInstance().put(serverSideSalt, new TokenPayload(
+				clientSideSalt, "127.0.0.1", true, LocalDate.now(), Instant.now(), ""));
+	}
+
+	@Benchmark
+	public boolean checkValidToken() {
+		return Auth.checkToken(serverSideSalt + clientSideSalt, "127.0.0.1");
+	}
+}
@@ -0,0 +1,123 @@
+package org.izfsk.diary.server.storage;
+
+import io.javalin.Javalin;
+import org.izfsk.diary.server.BenchmarkKeys;
+import org.izfsk.diary.server.controllers.Auth;
+import org.izfsk.diary.server.utils.StringUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Full read path of <code>GET /data/&lt;date&gt;</code> over HTTP against a temp <code>DiaryRootDir</code> :
+ * token check, date parsing, entry index, cache or disk, response.
+ * <p>
+ * Small entries are served from the entry cache after the first round, large ones memory-mapped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntryGetBenchmark {
+	private static final int days = 64;
+
+	@Param({"2048", "16384", "131072", "1048576"})
+	public int entrySize;
+
+	private Path rootDir;
+	private Javalin application;
+	private HttpClient httpClient;
+	private HttpRequest[] requests;
+	private int next = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		var secretKeyRing = BenchmarkKeys.install();
+		rootDir = Files.createTempDirectory("diary-benchmark");
+		System.setProperty("diary.rootDir", rootDir.toString());
+
+		// entries of the requested size, ascii-armored ciphertext is base64 text
+		var alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+		var random = new Random(42);
+		var firstDay = LocalDate.of(2022, 1, 1);
+		for (int i = 0; i < days; i++) {
+			var data = new byte[entrySize];
+			for (int j = 0; j < data.length; j++) {
+				data[j] = (j % 65 == 64) ? (byte) '\n' : alphabet[random.nextInt(alphabet.length)];
+			}
+			var entryPath = Storage.getEntryPath(firstDay.plusDays(i));
+			Files.createDirectories(entryPath.getParent());
+			Files.write(entryPath, data);
+		}
+		Diaries.getInstance().openDefault();
+
+		application = Javalin.create()
+				.get("/auth", Auth::Stage1AuthHandler)
+				.post("/auth", Auth::Stage2AuthHandler)
+				.get("/data/<date>", Storage::EntryGetHandler)
+				.start("127.0.0.1", 0);
+		var baseUri = "http://127.0.0.1:" + application.port();
+		httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+		// two stage auth, like the frontend
+		var serverSideSalt = httpClient.send(
+				HttpRequest.newBuilder(URI.create(baseUri + "/auth")).build(),
+				HttpResponse.BodyHandlers.ofString()).body();
+		var clientSideSalt = StringUtils.getRandomString(16);
+		var signature = BenchmarkKeys.signDetached(secretKeyRing,
+				(serverSideSalt + clientSideSalt).getBytes(StandardCharsets.UTF_8));
+		var authResponse = httpClient.send(
+				HttpRequest.newBuilder(URI.create(baseUri + "/auth"))
+						.header("x-serverside-salt", serverSideSalt)
+						.header("x-clientside-salt", clientSideSalt)
+						.header("Content-Type", "application/x-www-form-urlencoded")
+						.POST(HttpRequest.BodyPublishers.ofString(
+								"signature=" + URLEncoder.encode(signature, StandardCharsets.UTF_8)))
+						.build(),
+				HttpResponse.BodyHandlers.discarding());
+		if (authResponse.statusCode() != 200) {
+			throw new IllegalStateException("Auth failed : " + authResponse.statusCode());
+		}
+
+		requests = new HttpRequest[days];
+		for (int i = 0; i < days; i++) {
+			requests[i] = HttpRequest.newBuilder(URI.create(baseUri + "/data/" + StringUtils.formatDate(firstDay.plusDays(i))))
+					.header("x-token", serverSideSalt + clientSideSalt)
+					.build();
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		application.stop();
+		try (var paths = Files.walk(rootDir)) {
+			for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	@Benchmark
+	public byte[] getEntry() throws Exception {
+		var i = next;
+		next = (i + 1) % requests.length;
+		var response = httpClient.send(requests[i], HttpResponse.BodyHandlers.ofByteArray());
+		if (response.statusCode() != 200) {
+			throw new IllegalStateException("GET failed : " + response.statusCode());
+		}
+		return response.body();
+	}
+}
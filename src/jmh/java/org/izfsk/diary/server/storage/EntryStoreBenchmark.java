@@ -0,0 +1,86 @@
+package org.izfsk.diary.server.storage;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Random-date reads and full scans of ten years of entries, file tree layout against segment files.
+ * <p>
+ * The page cache is warm after the first iteration, so this measures syscall and lookup overhead
+ * rather than cold disk reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntryStoreBenchmark {
+	private static final int days = 3650;
+	private static final LocalDate firstDay = LocalDate.of(2012, 1, 1);
+
+	@Param({"tree", "segment"})
+	public String engine;
+
+	@Param({"2048"})
+	public int entrySize;
+
+	private Path rootDir;
+	private EntryStore store;
+	private Random random;
+
+	@Setup
+	public void setup() throws IOException {
+		rootDir = Files.createTempDirectory("diary-benchmark");
+		store = engine.equals("tree")
+				? new FileTreeStore(rootDir)
+				: new SegmentStore(rootDir.resolve("segments"), 64 * 1024 * 1024, 0.5);
+
+		// ascii-armored ciphertext is base64 text
+		var alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes();
+		var random = new Random(42);
+		for (int i = 0; i < days; i++) {
+			var data = new byte[entrySize];
+			for (int j = 0; j < data.length; j++) {
+				data[j] = (j % 65 == 64) ? (byte) '\n' : alphabet[random.nextInt(alphabet.length)];
+			}
+			var date = firstDay.plusDays(i);
+			var spoolFile = store.createSpoolFile(date);
+			Files.write(spoolFile, data);
+			store.write(date, spoolFile);
+		}
+		store.force();
+		this.random = new Random(7);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		store.close();
+		try (var paths = Files.walk(rootDir)) {
+			for (var path : paths.sorted(Comparator.reverseOrder()).toList()) {
+				Files.delete(path);
+			}
+		}
+	}
+
+	@Benchmark
+	public int randomRead() throws IOException {
+		return store.read(firstDay.plusDays(random.nextInt(days))).remaining();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(days)
+	public void fullScan(Blackhole blackhole) throws IOException {
+		for (int i = 0; i < days; i++) {
+			blackhole.consume(store.read(firstDay.plusDays(i)).remaining());
+		}
+	}
+}
@@ -0,0 +1,26 @@
+package org.izfsk.diary.server.utils;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringUtilsBenchmark {
+	@Param({"2022/11/5", "2022/2/31", "not/a/date"})
+	public String dateString;
+
+	@Benchmark
+	public boolean checkDate() {
+		return StringUtils.checkDate(dateString);
+	}
+
+	@Benchmark
+	public String getRandomString() {
+		return StringUtils.getRandomString(16);
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * A slow disk for benchmarks : LD_PRELOAD this library to delay every read, write and fsync of files under a
+ * directory, in the thread that issued it, like a disk that takes that long per request.
+ *
+ *   SLOWDISK_DIR     absolute directory whose files are slow
+ *   SLOWDISK_MILLIS  delay per call, 10 by default
+ *
+ * Build : cc -shared -fPIC -O2 -o slowdisk.so slowdisk.c -ldl
+ * Memory-mapped reads are not delayed.
+ */
+#define _GNU_SOURCE
+#include <dlfcn.h>
+#include <fcntl.h>
+#include <stdarg.h>
+#include <stdlib.h>
+#include <string.h>
+#include <sys/types.h>
+#include <sys/uio.h>
+#include <time.h>
+#include <unistd.h>
+
+#define MAX_FDS 65536
+
+static unsigned char slow_fds[MAX_FDS];
+static const char *slow_dir = NULL;
+static size_t slow_dir_length = 0;
+static long slow_nanos = 10 * 1000000L;
+static int initialized = 0;
+
+static void init(void) {
+	if (initialized) {
+		return;
+	}
+	slow_dir = getenv("SLOWDISK_DIR");
+	slow_dir_length = slow_dir == NULL ? 0 : strlen(slow_dir);
+	const char *millis = getenv("SLOWDISK_MILLIS");
+	if (millis != NULL) {
+		slow_nanos = atol(millis) * 1000000L;
+	}
+	initialized = 1;
+}
+
+static int is_slow_path(const char *path) {
+	init();
+	return slow_dir_length > 0 && path != NULL && strncmp(path, slow_dir, slow_dir_length) == 0;
+}
+
+static void track(int fd, const char *path) {
+	if (fd >= 0 && fd < MAX_FDS) {
+		__atomic_store_n(&slow_fds[fd], is_slow_path(path), __ATOMIC_RELAXED);
+	}
+}
+
+static void delay(void) {
+	struct timespec duration = {slow_nanos / 1000000000L, slow_nanos % 1000000000L};
+	while (nanosleep(&duration, &duration) != 0) {
+	}
+}
+
+static void delay_fd(int fd) {
+	if (fd >= 0 && fd < MAX_FDS && __atomic_load_n(&slow_fds[fd], __ATOMIC_RELAXED)) {
+		delay();
+	}
+}
+
+#define NEXT(name) static typeof(name) *next_##name = NULL; if (next_##name == NULL) next_##name = dlsym(RTLD_NEXT, #name)
+
+int open(const char *path, int flags, ...) {
+	NEXT(open);
+	va_list args;
+	va_start(args, flags);
+	mode_t mode = va_arg(args, mode_t);
+	va_end(args);
+	int fd = next_open(path, flags, mode);
+	track(fd, path);
+	return fd;
+}
+
+int open64(const char *path, int flags, ...) {
+	NEXT(open64);
+	va_list args;
+	va_start(args, flags);
+	mode_t mode = va_arg(args, mode_t);
+	va_end(args);
+	int fd = next_open64(path, flags, mode);
+	track(fd, path);
+	return fd;
+}
+
+int openat(int dirfd, const char *path, int flags, ...) {
+	NEXT(openat);
+	va_list args;
+	va_start(args, flags);
+	mode_t mode = va_arg(args, mode_t);
+	va_end(args);
+	int fd = next_openat(dirfd, path, flags, mode);
+	track(fd, path);
+	return fd;
+}
+
+int openat64(int dirfd, const char *path, int flags, ...) {
+	NEXT(openat64);
+	va_list args;
+	va_start(args, flags);
+	mode_t mode = va_arg(args, mode_t);
+	va_end(args);
+	int fd = next_openat64(dirfd, path, flags, mode);
+	track(fd, path);
+	return fd;
+}
+
+int close(int fd) {
+	NEXT(close);
+	if (fd >= 0 && fd < MAX_FDS) {
+		__atomic_store_n(&slow_fds[fd], 0, __ATOMIC_RELAXED);
+	}
+	return next_close(fd);
+}
+
+ssize_t read(int fd, void *buffer, size_t count) {
+	NEXT(read);
+	delay_fd(fd);
+	return next_read(fd, buffer, count);
+}
+
+ssize_t pread(int fd, void *buffer, size_t count, off_t offset) {
+	NEXT(pread);
+	delay_fd(fd);
+	return next_pread(fd, buffer, count, offset);
+}
+
+ssize_t pread64(int fd, void *buffer, size_t count, off64_t offset) {
+	NEXT(pread64);
+	delay_fd(fd);
+	return next_pread64(fd, buffer, count, offset);
+}
+
+ssize_t write(int fd, const void *buffer, size_t count) {
+	NEXT(write);
+	delay_fd(fd);
+	return next_write(fd, buffer, count);
+}
+
+ssize_t pwrite64(int fd, const void *buffer, size_t count, off64_t offset) {
+	NEXT(pwrite64);
+	delay_fd(fd);
+	return next_pwrite64(fd, buffer, count, offset);
+}
+
+int fsync(int fd) {
+	NEXT(fsync);
+	delay_fd(fd);
+	return next_fsync(fd);
+}
+
+int fdatasync(int fd) {
+	NEXT(fdatasync);
+	delay_fd(fd);
+	return next_fdatasync(fd);
+}
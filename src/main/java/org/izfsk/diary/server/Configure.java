@@ -1,8 +1,16 @@
 package org.izfsk.diary.server;
 
+/**
+ * Server settings. Those with a <code>diary.*</code> key can be set at runtime, see <code>Settings</code>.
+ */
 public final class Configure {
-	public static final String AssertFilesLocation = "/home/izfsk/Ramdisk/MyDiary/diary/dist/";
-	public static final String PublicKey = """
+	private static final Settings settings = Settings.getInstance();
+
+	public static final String AssertFilesLocation = settings.getString("diary.assetsDir", "/home/izfsk/Ramdisk/MyDiary/diary/dist/");
+	// -Ddiary.assets=memory loads and precompresses the assets at startup, disk serves them through Javalin on each request
+	public static final String StaticAssetsMode = settings.getString("diary.assets", "memory");
+	// -Ddiary.publicKey=... overrides the key below, benchmarks use it to run with a throwaway key
+	public static final String PublicKey = settings.getString("diary.publicKey", """
 			-----BEGIN PGP PUBLIC KEY BLOCK-----
 			
 			mDMEY2i1JBYJKwYBBAHaRw8BAQdAeyzL9+nTossrOqolkavLdHFo/rFE45kU2ijd
@@ -16,7 +24,130 @@ public final class Configure {
 			YfWwAP0ehjsbP00Lz6jcj0ymr/qlZVYSttzGj7EA5xlGHVacDg==
 			=3VaQ
 			-----END PGP PUBLIC KEY BLOCK-----
-			""";
+			""");
+
+	public static final String DiaryRootDir = settings.getString("diary.rootDir", "/home/izfsk/Ramdisk/Diaries");
+
+	// connectors : plain HTTP/1.1 port, TLS port with HTTP/2, and the keystore, the bundled development one by default
+	public static final int HttpPort = settings.getInt("diary.http.port", 8080);
+	public static final int HttpsPort = settings.getInt("diary.https.port", 7777);
+	// comma separated IPs of reverse proxies, the client IP of their requests is taken from X-Forwarded-For
+	public static final String TrustedProxies = settings.getString("diary.http.trustedProxies", "");
+	public static final String KeyStorePath = settings.getString("diary.tls.keyStore", null);
+	public static final String KeyStorePassword = settings.getString("diary.tls.keyStorePassword", "zvrg4kc9");
+	// TLS session resumption : sessions cached and their lifetime, -1 keeps the provider defaults
+	public static final int TlsSessionCacheSize = settings.getInt("diary.tls.sessionCacheSize", -1);
+	public static final int TlsSessionTimeoutSeconds = settings.getInt("diary.tls.sessionTimeoutSeconds", -1);
+	// Jetty request threads when not on virtual threads, and idle time before a spare thread exits
+	public static final int ThreadPoolMaxThreads = settings.getInt("diary.threads.max", 200);
+	public static final int ThreadPoolMinThreads = settings.getInt("diary.threads.min", 8);
+	public static final int ThreadPoolIdleTimeoutMillis = settings.getInt("diary.threads.idleTimeoutMillis", 60000);
+	// acceptor and selector threads of each connector, -1 lets Jetty size them from the cores
+	public static final int ConnectorAcceptors = settings.getInt("diary.connector.acceptors", -1);
+	public static final int ConnectorSelectors = settings.getInt("diary.connector.selectors", -1);
+	// idle time before a connection is closed
+	public static final long ConnectorIdleTimeoutMillis = settings.getLong("diary.connector.idleTimeoutMillis", 30000);
+	// HTTP/2 : streams per connection, receive windows of a connection and of a stream, stream idle time, 0 is the connection's
+	public static final int Http2MaxConcurrentStreams = settings.getInt("diary.http2.maxConcurrentStreams", 128);
+	public static final int Http2SessionRecvWindow = settings.getInt("diary.http2.sessionRecvWindow", 1024 * 1024);
+	public static final int Http2StreamRecvWindow = settings.getInt("diary.http2.streamRecvWindow", 512 * 1024);
+	public static final long Http2StreamIdleTimeoutMillis = settings.getLong("diary.http2.streamIdleTimeoutMillis", 0);
+
+	// -Ddiary.startup=fast (default) initialises the crypto in parallel with the diary and warms it up before listening,
+	// lazy initialises it on first use, train is fast and exits after one request, to build the CDS archive
+	public static final String StartupMode = settings.getString("diary.startup", "fast");
+	// signatures verified and messages encrypted by the warm-up
+	public static final int WarmupIterations = settings.getInt("diary.warmup.iterations", 5);
+
+	// -Ddiary.keyDir=... serves every user with a FINGERPRINT.asc public key there, entries under DiaryRootDir/users/, unset serves PublicKey only
+	public static final String KeyDir = settings.getString("diary.keyDir", null);
+	// multi-user : parsed public keys kept in memory, and idle time after which a user's diary is closed
+	public static final int KeyCacheMaxEntries = 1024;
+	public static final long DiaryIdleSeconds = 10 * 60;
+
+	// -Ddiary.virtualThreads=true runs requests and storage I/O on virtual threads, needs JDK 21+
+	public static final boolean UseVirtualThreads = settings.getBoolean("diary.virtualThreads", false);
+
+	// -Ddiary.storage=tree keeps entries at YYYY/M/D/diary.asc, segment packs them into segment files under segments/
+	public static final String StorageEngine = settings.getString("diary.storage", "tree");
+	// segment engine : segment size, and sealed segments below this live ratio are compacted every interval
+	public static final long SegmentMaxBytes = 64 * 1024 * 1024;
+	public static final double SegmentCompactionLiveRatio = 0.5;
+	public static final long SegmentCompactionIntervalSeconds = 10 * 60;
+	// -Ddiary.journal=always|batched|never saves through the write-ahead journal with that fsync policy, unset writes entry files directly
+	public static final String JournalFsyncPolicy = settings.getString("diary.journal", null);
+	// group commit window of the batched policy, and journal size that triggers a checkpoint
+	public static final long JournalFsyncIntervalMillis = settings.getLong("diary.journal.intervalMillis", 10);
+	public static final long JournalCheckpointBytes = 64 * 1024 * 1024;
+	// -Ddiary.storage.async=false reads entries and publishes saves on the request threads instead of the storage pool
+	public static final boolean StorageAsync = settings.getBoolean("diary.storage.async", true);
+	// storage pool : threads, the disk operations in flight, and operations queued before answering 503
+	public static final int StorageThreads = settings.getInt("diary.storage.threads", 16);
+	public static final int StorageQueueSize = settings.getInt("diary.storage.queueSize", 1024);
+
+	// bearer token scrapers send to /metrics, which answers 403 to everyone while unset
+	public static final String MetricsToken = settings.getString("diary.metrics.token", null);
+	// -Ddiary.metricsPublic=true answers /metrics without token
+	public static final boolean MetricsPublic = settings.getBoolean("diary.metricsPublic", false);
+
+	// byte budget of the in-memory entry cache
+	public static final long EntryCacheMaxBytes = settings.getLong("diary.cache.maxBytes", 16 * 1024 * 1024);
+
+	// number of in-process lock stripes guarding entry files
+	public static final int EntryLockStripes = 64;
+
+	// entries at least this large are sent memory-mapped instead of through the entry cache
+	public static final long ZeroCopyThresholdBytes = 64 * 1024;
+
+	// max number of days a single /data/range request may span
+	public static final int RangeMaxDays = settings.getInt("diary.range.maxDays", 93);
+
+	// auth token store : hard cap on entries, stage 1 timeout and sweep interval
+	public static final int TokenStoreMaxEntries = 10000;
+	public static final long PendingTokenTimeoutSeconds = 5 * 60;
+	// stage 1 tokens an IP may hold at once, clients behind one NAT or proxy share it
+	public static final int PendingTokensPerIP = settings.getInt("diary.auth.pendingPerIP", 16);
+	public static final long TokenSweepIntervalSeconds = 60;
+
+	// signature verification : pending jobs beyond the worker pool, and the result cache
+	public static final int VerifyQueueSize = 64;
+	public static final int VerifyCacheMaxEntries = 1024;
+	public static final long VerifyCacheTtlSeconds = 60;
+	// verifications running or queued at once across all requests, beyond that requests get 429
+	public static final int VerifyMaxConcurrent = settings.getInt("diary.verify.maxConcurrent", Runtime.getRuntime().availableProcessors() + VerifyQueueSize);
+
+	// per-IP token buckets : burst and refill per minute of each route, -Ddiary.rate.enabled=false turns them off
+	public static final boolean RateLimitEnabled = settings.getBoolean("diary.rate.enabled", true);
+	public static final int AuthRateBurst = settings.getInt("diary.rate.auth.burst", 10);
+	public static final int AuthRatePerMinute = settings.getInt("diary.rate.auth.perMinute", 10);
+	public static final int SaveRateBurst = settings.getInt("diary.rate.save.burst", 30);
+	public static final int SaveRatePerMinute = settings.getInt("diary.rate.save.perMinute", 30);
+	public static final int ReadRateBurst = settings.getInt("diary.rate.read.burst", 600);
+	public static final int ReadRatePerMinute = settings.getInt("diary.rate.read.perMinute", 600);
+	// a save costs one token plus one per this many body bytes
+	public static final long SaveCostBytes = 1024 * 1024;
+	// clients tracked per route, full buckets are swept every 10 seconds
+	public static final int RateLimiterMaxKeys = 100000;
+
+	// POST /save : max body size, multipart parts larger than the threshold are spooled to disk
+	public static final long SaveMaxBodyBytes = settings.getLong("diary.save.maxBytes", 8 * 1024 * 1024);
+	public static final int SaveSpoolThresholdBytes = 64 * 1024;
+	public static final int SignatureMaxBytes = 16 * 1024;
+
+	// GET /events : subscribers at once, changed dates buffered for a slow subscriber before a reset, heartbeat interval below the idle timeout
+	public static final int EventMaxSubscribers = settings.getInt("diary.events.maxSubscribers", 10000);
+	public static final int EventBufferEntries = 64;
+	public static final int EventHeartbeatSeconds = settings.getInt("diary.events.heartbeatSeconds", 15);
+
+	// GET /sync : entries per page by default and at most, a page also ends after this many bytes of entries
+	public static final int SyncPageEntries = settings.getInt("diary.sync.pageEntries", 100);
+	public static final int SyncMaxPageEntries = 1000;
+	public static final long SyncPageBytes = settings.getLong("diary.sync.pageBytes", 8 * 1024 * 1024);
+	// change log sequence numbers reserved per write of the sequence file
+	public static final int ChangeSequenceBlock = 1024;
 
-	public static final String DiaryRootDir = "/home/izfsk/Ramdisk/Diaries";
+	// POST /import : entries written between two forces of the store
+	public static final int ImportBatchEntries = 64;
+	// POST /import : max archive size, spooled to java.io.tmpdir until its signature is verified
+	public static final long ImportMaxBodyBytes = settings.getLong("diary.import.maxBytes", 1024L * 1024 * 1024);
 }
@@ -0,0 +1,137 @@
+package org.izfsk.diary.server;
+
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.pgpainless.PGPainless;
+import org.pgpainless.key.OpenPgpFingerprint;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * singleton registry of users' public keys, indexed by fingerprint.
+ * <p>
+ * Each user has a <code>FINGERPRINT.asc</code> armored public key in <code>Configure.KeyDir</code>.
+ * Keys are parsed on first use and their verifiers kept in an LRU of <code>Configure.KeyCacheMaxEntries</code>,
+ * so memory follows active users rather than registered ones. Without a key dir, the only user is the
+ * empty fingerprint, verified against <code>Configure.PublicKey</code>.
+ * <p>
+ * Register a user with the server running or not :
+ * <code>java -Ddiary.keyDir=... -cp DiaryServer.jar org.izfsk.diary.server.KeyRegistry public.asc</code>
+ */
+public final class KeyRegistry {
+	// v4 or v5 fingerprint
+	private static final Pattern FingerprintPattern = Pattern.compile("[0-9A-F]{40}|[0-9A-F]{64}");
+
+	private static final KeyRegistry registry = new KeyRegistry(
+			Configure.KeyDir == null ? null : Path.of(Configure.KeyDir), Configure.KeyCacheMaxEntries);
+
+	private final Path keyDir;
+	// access-ordered, so the eldest entry is the least recently used one
+	private final Map<String, SignatureVerifier> verifiers;
+
+	KeyRegistry(Path keyDir, int maxEntries) {
+		this.keyDir = keyDir;
+		this.verifiers = new LinkedHashMap<>(64, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, SignatureVerifier> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public static KeyRegistry getInstance() {
+		return registry;
+	}
+
+	/**
+	 * @return true if users are registered in a key dir, false if the server has a single user
+	 */
+	public boolean isMultiUser() {
+		return keyDir != null;
+	}
+
+	/**
+	 * @param fingerprint user's fingerprint, upper case hex, or empty on a single user server
+	 * @return the user's verifier, or null if no such user is registered
+	 */
+	public SignatureVerifier getVerifier(String fingerprint) {
+		if (keyDir == null) {
+			return fingerprint.isEmpty() ? TargetPublicKey.getSignatureVerifier() : null;
+		}
+		if (! FingerprintPattern.matcher(fingerprint).matches()) {
+			return null;
+		}
+		synchronized (verifiers) {
+			var verifier = verifiers.get(fingerprint);
+			if (verifier != null) {
+				return verifier;
+			}
+		}
+
+		// parse outside the lock, a concurrent load of the same key is harmless
+		SignatureVerifier verifier;
+		try {
+			var keyRing = PGPainless.readKeyRing().publicKeyRing(Files.readString(keyDir.resolve(fingerprint + ".asc")));
+			if (keyRing == null || ! OpenPgpFingerprint.of(keyRing).toString().equals(fingerprint)) {
+				LoggerFactory.getLogger("KeyRegistry").warn("Key file of " + fingerprint + " holds another key.");
+				return null;
+			}
+			verifier = new SignatureVerifier(keyRing);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			LoggerFactory.getLogger("KeyRegistry").warn("Unable to load key " + fingerprint + " : " + e.getMessage());
+			return null;
+		}
+		synchronized (verifiers) {
+			verifiers.put(fingerprint, verifier);
+		}
+		return verifier;
+	}
+
+	/**
+	 * @return number of parsed keys in memory
+	 */
+	public int getCachedKeyCount() {
+		synchronized (verifiers) {
+			return verifiers.size();
+		}
+	}
+
+	/**
+	 * Write a public key to the key dir under its fingerprint.
+	 *
+	 * @return the fingerprint
+	 */
+	static String register(Path keyDir, PGPPublicKeyRing keyRing) throws IOException {
+		var fingerprint = OpenPgpFingerprint.of(keyRing).toString();
+		Files.createDirectories(keyDir);
+		var tempFile = Files.createTempFile(keyDir, fingerprint, ".tmp");
+		Files.writeString(tempFile, PGPainless.asciiArmor(keyRing));
+		Files.move(tempFile, keyDir.resolve(fingerprint + ".asc"), StandardCopyOption.ATOMIC_MOVE);
+		return fingerprint;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (Configure.KeyDir == null || args.length == 0) {
+			LoggerFactory.getLogger("KeyRegistry").error("Usage : java -Ddiary.keyDir=... KeyRegistry public.asc...");
+			System.exit(1);
+		}
+		for (var keyFile : args) {
+			var keyRing = PGPainless.readKeyRing().publicKeyRing(Files.readString(Path.of(keyFile)));
+			if (keyRing == null) {
+				LoggerFactory.getLogger("KeyRegistry").error(keyFile + " holds no public key.");
+				System.exit(1);
+			}
+			var fingerprint = register(Path.of(Configure.KeyDir), keyRing);
+			LoggerFactory.getLogger("KeyRegistry").info("Registered " + keyFile + " as " + fingerprint);
+		}
+	}
+}
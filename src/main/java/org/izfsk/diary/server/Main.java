@@ -2,9 +2,20 @@ package org.izfsk.diary.server;
 
 import io.javalin.Javalin;
 import io.javalin.http.staticfiles.Location;
+import io.javalin.util.ConcurrencyUtil;
+import io.javalin.util.LoomThreadPool;
+import io.javalin.util.LoomUtil;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.izfsk.diary.server.assets.StaticAssets;
 import org.izfsk.diary.server.controllers.Auth;
+import org.izfsk.diary.server.metrics.Metrics;
+import org.izfsk.diary.server.ratelimit.RateLimitedException;
+import org.izfsk.diary.server.ratelimit.RateLimits;
+import org.izfsk.diary.server.storage.Diaries;
+import org.izfsk.diary.server.storage.EntryArchive;
+import org.izfsk.diary.server.storage.EntryChanges;
+import org.izfsk.diary.server.storage.EntryEvents;
 import org.izfsk.diary.server.storage.Storage;
 import org.slf4j.LoggerFactory;
 
@@ -16,35 +27,75 @@ import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.SslConnectionFactory;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Objects;
 
 public class Main {
+	/**
+	 * Jetty's request thread pool : virtual threads when enabled and available (JDK 21+), pooled platform threads otherwise.
+	 * Javalin's async executor, used for storage I/O by <code>context.async</code>, follows the same mode.
+	 */
+	private static ThreadPool createThreadPool() {
+		var useVirtualThreads = Configure.UseVirtualThreads && LoomUtil.INSTANCE.getLoomAvailable();
+		if (Configure.UseVirtualThreads && ! useVirtualThreads) {
+			LoggerFactory.getLogger("Bootstrap").warn("Virtual threads are not available on Java " +
+					System.getProperty("java.version") + ", fall back to pooled threads.");
+		}
+		ConcurrencyUtil.INSTANCE.setUseLoom(useVirtualThreads);
+		if (useVirtualThreads) {
+			LoggerFactory.getLogger("Bootstrap").info("Running requests on virtual threads.");
+			return new LoomThreadPool("JettyServerThreadPool");
+		}
+		var threadPool = new QueuedThreadPool(Configure.ThreadPoolMaxThreads, Configure.ThreadPoolMinThreads, Configure.ThreadPoolIdleTimeoutMillis);
+		threadPool.setName("JettyServerThreadPool");
+		return threadPool;
+	}
+
 	private static Server createHTTP2ServerWithTLSSupport(){
-		var server = new Server();
+		var server = new Server(createThreadPool());
+
+		// the IP of tokens and rate limits is the one forwarded by a trusted proxy
+		var trustedProxyCustomizer = Configure.TrustedProxies.isBlank() ? null : new TrustedProxyCustomizer(Configure.TrustedProxies);
 
-		var connector = new ServerConnector(server);
-		connector.setPort(8080);
+		var connector = new ServerConnector(server, Configure.ConnectorAcceptors, Configure.ConnectorSelectors);
+		if (trustedProxyCustomizer != null) {
+			connector.getConnectionFactory(HttpConnectionFactory.class).getHttpConfiguration().addCustomizer(trustedProxyCustomizer);
+		}
+		connector.setPort(Configure.HttpPort);
+		connector.setIdleTimeout(Configure.ConnectorIdleTimeoutMillis);
+		connector.addBean(Diaries.ReleaseListener);
 		server.addConnector(connector);
 
 		// HTTP Configuration
 		var httpConfig = new HttpConfiguration();
 		httpConfig.setSendServerVersion(false);
 		httpConfig.setSecureScheme("https");
-		httpConfig.setSecurePort(7777);
+		httpConfig.setSecurePort(Configure.HttpsPort);
 
 		var disableSNICheckForLocalDevelopment = new SecureRequestCustomizer();
 		disableSNICheckForLocalDevelopment.setSniHostCheck(false);
 		disableSNICheckForLocalDevelopment.setSniRequired(false);
 		httpConfig.addCustomizer(disableSNICheckForLocalDevelopment);
+		if (trustedProxyCustomizer != null) {
+			httpConfig.addCustomizer(trustedProxyCustomizer);
+		}
 
 		// SSL Context Factory for HTTPS and HTTP/2
 		SslContextFactory.Server sslContextFactory = new SslContextFactory.Server();
-		sslContextFactory.setKeyStorePath(Objects.requireNonNull(Main.class.getResource("/keystore.jks")).toExternalForm()); // replace with your real keystore
-		sslContextFactory.setKeyStorePassword("zvrg4kc9"); // replace with your real password
+		sslContextFactory.setKeyStorePath(Configure.KeyStorePath != null ? Configure.KeyStorePath :
+				Objects.requireNonNull(Main.class.getResource("/keystore.jks")).toExternalForm()); // set diary.tls.keyStore to your real keystore
+		sslContextFactory.setKeyStorePassword(Configure.KeyStorePassword);
 		sslContextFactory.setCipherComparator(HTTP2Cipher.COMPARATOR);
 		sslContextFactory.setProvider("Conscrypt");
+		sslContextFactory.setSslSessionCacheSize(Configure.TlsSessionCacheSize);
+		sslContextFactory.setSslSessionTimeout(Configure.TlsSessionTimeoutSeconds);
 
 		// HTTPS Configuration
 		var httpsConfig = new HttpConfiguration(httpConfig);
@@ -52,6 +103,10 @@ public class Main {
 
 		// HTTP/2 Connection Factory
 		var h2 = new HTTP2ServerConnectionFactory(httpsConfig);
+		h2.setMaxConcurrentStreams(Configure.Http2MaxConcurrentStreams);
+		h2.setInitialSessionRecvWindow(Configure.Http2SessionRecvWindow);
+		h2.setInitialStreamRecvWindow(Configure.Http2StreamRecvWindow);
+		h2.setStreamIdleTimeout(Configure.Http2StreamIdleTimeoutMillis);
 		ALPNServerConnectionFactory alpnServerConnectionFactory = new ALPNServerConnectionFactory();
 		alpnServerConnectionFactory.setDefaultProtocol("h2");
 
@@ -59,14 +114,29 @@ public class Main {
 		var ssl = new SslConnectionFactory(sslContextFactory, alpnServerConnectionFactory.getProtocol());
 
 		// HTTP/2 Connector
-		var http2Connector = new ServerConnector(server, ssl, alpnServerConnectionFactory, h2, new HttpConnectionFactory(httpsConfig));
-		http2Connector.setPort(7777);
+		var http2Connector = new ServerConnector(server, Configure.ConnectorAcceptors, Configure.ConnectorSelectors,
+				ssl, alpnServerConnectionFactory, h2, new HttpConnectionFactory(httpsConfig));
+		http2Connector.setPort(Configure.HttpsPort);
+		http2Connector.setIdleTimeout(Configure.ConnectorIdleTimeoutMillis);
+		http2Connector.addBean(Diaries.ReleaseListener);
 		server.addConnector(http2Connector);
 
 		return server;
 	}
 
 	public static void main(String[] args) {
+		// an unreadable config file or a malformed value stops the server before anything starts
+		try {
+			LoggerFactory.getLogger("Bootstrap").info("Configuration from " + Settings.getInstance().getSources() +
+					", diary at " + Configure.DiaryRootDir + ", ports " + Configure.HttpPort + " and " + Configure.HttpsPort + ".");
+		} catch (ExceptionInInitializerError e) {
+			LoggerFactory.getLogger("Bootstrap").error("Invalid configuration : " + e.getCause().getMessage());
+			System.exit(1);
+		}
+
+		// crypto providers and keys are initialised while the diary is opened
+		var warmup = Configure.StartupMode.equals("lazy") ? null : StartupWarmup.start(Configure.WarmupIterations);
+
 		// check diary dir
 		File diaryDir = new File(Configure.DiaryRootDir);
 		if (! diaryDir.exists() || ! diaryDir.isDirectory()) {
@@ -74,29 +144,114 @@ public class Main {
 			System.exit(1);
 		}
 
+		// multi-user diaries are opened on demand, each one a file tree without journal
+		if (KeyRegistry.getInstance().isMultiUser()) {
+			if (! Configure.StorageEngine.equals("tree") || Configure.JournalFsyncPolicy != null) {
+				LoggerFactory.getLogger("Bootstrap").error("A multi-user server only supports -Ddiary.storage=tree without -Ddiary.journal.");
+				System.exit(1);
+			}
+			if (! Files.isDirectory(Path.of(Configure.KeyDir))) {
+				LoggerFactory.getLogger("Bootstrap").error("The keyDir " + Configure.KeyDir + " is not a dir!");
+				System.exit(1);
+			}
+			LoggerFactory.getLogger("Bootstrap").info("Serving the users registered in " + Configure.KeyDir + ".");
+		} else {
+			// open the store, replay the journal and build the index
+			try {
+				Diaries.getInstance().openDefault();
+			} catch (IOException | UncheckedIOException | IllegalArgumentException e) {
+				LoggerFactory.getLogger("Bootstrap").error("Unable to open the diary at " + Configure.DiaryRootDir + " : " + e.getMessage());
+				System.exit(1);
+			}
+		}
+
+		// load static assets
+		if (! Configure.StaticAssetsMode.equals("disk")) {
+			try {
+				var assetBytes = StaticAssets.getInstance().load(Path.of(Configure.AssertFilesLocation));
+				LoggerFactory.getLogger("Bootstrap").info("Loaded " + StaticAssets.getInstance().getAssetCount() + " static assets, " + assetBytes + " bytes.");
+			} catch (IOException e) {
+				LoggerFactory.getLogger("Bootstrap").error("Unable to load static assets from " + Configure.AssertFilesLocation + " : " + e.getMessage());
+				System.exit(1);
+			}
+		}
+
 		var application = Javalin.create(
 				javalinConfig -> {
 					javalinConfig.jetty.server(Main::createHTTP2ServerWithTLSSupport);
 					javalinConfig.compression.gzipOnly(5);
-					javalinConfig.staticFiles.add(staticFiles -> {
-						staticFiles.hostedPath = "/";                   // change to host files on a subpart, like '/assets'
-						staticFiles.directory = Configure.AssertFilesLocation;              // the directory where your files are located
-						staticFiles.location = Location.EXTERNAL;      // Location.CLASSPATH (jar) or Location.EXTERNAL (file system)
-					});
+					javalinConfig.requestLogger.http(Metrics::recordRequest);
+					if (Configure.StaticAssetsMode.equals("disk")) {
+						javalinConfig.staticFiles.add(staticFiles -> {
+							staticFiles.hostedPath = "/";                   // change to host files on a subpart, like '/assets'
+							staticFiles.directory = Configure.AssertFilesLocation;              // the directory where your files are located
+							staticFiles.location = Location.EXTERNAL;      // Location.CLASSPATH (jar) or Location.EXTERNAL (file system)
+						});
+					}
 				}
 		);
+		// per-IP budgets, checked before the handlers
+		application.before("/auth", RateLimits::AuthLimitHandler);
+		application.before("/save", RateLimits::SaveLimitHandler);
+		application.before("/data/*", RateLimits::ReadLimitHandler);
+		application.before("/index/*", RateLimits::ReadLimitHandler);
+		application.before("/export", RateLimits::ReadLimitHandler);
+		application.before("/import", RateLimits::SaveLimitHandler);
+		application.before("/events", RateLimits::ReadLimitHandler);
+		application.before("/sync", RateLimits::ReadLimitHandler);
 		// auth api
 		application.get("/auth", Auth::Stage1AuthHandler);
 		application.post("/auth", Auth::Stage2AuthHandler);
-		// get diary entry api
+		// get diary entries api, range must be registered before the catch-all date path
+		application.get("/data/range", Storage::EntryRangeGetHandler);
 		application.get("/data/<date>", Storage::EntryGetHandler);
+		// which days of a year have entries
+		application.get("/index/{year}", Storage::IndexGetHandler);
 		// set diary entry api
 		application.post("/save", Storage::EntrySetHandler);
+		// whole diary backup and restore
+		application.get("/export", EntryArchive::ExportHandler);
+		application.post("/import", EntryArchive::ImportHandler);
+		// entry change notifications
+		application.get("/events", EntryEvents::EventsHandler);
+		// entries changed since a sequence number
+		application.get("/sync", EntryChanges::SyncHandler);
+		// prometheus metrics
+		application.get("/metrics", Metrics::MetricsHandler);
+
+		// static assets last, so they never shadow the api
+		if (! Configure.StaticAssetsMode.equals("disk")) {
+			application.get("/", StaticAssets::AssetHandler);
+			application.get("/<path>", StaticAssets::AssetHandler);
+		}
 
+		application.exception(VerifierBusyException.class, (exception, context) -> {
+			LoggerFactory.getLogger("Main").warn(context.ip() + " rejected : " + exception.getMessage());
+			context.status(429);
+		});
+		application.exception(RateLimitedException.class, (exception, context) -> {
+			context.header("Retry-After", String.valueOf(exception.getRetryAfterSeconds()));
+			context.status(429);
+		});
 		application.error(404, context -> {
 			LoggerFactory.getLogger("Main").warn(context.ip() + " want to get " + context.path() + " is not found!");
 			context.result("The resource is not found in this server.\n\n\n<small>Nginx</small>");
 		});
+		// the first requests should not pay for class loading and JIT
+		if (warmup != null) {
+			warmup.join();
+		}
 		application.start();
+
+		// training run of the CDS archive, see the cds profile
+		if (Configure.StartupMode.equals("train")) {
+			try {
+				StartupWarmup.train(Configure.HttpPort, Configure.HttpsPort);
+			} catch (Exception e) {
+				LoggerFactory.getLogger("Bootstrap").error("Training requests failed : " + e);
+				System.exit(1);
+			}
+			System.exit(0);
+		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,145 @@
+package org.izfsk.diary.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Runtime values of the <code>diary.*</code> keys read by <code>Configure</code>.
+ * <p>
+ * A key is looked up, first match wins, in : system properties (<code>-Ddiary.rootDir=...</code>), environment
+ * (<code>DIARY_ROOT_DIR</code>), the properties file named by <code>diary.config</code>, the preset named by
+ * <code>diary.preset</code>, then the default of <code>Configure</code>. Presets are the
+ * <code>/presets/NAME.properties</code> resources.
+ */
+public final class Settings {
+	private static final Settings Instance = new Settings(System.getProperties(), System.getenv());
+
+	private final Map<?, ?> systemProperties;
+	private final Map<String, String> environment;
+	private final Properties file = new Properties();
+	private final Properties preset = new Properties();
+	private final List<String> sources = new ArrayList<>();
+
+	/**
+	 * @throws UncheckedIOException     if the config file can not be read
+	 * @throws IllegalArgumentException if the preset does not exist
+	 */
+	Settings(Map<?, ?> systemProperties, Map<String, String> environment) {
+		this.systemProperties = systemProperties;
+		this.environment = environment;
+
+		var configFile = lookup("diary.config");
+		if (configFile != null) {
+			try (Reader reader = Files.newBufferedReader(Path.of(configFile), StandardCharsets.UTF_8)) {
+				file.load(reader);
+			} catch (IOException e) {
+				throw new UncheckedIOException("Unable to read the config file " + configFile, e);
+			}
+			sources.add("file " + configFile);
+		}
+		var presetName = lookup("diary.preset");
+		if (presetName != null) {
+			try (InputStream inputStream = Settings.class.getResourceAsStream("/presets/" + presetName + ".properties")) {
+				if (inputStream == null) {
+					throw new IllegalArgumentException("Unknown preset " + presetName);
+				}
+				preset.load(new InputStreamReader(inputStream, StandardCharsets.UTF_8));
+			} catch (IOException e) {
+				throw new UncheckedIOException("Unable to read the preset " + presetName, e);
+			}
+			sources.add("preset " + presetName);
+		}
+	}
+
+	public static Settings getInstance() {
+		return Instance;
+	}
+
+	/**
+	 * <code>diary.http2.maxConcurrentStreams</code> is <code>DIARY_HTTP2_MAX_CONCURRENT_STREAMS</code>.
+	 */
+	static String toEnvironmentName(String key) {
+		var name = new StringBuilder(key.length() + 8);
+		for (int i = 0; i < key.length(); i++) {
+			var c = key.charAt(i);
+			if (c == '.') {
+				name.append('_');
+			} else if (Character.isUpperCase(c)) {
+				name.append('_').append(c);
+			} else {
+				name.append(Character.toUpperCase(c));
+			}
+		}
+		return name.toString();
+	}
+
+	private String lookup(String key) {
+		var value = systemProperties.get(key);
+		if (value != null) {
+			return value.toString();
+		}
+		var environmentValue = environment.get(toEnvironmentName(key));
+		if (environmentValue != null) {
+			return environmentValue;
+		}
+		var fileValue = file.getProperty(key);
+		if (fileValue != null) {
+			return fileValue.trim();
+		}
+		var presetValue = preset.getProperty(key);
+		return presetValue == null ? null : presetValue.trim();
+	}
+
+	/**
+	 * @return the file and preset the values come from, besides system properties and environment
+	 */
+	public String getSources() {
+		return sources.isEmpty() ? "defaults" : String.join(", ", sources);
+	}
+
+	public String getString(String key, String defaultValue) {
+		var value = lookup(key);
+		return value == null ? defaultValue : value;
+	}
+
+	public boolean getBoolean(String key, boolean defaultValue) {
+		var value = lookup(key);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the value is not an integer
+	 */
+	public int getInt(String key, int defaultValue) {
+		var value = getLong(key, defaultValue);
+		if (value != (int) value) {
+			throw new IllegalArgumentException(key + " is out of range : " + value);
+		}
+		return (int) value;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the value is not an integer
+	 */
+	public long getLong(String key, long defaultValue) {
+		var value = lookup(key);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key + " is not an integer : " + value);
+		}
+	}
+}
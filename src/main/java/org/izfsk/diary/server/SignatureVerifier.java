@@ -0,0 +1,120 @@
+package org.izfsk.diary.server;
+
+import org.bouncycastle.openpgp.PGPException;
+import org.bouncycastle.openpgp.PGPPublicKey;
+import org.bouncycastle.openpgp.PGPPublicKeyRing;
+import org.bouncycastle.openpgp.PGPSignature;
+import org.pgpainless.PGPainless;
+import org.pgpainless.algorithm.KeyFlag;
+import org.pgpainless.implementation.ImplementationFactory;
+import org.pgpainless.key.OpenPgpFingerprint;
+import org.pgpainless.signature.SignatureUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Detached signature verifier for one certificate.
+ * <p>
+ * The certificate is evaluated once : its valid signing keys and their expiration date are kept,
+ * so a verification only parses the signature and runs the signature check itself
+ * instead of building a full PGPainless consumer pipeline.
+ * Signed data can also be fed incrementally, see <code>startVerification</code>.
+ */
+public final class SignatureVerifier {
+	private final String fingerprint;
+	private final Map<Long, PGPPublicKey> signingKeys = new HashMap<>();
+	private final Date signingExpirationDate;
+
+	public SignatureVerifier(PGPPublicKeyRing keyRing) {
+		fingerprint = OpenPgpFingerprint.of(keyRing).toString();
+		var keyRingInfo = PGPainless.inspectKeyRing(keyRing);
+		for (var signingKey : keyRingInfo.getSigningSubkeys()) {
+			signingKeys.put(signingKey.getKeyID(), signingKey);
+		}
+		signingExpirationDate = keyRingInfo.getExpirationDateForUse(KeyFlag.SIGN_DATA);
+	}
+
+	/**
+	 * @return fingerprint of the certificate's primary key, upper case hex
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @param message                  signed data
+	 * @param asciiArmoredSignature    ascii-armored detached signature
+	 * @return true if one of the signatures is a valid signature of message by this certificate
+	 */
+	public boolean verify(byte[] message, byte[] asciiArmoredSignature) {
+		var verification = startVerification(asciiArmoredSignature);
+		verification.update(message, 0, message.length);
+		return verification.verify();
+	}
+
+	/**
+	 * Start an incremental verification, signed data is then fed with <code>update</code>.
+	 *
+	 * @param asciiArmoredSignature    ascii-armored detached signature
+	 * @return the verification, it never verifies if no signature is usable
+	 */
+	public Verification startVerification(byte[] asciiArmoredSignature) {
+		var verification = new Verification();
+		try {
+			for (var signature : SignatureUtils.readSignatures(asciiArmoredSignature)) {
+				if (signature.getSignatureType() != PGPSignature.BINARY_DOCUMENT &&
+						signature.getSignatureType() != PGPSignature.CANONICAL_TEXT_DOCUMENT) {
+					continue;
+				}
+				var signingKey = signingKeys.get(signature.getKeyID());
+				if (signingKey == null) {
+					continue;
+				}
+				var creationTime = signature.getCreationTime();
+				if ((signingExpirationDate != null && creationTime.after(signingExpirationDate)) ||
+						! PGPainless.getPolicy().getSignatureHashAlgorithmPolicy()
+								.isAcceptable(signature.getHashAlgorithm(), creationTime)) {
+					continue;
+				}
+				signature.init(ImplementationFactory.getInstance().getPGPContentVerifierBuilderProvider(), signingKey);
+				verification.signatures.add(signature);
+			}
+		} catch (PGPException | IOException e) {
+			verification.signatures.clear();
+		}
+		return verification;
+	}
+
+	/**
+	 * One incremental verification against the usable signatures of a detached signature block.
+	 */
+	public static final class Verification {
+		private final List<PGPSignature> signatures = new ArrayList<>(1);
+
+		private Verification() {
+		}
+
+		public void update(byte[] data, int offset, int length) {
+			for (var signature : signatures) {
+				signature.update(data, offset, length);
+			}
+		}
+
+		public boolean verify() {
+			for (var signature : signatures) {
+				try {
+					if (signature.verify()) {
+						return true;
+					}
+				} catch (PGPException ignored) {
+				}
+			}
+			return false;
+		}
+	}
+}
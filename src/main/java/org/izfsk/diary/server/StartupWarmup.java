@@ -0,0 +1,146 @@
+package org.izfsk.diary.server;
+
+import org.conscrypt.Conscrypt;
+import org.pgpainless.PGPainless;
+import org.slf4j.LoggerFactory;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup work done before the connectors open, so that the first requests run at steady-state speed,
+ * see <code>Configure.StartupMode</code>.
+ * <p>
+ * Conscrypt, the target key and the user keys, and BouncyCastle are initialised in parallel, while
+ * <code>Main</code> opens the diary and loads the static assets. The verify and encrypt paths are then run
+ * on the verification pool, with a signature of a throwaway key shipped in the resources.
+ */
+public final class StartupWarmup {
+	// signed by a throwaway key, see /warmup in the resources
+	private static final byte[] SampleMessage = "warmup".getBytes(StandardCharsets.US_ASCII);
+
+	private record Sample(SignatureVerifier verifier, byte[] signature) {
+	}
+
+	private StartupWarmup() {
+	}
+
+	/**
+	 * Start initialising and warming up the crypto on background threads.
+	 *
+	 * @param iterations signatures verified and messages encrypted by the warm-up
+	 * @return completes once done, warm-up failures are logged and do not fail it
+	 */
+	public static CompletableFuture<Void> start(int iterations) {
+		var executor = Executors.newFixedThreadPool(3, runnable -> {
+			var thread = new Thread(runnable, "Warmup");
+			thread.setDaemon(true);
+			return thread;
+		});
+		var start = System.nanoTime();
+
+		// loads the native library
+		var conscrypt = CompletableFuture.runAsync(() -> {
+			try {
+				if (Security.getProvider("Conscrypt") == null) {
+					Security.addProvider(Conscrypt.newProvider());
+				}
+				SSLContext.getInstance("TLS", "Conscrypt").init(null, null, null);
+			} catch (Exception | LinkageError e) {
+				LoggerFactory.getLogger("Warmup").warn("Unable to initialise Conscrypt : " + e);
+			}
+		}, executor);
+		// parses the target key on class load
+		var keys = CompletableFuture.runAsync(() -> {
+			TargetPublicKey.getSignatureVerifier();
+			KeyRegistry.getInstance();
+		}, executor);
+		// initialises BouncyCastle
+		var sample = CompletableFuture.supplyAsync(() -> {
+			try (var publicKey = StartupWarmup.class.getResourceAsStream("/warmup/public.asc");
+			     var signature = StartupWarmup.class.getResourceAsStream("/warmup/signature.asc")) {
+				var verifier = new SignatureVerifier(PGPainless.readKeyRing().publicKeyRing(Objects.requireNonNull(publicKey)));
+				return new Sample(verifier, Objects.requireNonNull(signature).readAllBytes());
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}, executor);
+
+		return CompletableFuture.allOf(conscrypt, keys, sample)
+				.thenRunAsync(() -> exercise(sample.join(), iterations), executor)
+				.handle((ignored, throwable) -> {
+					executor.shutdown();
+					if (throwable != null) {
+						LoggerFactory.getLogger("Warmup").warn("Warm-up failed : " + throwable.getCause());
+					} else {
+						LoggerFactory.getLogger("Warmup").info("Crypto ready in " +
+								TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms, " + iterations + " warm-up iterations.");
+					}
+					return null;
+				});
+	}
+
+	/**
+	 * Verify and encrypt like <code>/auth</code> does, the verification cache is bypassed.
+	 */
+	private static void exercise(Sample sample, int iterations) {
+		try {
+			for (int i = 0; i < iterations; i++) {
+				if (! TargetPublicKey.runVerification(() -> sample.verifier().verify(SampleMessage, sample.signature()))) {
+					throw new IllegalStateException("Warm-up signature does not verify");
+				}
+				TargetPublicKey.encryptStringForClient("warmup " + i);
+			}
+		} catch (ExecutionException | InterruptedException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Training run of the CDS archive : request <code>/auth</code> over HTTP/1.1 and over HTTP/2 with TLS,
+	 * so that the classes of both paths are loaded before the JVM exits.
+	 */
+	public static void train(int httpPort, int httpsPort) throws Exception {
+		// the development certificate is not trusted and not issued for 127.0.0.1
+		System.setProperty("jdk.internal.httpclient.disableHostnameVerification", "true");
+		var sslContext = SSLContext.getInstance("TLS");
+		sslContext.init(null, new TrustManager[]{new X509TrustManager() {
+			@Override
+			public void checkClientTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			@Override
+			public void checkServerTrusted(X509Certificate[] chain, String authType) {
+			}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		}}, null);
+
+		var httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+		var http = httpClient.send(HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + httpPort + "/auth")).build(),
+				HttpResponse.BodyHandlers.discarding());
+		var http2Client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).sslContext(sslContext).build();
+		var https = http2Client.send(HttpRequest.newBuilder(URI.create("https://127.0.0.1:" + httpsPort + "/auth")).build(),
+				HttpResponse.BodyHandlers.discarding());
+		LoggerFactory.getLogger("Warmup").info("Training requests answered " + http.statusCode() + " over " + http.version() +
+				", " + https.statusCode() + " over " + https.version() + ".");
+	}
+}
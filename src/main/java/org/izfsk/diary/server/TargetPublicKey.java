@@ -3,24 +3,81 @@ package org.izfsk.diary.server;
 import org.bouncycastle.openpgp.PGPException;
 import org.bouncycastle.openpgp.PGPPublicKeyRing;
 import org.bouncycastle.util.io.Streams;
+import org.izfsk.diary.server.metrics.Metrics;
+import org.jetbrains.annotations.NotNull;
 import org.pgpainless.PGPainless;
 import org.pgpainless.algorithm.SymmetricKeyAlgorithm;
-import org.pgpainless.decryption_verification.ConsumerOptions;
-import org.pgpainless.decryption_verification.DecryptionStream;
 import org.pgpainless.encryption_signing.EncryptionOptions;
 import org.pgpainless.encryption_signing.ProducerOptions;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cached verification result.
+ *
+ * @param verified
+ * @param expireTime    <code>System.nanoTime()</code> based
+ */
+record VerifyResult(boolean verified, long expireTime) {
+}
 
 public final class TargetPublicKey {
 
 	public static final PGPPublicKeyRing targetPublicKey;
 
+	private static final SignatureVerifier signatureVerifier;
+
+	// global cap on verifications in flight, whatever route they come from
+	private static final Semaphore verifySlots = new Semaphore(Configure.VerifyMaxConcurrent);
+
+	// CPU bound, so one worker per core, and a bounded queue for back-pressure
+	private static final ThreadPoolExecutor verifyExecutor = new ThreadPoolExecutor(
+			Runtime.getRuntime().availableProcessors(),
+			Runtime.getRuntime().availableProcessors(),
+			0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(Configure.VerifyQueueSize),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(@NotNull Runnable runnable) {
+					var thread = new Thread(runnable, "Verifier-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			},
+			new ThreadPoolExecutor.AbortPolicy());
+
+	// recent results keyed by SHA-256 of (key fingerprint, message, signature)
+	private static final Map<ByteBuffer, VerifyResult> verifyResultCache = new LinkedHashMap<>(64, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<ByteBuffer, VerifyResult> eldest) {
+			return size() > Configure.VerifyCacheMaxEntries;
+		}
+	};
+
 	static {
 		try {
 			targetPublicKey = PGPainless.readKeyRing().publicKeyRing(Configure.PublicKey);
+			signatureVerifier = new SignatureVerifier(targetPublicKey);
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new RuntimeException(e);
@@ -28,18 +85,108 @@ public final class TargetPublicKey {
 	}
 
 	public static boolean verifyDetachedSignature(String message, String asciiArmoredSignature){
-		try{
-			DecryptionStream verificationStream = PGPainless.decryptAndOrVerify()
-					.onInputStream(new ByteArrayInputStream(message.getBytes()))
-					.withOptions(ConsumerOptions.get()
-							.addVerificationCert(targetPublicKey) // provide certificate for verification
-							.addVerificationOfDetachedSignatures(new ByteArrayInputStream(asciiArmoredSignature.getBytes()))
-					);
-			Streams.drain(verificationStream); // push all the data through the stream
-			verificationStream.close(); // finish verification
-			return verificationStream.getResult().isVerified();
-		} catch (PGPException | IOException e) {
+		return verifyDetachedSignature(
+				message.getBytes(StandardCharsets.UTF_8),
+				asciiArmoredSignature.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	/**
+	 * @return the verifier of the target key
+	 */
+	public static SignatureVerifier getSignatureVerifier() {
+		return signatureVerifier;
+	}
+
+	public static boolean verifyDetachedSignature(byte[] message, byte[] asciiArmoredSignature) {
+		return verifyDetachedSignature(signatureVerifier, message, asciiArmoredSignature);
+	}
+
+	/**
+	 * Verify a detached signature on the verification pool, the calling thread waits for the result.
+	 * Results are cached for <code>Configure.VerifyCacheTtlSeconds</code>.
+	 *
+	 * @param verifier                 verifier of the signer's key, see <code>KeyRegistry</code>
+	 * @param message                  signed data
+	 * @param asciiArmoredSignature    ascii-armored detached signature
+	 * @return true if signature is valid
+	 * @throws VerifierBusyException if <code>Configure.VerifyMaxConcurrent</code> verifications are in flight, or the pool and its queue are full
+	 */
+	public static boolean verifyDetachedSignature(SignatureVerifier verifier, byte[] message, byte[] asciiArmoredSignature) {
+		var cacheKey = getVerifyCacheKey(verifier.getFingerprint(), message, asciiArmoredSignature);
+		VerifyResult cached;
+		synchronized (verifyResultCache) {
+			cached = verifyResultCache.get(cacheKey);
+		}
+		if (cached != null && cached.expireTime() - System.nanoTime() > 0) {
+			return cached.verified();
+		}
+
+		boolean verified;
+		var start = System.nanoTime();
+		try {
+			verified = runVerification(() -> verifier.verify(message, asciiArmoredSignature));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			return false;
+		} catch (ExecutionException e) {
+			return false;
+		} finally {
+			Metrics.VerifySignature.recordSince(start);
+		}
+
+		var expireTime = System.nanoTime() + TimeUnit.SECONDS.toNanos(Configure.VerifyCacheTtlSeconds);
+		synchronized (verifyResultCache) {
+			verifyResultCache.put(cacheKey, new VerifyResult(verified, expireTime));
+		}
+		return verified;
+	}
+
+	/**
+	 * Start an incremental verification against the target key, to be run with <code>runVerification</code>.
+	 *
+	 * @param asciiArmoredSignature    ascii-armored detached signature
+	 * @return the verification
+	 */
+	public static SignatureVerifier.Verification startVerification(byte[] asciiArmoredSignature) {
+		return signatureVerifier.startVerification(asciiArmoredSignature);
+	}
+
+	/**
+	 * Run a verification job on the verification pool, the calling thread waits for the result.
+	 *
+	 * @param job verification job
+	 * @return job result
+	 * @throws VerifierBusyException if <code>Configure.VerifyMaxConcurrent</code> verifications are in flight, or the pool and its queue are full
+	 */
+	public static <T> T runVerification(Callable<T> job) throws ExecutionException, InterruptedException {
+		if (! verifySlots.tryAcquire()) {
+			Metrics.VerifyRejected.increment();
+			throw new VerifierBusyException();
+		}
+		try {
+			Future<T> result;
+			try {
+				result = verifyExecutor.submit(job);
+			} catch (RejectedExecutionException e) {
+				Metrics.VerifyRejected.increment();
+				throw new VerifierBusyException();
+			}
+			return result.get();
+		} finally {
+			verifySlots.release();
+		}
+	}
+
+	private static ByteBuffer getVerifyCacheKey(String fingerprint, byte[] message, byte[] asciiArmoredSignature) {
+		try {
+			var digest = MessageDigest.getInstance("SHA-256");
+			digest.update(fingerprint.getBytes(StandardCharsets.US_ASCII));
+			digest.update(message);
+			digest.update(ByteBuffer.allocate(Integer.BYTES).putInt(message.length).array());
+			digest.update(asciiArmoredSignature);
+			return ByteBuffer.wrap(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
 		}
 	}
 
@@ -0,0 +1,117 @@
+package org.izfsk.diary.server;
+
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.server.Connector;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Request;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Take the client IP of tokens and rate limits from <code>X-Forwarded-For</code>, for requests of trusted proxies.
+ * <p>
+ * A proxy appends the address it got the request from, and keeps what the client sent before it. So the header is
+ * read from the right : hops added by trusted proxies are skipped, and the first other hop is the client.
+ * Anything further left was written by the client and is ignored. Requests from other peers keep the peer address,
+ * whatever header they send.
+ */
+public final class TrustedProxyCustomizer implements HttpConfiguration.Customizer {
+	private static final Pattern IPv4 = Pattern.compile("(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})\\.(\\d{1,3})");
+
+	private final Set<InetAddress> trustedProxies;
+
+	/**
+	 * @param trustedProxies comma separated IP addresses of the proxies
+	 * @throws IllegalArgumentException if one is not an IP address
+	 */
+	public TrustedProxyCustomizer(String trustedProxies) {
+		this.trustedProxies = new HashSet<>();
+		for (var proxy : trustedProxies.split(",")) {
+			if (proxy.isBlank()) {
+				continue;
+			}
+			var address = parseAddress(proxy.strip());
+			if (address == null) {
+				throw new IllegalArgumentException("Trusted proxy is not an IP address : " + proxy.strip());
+			}
+			this.trustedProxies.add(address);
+		}
+	}
+
+	@Override
+	public void customize(Connector connector, HttpConfiguration channelConfig, Request request) {
+		var peer = request.getRemoteInetSocketAddress();
+		if (peer == null) {
+			return;
+		}
+		var client = getClientAddress(peer.getAddress(), request.getHttpFields().getValuesList(HttpHeader.X_FORWARDED_FOR));
+		if (client != null) {
+			request.setRemoteAddr(new InetSocketAddress(client, peer.getPort()));
+		}
+	}
+
+	/**
+	 * @param peer         address of the connection
+	 * @param forwardedFor <code>X-Forwarded-For</code> lines, in order
+	 * @return the client address, or null to keep the peer's
+	 */
+	InetAddress getClientAddress(InetAddress peer, List<String> forwardedFor) {
+		if (peer == null || ! trustedProxies.contains(peer)) {
+			return null;
+		}
+		var hops = new ArrayList<String>();
+		for (var line : forwardedFor) {
+			for (var hop : line.split(",")) {
+				hops.add(hop.strip());
+			}
+		}
+		InetAddress client = null;
+		for (int i = hops.size() - 1; i >= 0; i--) {
+			var hop = parseAddress(hops.get(i));
+			if (hop == null) {
+				// written by a trusted proxy, nothing further left can be believed
+				return null;
+			}
+			client = hop;
+			if (! trustedProxies.contains(hop)) {
+				break;
+			}
+		}
+		return client;
+	}
+
+	/**
+	 * Parse an IP literal, never a host name, so nothing is resolved.
+	 *
+	 * @return the address, or null if it is not an IP literal
+	 */
+	static InetAddress parseAddress(String text) {
+		if (text.startsWith("[") && text.endsWith("]")) {
+			text = text.substring(1, text.length() - 1);
+		}
+		if (! text.contains(":")) {
+			var matcher = IPv4.matcher(text);
+			if (! matcher.matches()) {
+				return null;
+			}
+			for (int i = 1; i <= 4; i++) {
+				if (Integer.parseInt(matcher.group(i)) > 255) {
+					return null;
+				}
+			}
+		}
+		try {
+			// a literal is parsed, a malformed IPv6 literal is refused without lookup
+			return InetAddress.getByName(text);
+		} catch (UnknownHostException e) {
+			return null;
+		}
+	}
+}
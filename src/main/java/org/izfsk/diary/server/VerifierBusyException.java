@@ -0,0 +1,11 @@
+package org.izfsk.diary.server;
+
+/**
+ * Thrown when the signature verification pool and its queue are full.
+ * Handlers let it propagate, it is answered with 429.
+ */
+public final class VerifierBusyException extends RuntimeException {
+	public VerifierBusyException() {
+		super("Signature verification pool is saturated");
+	}
+}
@@ -0,0 +1,226 @@
+package org.izfsk.diary.server.assets;
+
+import io.javalin.http.Context;
+import org.eclipse.jetty.server.HttpOutput;
+import org.izfsk.diary.server.utils.StringUtils;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The frontend's static files, held in memory and precompressed.
+ * <p>
+ * At startup every file under the asset dir is loaded. A <code>.br</code> or <code>.gz</code> sibling produced by
+ * the frontend build is used as is, text files without a <code>.gz</code> sibling are gzipped once.
+ * Responses carry a strong ETag per encoding, and content-hashed file names like
+ * <code>assets/Application.c341de8f.js</code> are cached for a year.
+ */
+public final class StaticAssets {
+	/**
+	 * One encoding of a file, with its own strong ETag.
+	 */
+	record Variant(String etag, String contentEncoding, byte[] body) {
+	}
+
+	/**
+	 * One file, in every encoding available.
+	 *
+	 * @param gzip   null if gzip does not make it smaller
+	 * @param brotli null if there is no <code>.br</code> sibling
+	 */
+	record Asset(String contentType, String cacheControl, Variant identity, Variant gzip, Variant brotli) {
+	}
+
+	private static final Set<String> CompressibleExtensions = Set.of("html", "js", "mjs", "css", "svg", "json", "map", "txt", "xml", "ico");
+	private static final Map<String, String> ContentTypes = Map.ofEntries(
+			Map.entry("html", "text/html; charset=utf-8"),
+			Map.entry("js", "text/javascript; charset=utf-8"),
+			Map.entry("mjs", "text/javascript; charset=utf-8"),
+			Map.entry("css", "text/css; charset=utf-8"),
+			Map.entry("svg", "image/svg+xml"),
+			Map.entry("json", "application/json"),
+			Map.entry("map", "application/json"),
+			Map.entry("txt", "text/plain; charset=utf-8"),
+			Map.entry("xml", "application/xml"),
+			Map.entry("ico", "image/x-icon"),
+			Map.entry("png", "image/png"),
+			Map.entry("jpg", "image/jpeg"),
+			Map.entry("jpeg", "image/jpeg"),
+			Map.entry("webp", "image/webp"),
+			Map.entry("woff", "font/woff"),
+			Map.entry("woff2", "font/woff2"),
+			Map.entry("wasm", "application/wasm"));
+	// name.<hex hash>.ext, as emitted by the frontend bundler
+	private static final Pattern HashedFileName = Pattern.compile(".*[.-][0-9a-fA-F]{8,}\\.[a-z0-9]+$");
+	static final String ImmutableCacheControl = "public, max-age=31536000, immutable";
+	static final String RevalidateCacheControl = "no-cache";
+
+	private static final StaticAssets staticAssets = new StaticAssets();
+
+	private final Map<String, Asset> assets = new ConcurrentHashMap<>();
+
+	StaticAssets() {
+	}
+
+	public static StaticAssets getInstance() {
+		return staticAssets;
+	}
+
+	/**
+	 * Load and compress every file under <code>assetDir</code>, replacing the current content.
+	 *
+	 * @return bytes held in memory
+	 */
+	public long load(Path assetDir) throws IOException {
+		assets.clear();
+		long bytes = 0;
+		try (var paths = Files.walk(assetDir)) {
+			for (var path : (Iterable<Path>) paths::iterator) {
+				var fileName = path.getFileName().toString();
+				if (! Files.isRegularFile(path) || fileName.endsWith(".gz") || fileName.endsWith(".br")) {
+					continue;
+				}
+				var asset = loadAsset(path);
+				var urlPath = "/" + assetDir.relativize(path).toString().replace('\\', '/');
+				assets.put(urlPath, asset);
+				bytes += asset.identity().body().length +
+						(asset.gzip() == null ? 0 : asset.gzip().body().length) +
+						(asset.brotli() == null ? 0 : asset.brotli().body().length);
+			}
+		}
+		return bytes;
+	}
+
+	public int getAssetCount() {
+		return assets.size();
+	}
+
+	static Asset loadAsset(Path path) throws IOException {
+		var fileName = path.getFileName().toString();
+		var extension = fileName.substring(fileName.lastIndexOf('.') + 1).toLowerCase();
+		var identity = Files.readAllBytes(path);
+
+		byte[] gzip = null;
+		var gzipSibling = path.resolveSibling(fileName + ".gz");
+		if (Files.isRegularFile(gzipSibling)) {
+			gzip = Files.readAllBytes(gzipSibling);
+		} else if (CompressibleExtensions.contains(extension)) {
+			gzip = gzip(identity);
+		}
+		if (gzip != null && gzip.length >= identity.length) {
+			gzip = null;
+		}
+		var brotliSibling = path.resolveSibling(fileName + ".br");
+		var brotli = Files.isRegularFile(brotliSibling) ? Files.readAllBytes(brotliSibling) : null;
+
+		var hash = sha256Hex(identity).substring(0, 32);
+		return new Asset(
+				ContentTypes.getOrDefault(extension, "application/octet-stream"),
+				HashedFileName.matcher(fileName).matches() ? ImmutableCacheControl : RevalidateCacheControl,
+				new Variant("\"" + hash + "\"", null, identity),
+				gzip == null ? null : new Variant("\"" + hash + "-gzip\"", "gzip", gzip),
+				brotli == null ? null : new Variant("\"" + hash + "-br\"", "br", brotli));
+	}
+
+	private static byte[] gzip(byte[] data) throws IOException {
+		var outputStream = new ByteArrayOutputStream(data.length / 3 + 64);
+		try (var gzipStream = new GZIPOutputStream(outputStream) {
+			{
+				def.setLevel(Deflater.BEST_COMPRESSION);
+			}
+		}) {
+			gzipStream.write(data);
+		}
+		return outputStream.toByteArray();
+	}
+
+	private static String sha256Hex(byte[] data) {
+		try {
+			return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Pick the smallest encoding of the asset the client accepts.
+	 */
+	static Variant selectVariant(String acceptEncoding, Asset asset) {
+		if (acceptEncoding == null) {
+			return asset.identity();
+		}
+		var brotli = false;
+		var gzip = false;
+		for (var coding : acceptEncoding.split(",")) {
+			var parameters = coding.split(";");
+			var name = parameters[0].trim().toLowerCase();
+			var refused = parameters.length > 1 && parameters[1].trim().matches("q=0(\\.0*)?");
+			if (name.equals("br")) {
+				brotli = ! refused;
+			} else if (name.equals("gzip")) {
+				gzip = ! refused;
+			}
+		}
+		if (brotli && asset.brotli() != null) {
+			return asset.brotli();
+		}
+		if (gzip && asset.gzip() != null) {
+			return asset.gzip();
+		}
+		return asset.identity();
+	}
+
+	/**
+	 * <h3>Static files</h3>
+	 * <p>
+	 * <code>/</code> is <code>/index.html</code>. Answers <code>If-None-Match</code> with 304.
+	 * The body bypasses Javalin's dynamic compression.
+	 *
+	 * @param context Javalin context
+	 */
+	public static void AssetHandler(@NotNull Context context) throws IOException {
+		var path = context.path().equals("/") ? "/index.html" : context.path();
+		var asset = staticAssets.assets.get(path);
+		if (asset == null) {
+			context.status(404);
+			return;
+		}
+
+		var variant = selectVariant(context.header("Accept-Encoding"), asset);
+		context.header("ETag", variant.etag());
+		context.header("Cache-Control", asset.cacheControl());
+		context.header("Vary", "Accept-Encoding");
+		if (StringUtils.matchesIfNoneMatch(context.header("If-None-Match"), variant.etag())) {
+			context.status(304);
+			return;
+		}
+
+		var body = variant.body();
+		if (variant.contentEncoding() != null) {
+			context.header("Content-Encoding", variant.contentEncoding());
+		}
+		context.status(200).contentType(asset.contentType());
+		context.res().setContentLength(body.length);
+		var outputStream = context.res().getOutputStream();
+		if (outputStream instanceof HttpOutput httpOutput) {
+			httpOutput.sendContent(ByteBuffer.wrap(body));
+		} else {
+			Channels.newChannel(outputStream).write(ByteBuffer.wrap(body));
+			outputStream.flush();
+		}
+	}
+}
@@ -1,74 +1,39 @@
 package org.izfsk.diary.server.controllers;
 
 import io.javalin.http.Context;
-import io.javalin.http.util.NaiveRateLimit;
 import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.KeyRegistry;
 import org.izfsk.diary.server.TargetPublicKey;
+import org.izfsk.diary.server.storage.Storage;
 import org.izfsk.diary.server.utils.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileLock;
-import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.LocalDate;
-import java.time.Period;
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.TimeUnit;
 
-/**
- * Token payload, outdated after 1 day.
- *
- * @param clientSideSaltString
- * @param clientIP
- * @param valid
- * @param createDate
- */
-record TokenPayload(String clientSideSaltString, String clientIP, boolean valid, LocalDate createDate) {
-	@Override
-	public String toString() {
-		return "TokenPayload{" +
-				"clientSideSaltString='" + clientSideSaltString + '\'' +
-				", clientIP='" + clientIP + '\'' +
-				", valid=" + valid +
-				", createDate=" + createDate +
-				'}';
-	}
-}
-
-/**
- * singleton class to store auth tokens
- */
-class authTokenStore {
-	private static authTokenStore store = null;
-
-	private final Map<String, TokenPayload> records;
-
-	private authTokenStore() {
-		records = new HashMap<>();
-	}
-
-	public Map<String, TokenPayload> getRecords() {
-		return records;
+public final class Auth {
+	/**
+	 * @return number of tokens which passed stage 2 and are not evicted yet
+	 */
+	public static int getActiveTokenCount() {
+		return authTokenStore.getInstance().countValid();
 	}
 
-	public static authTokenStore getInstance() {
-		if (store == null) {
-			store = new authTokenStore();
-		}
-		return store;
+	/**
+	 * @return number of stage 1 tokens waiting for stage 2
+	 */
+	public static int getPendingTokenCount() {
+		var store = authTokenStore.getInstance();
+		return store.size() - store.countValid();
 	}
-}
 
-public final class Auth {
 	public static LocalDate getSaveTargetDate(String splintedToken) {
 		var serverSideSalt = splintedToken.substring(0, 16);
-		var tokenPayload = authTokenStore.getInstance().getRecords().get(serverSideSalt);
+		var tokenPayload = authTokenStore.getInstance().get(serverSideSalt);
 		if (tokenPayload == null) {
 			LoggerFactory.getLogger("getSaveTargetDate").warn("Token not found!");
 			return null;
@@ -76,29 +41,41 @@ public final class Auth {
 		return tokenPayload.createDate();
 	}
 
-	public static boolean checkToken(String spitedToken, String peerIPAddr) {
+	/**
+	 * Validate a token and resolve its user from the same lookup, so a token evicted meanwhile is never
+	 * taken for another user.
+	 *
+	 * @return key fingerprint of the token's user, empty on a single-user server, or null if the token is not valid
+	 */
+	public static String getTokenOwner(String spitedToken, String peerIPAddr) {
 		if (spitedToken.length() != (16 + 16)) {
-			return true;
+			return null;
 		}
 		var serverSideSalt = spitedToken.substring(0, 16);
 		var clientSideSalt = spitedToken.substring(16, 32);
-		var tokenPayload = authTokenStore.getInstance().getRecords().get(serverSideSalt);
+		var tokenPayload = authTokenStore.getInstance().get(serverSideSalt);
 		if (tokenPayload == null) {
 			LoggerFactory.getLogger("checkToken").warn("Token not found!");
-			return true;
+			return null;
 		}
 		if (! tokenPayload.valid() ||
 				! tokenPayload.clientSideSaltString().equals(clientSideSalt) ||
 				! tokenPayload.clientIP().equals(peerIPAddr)) {
 			LoggerFactory.getLogger("checkToken").warn("Token is not valid!");
-			return true;
+			return null;
 		}
-		var period = Period.between(tokenPayload.createDate(), LocalDate.now());
-		if (period.getDays() > 1) {
+		if (tokenPayload.isOutdated(LocalDate.now())) {
 			LoggerFactory.getLogger("checkToken").warn("Token is outdated!");
-			return true;
+			return null;
 		}
-		return false;
+		return tokenPayload.owner();
+	}
+
+	/**
+	 * @return true if the token is not valid, see <code>getTokenOwner</code>
+	 */
+	public static boolean checkToken(String spitedToken, String peerIPAddr) {
+		return getTokenOwner(spitedToken, peerIPAddr) == null;
 	}
 
 	/**
@@ -107,32 +84,27 @@ public final class Auth {
 	 * return a random string as server side salt,
 	 * store it and peer's IP address for stage 2 auth.
 	 * <p>
-	 * check IP in store, if found, then delete old token entry.
+	 * an IP keeps at most <code>Configure.PendingTokensPerIP</code> stage 1 tokens, the oldest is deleted beyond.
 	 *
 	 * @param context Javalin context
 	 */
 	public static void Stage1AuthHandler(@NotNull Context context) {
-		NaiveRateLimit.requestPerTimeUnit(context, 10, TimeUnit.MINUTES);
-
-		// check and remove old entry
-		for (var tokenEntry : authTokenStore.getInstance().getRecords().entrySet()) {
-			if (tokenEntry.getValue().clientIP().equals(context.ip())) {
-				LoggerFactory.getLogger("Auth").warn("Delete old token " + tokenEntry.getValue());
-				authTokenStore.getInstance().getRecords().remove(tokenEntry.getKey());
-				break;
-			}
-		}
-
 		// generate and store new entry
 		String serverSideSalt = StringUtils.getRandomString(16);
-		authTokenStore.getInstance().getRecords().put(
+		if (! authTokenStore.getInstance().put(
 				serverSideSalt,
 				new TokenPayload(
 						null,
 						context.ip(),
 						false,
-						LocalDate.now())
-		);
+						LocalDate.now(),
+						Instant.now(),
+						null)
+		)) {
+			LoggerFactory.getLogger("Auth").warn("Token store is full, refuse " + context.ip());
+			context.status(503);
+			return;
+		}
 
 		// send salt
 		context.status(200).result(serverSideSalt);
@@ -149,12 +121,12 @@ public final class Auth {
 	 * signature is the header param <code>x-signature</code>
 	 * <p>
 	 * stage 2 auth will return today's journey data if succeed.
+	 * <p>
+	 * On a multi-user server, the user's key fingerprint is the header <code>x-user</code>.
 	 *
 	 * @param context Javalin context
 	 */
 	public static void Stage2AuthHandler(@NotNull Context context) {
-		NaiveRateLimit.requestPerTimeUnit(context, 10, TimeUnit.MINUTES);
-
 		// check client side salt and its length
 		String clientSideSalt = context.header("x-clientside-salt");
 		String serverSideSalt = context.header("x-serverside-salt");
@@ -165,15 +137,14 @@ public final class Auth {
 		}
 
 		// check server side salt, its length and its existence.
-		if (serverSideSalt == null || serverSideSalt.length() != 16 ||
-				! authTokenStore.getInstance().getRecords().containsKey(serverSideSalt)) {
+		var tokenContent = serverSideSalt == null ? null : authTokenStore.getInstance().get(serverSideSalt);
+		if (serverSideSalt == null || serverSideSalt.length() != 16 || tokenContent == null) {
 			LoggerFactory.getLogger("Auth").warn("Failed to auth : serverSideSalt is not exist or clientSideSalt is too short!");
 			context.status(403);
 			return;
 		}
 
 		// check this request came from the same client.
-		var tokenContent = authTokenStore.getInstance().getRecords().get(serverSideSalt);
 		if (! Objects.equals(tokenContent.clientIP(), context.ip())) {
 			LoggerFactory.getLogger("Auth").warn("Failed to auth : client IP not match!");
 			context.status(403);
@@ -187,9 +158,18 @@ public final class Auth {
 			context.status(403);
 			return;
 		}
+		var owner = KeyRegistry.getInstance().isMultiUser() ?
+				Objects.requireNonNullElse(context.header("x-user"), "").toUpperCase() : "";
+		var verifier = KeyRegistry.getInstance().getVerifier(owner);
+		if (verifier == null) {
+			LoggerFactory.getLogger("Auth").warn("Failed to auth : unknown user " + owner + "!");
+			context.status(403);
+			return;
+		}
 		if (! TargetPublicKey.verifyDetachedSignature(
-				serverSideSalt + clientSideSalt,
-				signature
+				verifier,
+				(serverSideSalt + clientSideSalt).getBytes(StandardCharsets.UTF_8),
+				signature.getBytes(StandardCharsets.US_ASCII)
 		)) {
 			LoggerFactory.getLogger("Auth").warn("Failed to auth : signature is bad!");
 			context.status(403);
@@ -197,38 +177,35 @@ public final class Auth {
 		}
 
 		// now update token body and return that day's data
-		authTokenStore.getInstance().getRecords().replace(serverSideSalt, new TokenPayload(
+		if (! authTokenStore.getInstance().replace(serverSideSalt, tokenContent, new TokenPayload(
 				clientSideSalt,
 				context.ip(),
 				true,
-				LocalDate.now()
-		));
+				LocalDate.now(),
+				Instant.now(),
+				owner
+		))) {
+			LoggerFactory.getLogger("Auth").warn("Failed to auth : token was replaced meanwhile!");
+			context.status(403);
+			return;
+		}
 		var targetDate = LocalDate.now();
-		var formattedDateString = String.join("/",
-				String.valueOf(targetDate.getYear()),
-				String.valueOf(targetDate.getMonthValue()),
-				String.valueOf(targetDate.getDayOfMonth()));
-		Path targetFilePath = Path.of(
-				Configure.DiaryRootDir, formattedDateString, "diary.asc");
-		var targetFile = new File(String.valueOf(targetFilePath));
-		if (! targetFile.exists()) {
-			context.status(200).result("null");
+		var diary = Storage.getDiary(context, owner);
+		if (diary == null) {
 			return;
 		}
-		try (var randomAccessFile = new RandomAccessFile(String.valueOf(targetFilePath), "rw")) {
-			var fileChannel = randomAccessFile.getChannel();
-			FileLock fileLock = null;
-			while (true) {
-				try {
-					fileLock = fileChannel.tryLock();
-					break;
-				} catch (Exception e) {
-					Thread.sleep(100);
-				}
+		try {
+			if (Configure.StorageAsync) {
+				context.future(() -> Storage.sendEntryAsync(context, diary, targetDate).handle((found, e) -> {
+					if (e != null) {
+						Storage.failStorage(context, e, "reading file " + targetDate);
+					}
+					return null;
+				}));
+				return;
 			}
-			context.status(200).result(new FileInputStream(targetFile));
-			fileLock.release();
-		} catch (IOException | InterruptedException e) {
+			Storage.sendEntry(context, diary, targetDate);
+		} catch (IOException e) {
 			e.printStackTrace();
 			LoggerFactory.getLogger("EntryGet").info("Error while reading file " + targetDate);
 			context.status(500);
@@ -0,0 +1,34 @@
+package org.izfsk.diary.server.controllers;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.Period;
+
+/**
+ * Token payload, outdated after 1 day.
+ *
+ * @param clientSideSaltString
+ * @param clientIP
+ * @param valid
+ * @param createDate
+ * @param createTime             used to expire stage 1 tokens never completed by stage 2
+ * @param owner                  key fingerprint of the user, empty on a single-user server, null before stage 2
+ */
+record TokenPayload(String clientSideSaltString, String clientIP, boolean valid, LocalDate createDate, Instant createTime,
+                    String owner) {
+	public boolean isOutdated(LocalDate today) {
+		return Period.between(createDate, today).getDays() > 1;
+	}
+
+	@Override
+	public String toString() {
+		return "TokenPayload{" +
+				"clientSideSaltString='" + clientSideSaltString + '\'' +
+				", clientIP='" + clientIP + '\'' +
+				", valid=" + valid +
+				", createDate=" + createDate +
+				", createTime=" + createTime +
+				", owner='" + owner + '\'' +
+				'}';
+	}
+}
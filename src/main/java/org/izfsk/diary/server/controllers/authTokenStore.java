@@ -0,0 +1,189 @@
+package org.izfsk.diary.server.controllers;
+
+import org.izfsk.diary.server.Configure;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * singleton class to store auth tokens, keyed by server side salt.
+ * <p>
+ * Clients behind one NAT or proxy share an IP, so an IP may hold several tokens : at most
+ * <code>Configure.PendingTokensPerIP</code> stage 1 tokens, the oldest is dropped beyond, and one valid token per
+ * owner, a user's new login from that IP replaces their previous token but not other users' tokens.
+ * A background sweeper evicts outdated tokens and stage 1 tokens never completed in time,
+ * and the store refuses new tokens beyond <code>Configure.TokenStoreMaxEntries</code>. A full store sweeps on the
+ * request thread at most once a second, so a flood of stage 1 requests does not pay a full sweep each.
+ */
+class authTokenStore {
+	// before the store, which reads it in its constructor
+	private static final long fullSweepIntervalNanos = TimeUnit.SECONDS.toNanos(1);
+
+	private static final authTokenStore store = new authTokenStore(Configure.TokenStoreMaxEntries,
+			Configure.PendingTokensPerIP, Duration.ofSeconds(Configure.PendingTokenTimeoutSeconds));
+
+	static {
+		var sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, "TokenSweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleWithFixedDelay(() -> {
+			var evicted = store.sweep(Instant.now());
+			if (evicted > 0) {
+				LoggerFactory.getLogger("TokenSweeper").info("Evicted " + evicted + " tokens.");
+			}
+		}, Configure.TokenSweepIntervalSeconds, Configure.TokenSweepIntervalSeconds, TimeUnit.SECONDS);
+	}
+
+	private final Map<String, TokenPayload> records = new ConcurrentHashMap<>();
+	// IP -> server side salts of its stage 1 tokens, oldest first
+	private final Map<String, ArrayDeque<String>> pendingIndex = new ConcurrentHashMap<>();
+	// IP and owner -> server side salt of the owner's valid token from that IP
+	private final Map<String, String> ownerIndex = new ConcurrentHashMap<>();
+	private final int maxEntries;
+	private final int maxPendingPerIP;
+	private final Duration pendingTimeout;
+	private final AtomicLong lastFullSweep;
+
+	authTokenStore(int maxEntries, int maxPendingPerIP, Duration pendingTimeout) {
+		this.maxEntries = maxEntries;
+		this.maxPendingPerIP = maxPendingPerIP;
+		this.pendingTimeout = pendingTimeout;
+		this.lastFullSweep = new AtomicLong(System.nanoTime() - fullSweepIntervalNanos);
+	}
+
+	public static authTokenStore getInstance() {
+		return store;
+	}
+
+	public TokenPayload get(String serverSideSalt) {
+		return records.get(serverSideSalt);
+	}
+
+	private static String ownerKey(String clientIP, String owner) {
+		return clientIP + " " + owner;
+	}
+
+	/**
+	 * Store a new stage 1 token, dropping the oldest stage 1 token of the same IP if it has too many.
+	 * Valid tokens of the IP are kept.
+	 *
+	 * @return false if the store is full
+	 */
+	public boolean put(String serverSideSalt, TokenPayload tokenPayload) {
+		if (records.size() >= maxEntries && (! sweepWhenFull() || records.size() >= maxEntries)) {
+			return false;
+		}
+		records.put(serverSideSalt, tokenPayload);
+		var dropped = new ArrayList<String>();
+		pendingIndex.compute(tokenPayload.clientIP(), (clientIP, serverSideSalts) -> {
+			if (serverSideSalts == null) {
+				serverSideSalts = new ArrayDeque<>();
+			}
+			serverSideSalts.addLast(serverSideSalt);
+			while (serverSideSalts.size() > maxPendingPerIP) {
+				dropped.add(serverSideSalts.pollFirst());
+			}
+			return serverSideSalts;
+		});
+		for (var oldServerSideSalt : dropped) {
+			// unless it passed stage 2 meanwhile
+			var oldToken = records.get(oldServerSideSalt);
+			if (oldToken != null && ! oldToken.valid() && records.remove(oldServerSideSalt, oldToken)) {
+				LoggerFactory.getLogger("Auth").warn("Delete old token " + oldToken);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Sweep a full store, unless another request did within the last second.
+	 *
+	 * @return true if tokens were evicted
+	 */
+	private boolean sweepWhenFull() {
+		var now = System.nanoTime();
+		var last = lastFullSweep.get();
+		return now - last >= fullSweepIntervalNanos && lastFullSweep.compareAndSet(last, now) && sweep(Instant.now()) > 0;
+	}
+
+	/**
+	 * Atomically replace a stage 1 token by the valid token of its owner, fails if it was changed or removed meanwhile.
+	 * The owner's previous token from the same IP is dropped.
+	 */
+	public boolean replace(String serverSideSalt, TokenPayload oldTokenPayload, TokenPayload newTokenPayload) {
+		if (! records.replace(serverSideSalt, oldTokenPayload, newTokenPayload)) {
+			return false;
+		}
+		removePending(oldTokenPayload.clientIP(), serverSideSalt);
+		var oldServerSideSalt = ownerIndex.put(ownerKey(newTokenPayload.clientIP(), newTokenPayload.owner()), serverSideSalt);
+		if (oldServerSideSalt != null && ! oldServerSideSalt.equals(serverSideSalt)) {
+			var oldToken = records.remove(oldServerSideSalt);
+			if (oldToken != null) {
+				LoggerFactory.getLogger("Auth").warn("Delete old token " + oldToken);
+			}
+		}
+		return true;
+	}
+
+	private void removePending(String clientIP, String serverSideSalt) {
+		pendingIndex.computeIfPresent(clientIP, (key, serverSideSalts) -> {
+			serverSideSalts.remove(serverSideSalt);
+			return serverSideSalts.isEmpty() ? null : serverSideSalts;
+		});
+	}
+
+	/**
+	 * Evict outdated tokens and pending stage 1 tokens older than the pending timeout.
+	 *
+	 * @return number of evicted tokens
+	 */
+	public int sweep(Instant now) {
+		var today = LocalDate.ofInstant(now, ZoneId.systemDefault());
+		var pendingDeadline = now.minus(pendingTimeout);
+		int evicted = 0;
+		for (var tokenEntry : records.entrySet()) {
+			var tokenPayload = tokenEntry.getValue();
+			var expired = tokenPayload.valid() ?
+					tokenPayload.isOutdated(today) :
+					tokenPayload.createTime().isBefore(pendingDeadline);
+			if (expired && records.remove(tokenEntry.getKey(), tokenPayload)) {
+				if (tokenPayload.valid()) {
+					ownerIndex.remove(ownerKey(tokenPayload.clientIP(), tokenPayload.owner()), tokenEntry.getKey());
+				} else {
+					removePending(tokenPayload.clientIP(), tokenEntry.getKey());
+				}
+				evicted++;
+			}
+		}
+		return evicted;
+	}
+
+	public int size() {
+		return records.size();
+	}
+
+	/**
+	 * @return number of tokens which passed stage 2
+	 */
+	public int countValid() {
+		int count = 0;
+		for (var tokenPayload : records.values()) {
+			if (tokenPayload.valid()) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -0,0 +1,72 @@
+package org.izfsk.diary.server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with fixed buckets, from 100 us to 10 s.
+ * <p>
+ * Recording is a scan over the bucket bounds and two <code>LongAdder</code> increments, it does not allocate.
+ */
+public final class LatencyHistogram {
+	private static final long[] BoundsNanos = {
+			100_000L, 250_000L, 500_000L,
+			1_000_000L, 2_500_000L, 5_000_000L,
+			10_000_000L, 25_000_000L, 50_000_000L,
+			100_000_000L, 250_000_000L, 500_000_000L,
+			1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L
+	};
+
+	// one more for +Inf
+	private final LongAdder[] buckets = new LongAdder[BoundsNanos.length + 1];
+	private final LongAdder sumNanos = new LongAdder();
+
+	public LatencyHistogram() {
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = new LongAdder();
+		}
+	}
+
+	public void record(long nanos) {
+		int i = 0;
+		while (i < BoundsNanos.length && nanos > BoundsNanos[i]) {
+			i++;
+		}
+		buckets[i].increment();
+		sumNanos.add(nanos);
+	}
+
+	/**
+	 * Record the time elapsed since <code>startNanos</code>, a <code>System.nanoTime()</code> value.
+	 */
+	public void recordSince(long startNanos) {
+		record(System.nanoTime() - startNanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (var bucket : buckets) {
+			count += bucket.sum();
+		}
+		return count;
+	}
+
+	/**
+	 * Append the cumulative <code>_bucket</code>, <code>_sum</code> and <code>_count</code> samples in seconds.
+	 *
+	 * @param name   metric name
+	 * @param labels label pairs without braces, like <code>route="/save"</code>, or empty
+	 */
+	void writeTo(StringBuilder builder, String name, String labels) {
+		var separator = labels.isEmpty() ? "" : ",";
+		long cumulative = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			cumulative += buckets[i].sum();
+			builder.append(name).append("_bucket{").append(labels).append(separator).append("le=\"")
+					.append(i < BoundsNanos.length ? Double.toString(BoundsNanos[i] / 1e9) : "+Inf")
+					.append("\"} ").append(cumulative).append('\n');
+		}
+		var braces = labels.isEmpty() ? "" : "{" + labels + "}";
+		builder.append(name).append("_sum").append(braces).append(' ').append(sumNanos.sum() / 1e9).append('\n');
+		builder.append(name).append("_count").append(braces).append(' ').append(cumulative).append('\n');
+	}
+}
@@ -0,0 +1,188 @@
+package org.izfsk.diary.server.metrics;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.KeyRegistry;
+import org.izfsk.diary.server.controllers.Auth;
+import org.izfsk.diary.server.ratelimit.RateLimits;
+import org.izfsk.diary.server.storage.AsyncStorage;
+import org.izfsk.diary.server.storage.Diaries;
+import org.izfsk.diary.server.storage.EntryCache;
+import org.izfsk.diary.server.storage.EntryEvents;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide metrics, exposed at <code>/metrics</code> in Prometheus text format.
+ * <p>
+ * Everything on the request path is a <code>LongAdder</code> or a {@link LatencyHistogram},
+ * text is only built when scraped.
+ */
+public final class Metrics {
+	// per route, whole request including async completion
+	public static final LatencyHistogram AuthGetLatency = new LatencyHistogram();
+	public static final LatencyHistogram AuthPostLatency = new LatencyHistogram();
+	public static final LatencyHistogram EntryGetLatency = new LatencyHistogram();
+	public static final LatencyHistogram SaveLatency = new LatencyHistogram();
+
+	// stages
+	public static final LatencyHistogram VerifySignature = new LatencyHistogram();
+	public static final LatencyHistogram SpoolAndVerify = new LatencyHistogram();
+	public static final LatencyHistogram LockAcquire = new LatencyHistogram();
+	public static final LatencyHistogram FileWrite = new LatencyHistogram();
+	public static final LatencyHistogram FileRead = new LatencyHistogram();
+	public static final LatencyHistogram JournalCommit = new LatencyHistogram();
+
+	public static final LongAdder BytesRead = new LongAdder();
+	public static final LongAdder BytesWritten = new LongAdder();
+	public static final LongAdder SavesElided = new LongAdder();
+	public static final LongAdder Rejected400 = new LongAdder();
+	public static final LongAdder Rejected403 = new LongAdder();
+	public static final LongAdder Rejected429 = new LongAdder();
+	public static final LongAdder VerifyRejected = new LongAdder();
+
+	/**
+	 * Request logger : record the route latency and count rejects.
+	 *
+	 * @param context         Javalin context
+	 * @param executionTimeMs as measured by Javalin
+	 */
+	public static void recordRequest(@NotNull Context context, Float executionTimeMs) {
+		var nanos = (long) (executionTimeMs * 1_000_000L);
+		// requests refused by a before handler never reached an endpoint, and are not timed
+		var route = context.handlerType() == HandlerType.BEFORE ? "" : context.endpointHandlerPath();
+		switch (route) {
+			case "/auth" -> (context.method().name().equals("GET") ? AuthGetLatency : AuthPostLatency).record(nanos);
+			case "/data/<date>" -> EntryGetLatency.record(nanos);
+			case "/save" -> SaveLatency.record(nanos);
+			default -> {
+			}
+		}
+		switch (context.statusCode()) {
+			case 400 -> Rejected400.increment();
+			case 403 -> Rejected403.increment();
+			case 429 -> Rejected429.increment();
+			default -> {
+			}
+		}
+	}
+
+	/**
+	 * <h3>Metrics in Prometheus text format</h3>
+	 * <p>
+	 * Only answered to requests with header <code>Authorization: Bearer &lt;Configure.MetricsToken&gt;</code>, or to
+	 * anyone if <code>Configure.MetricsPublic</code>. Not the peer address : behind a reverse proxy on the same host,
+	 * every request comes from loopback.
+	 *
+	 * @param context Javalin context
+	 */
+	public static void MetricsHandler(@NotNull Context context) {
+		if (! Configure.MetricsPublic && ! isMetricsToken(context.header("Authorization"))) {
+			LoggerFactory.getLogger("Metrics").warn(context.ip() + " is not allowed to read metrics.");
+			context.status(403);
+			return;
+		}
+		var builder = new StringBuilder(8 * 1024);
+		histogram(builder, "diary_http_request_duration_seconds", "Request latency by route.");
+		AuthGetLatency.writeTo(builder, "diary_http_request_duration_seconds", "method=\"GET\",route=\"/auth\"");
+		AuthPostLatency.writeTo(builder, "diary_http_request_duration_seconds", "method=\"POST\",route=\"/auth\"");
+		EntryGetLatency.writeTo(builder, "diary_http_request_duration_seconds", "method=\"GET\",route=\"/data/<date>\"");
+		SaveLatency.writeTo(builder, "diary_http_request_duration_seconds", "method=\"POST\",route=\"/save\"");
+
+		histogram(builder, "diary_verify_signature_seconds", "verifyDetachedSignature, including the pool queue.");
+		VerifySignature.writeTo(builder, "diary_verify_signature_seconds", "");
+		histogram(builder, "diary_save_spool_verify_seconds", "Streaming a save body to its spool file while verifying it.");
+		SpoolAndVerify.writeTo(builder, "diary_save_spool_verify_seconds", "");
+		histogram(builder, "diary_entry_lock_acquire_seconds", "Waiting for an entry lock stripe.");
+		LockAcquire.writeTo(builder, "diary_entry_lock_acquire_seconds", "");
+		histogram(builder, "diary_entry_write_seconds", "Publishing an entry to the entry store.");
+		FileWrite.writeTo(builder, "diary_entry_write_seconds", "");
+		histogram(builder, "diary_entry_read_seconds", "Reading an entry on the storage pool, including its queue.");
+		FileRead.writeTo(builder, "diary_entry_read_seconds", "");
+		histogram(builder, "diary_journal_commit_seconds", "Writing and forcing one journal batch.");
+		JournalCommit.writeTo(builder, "diary_journal_commit_seconds", "");
+
+		counter(builder, "diary_entry_read_bytes_total", "Entry bytes read from the entry store.", BytesRead.sum());
+		counter(builder, "diary_entry_written_bytes_total", "Entry bytes written to the entry store or journal.", BytesWritten.sum());
+		counter(builder, "diary_saves_elided_total", "Verified saves identical to the stored entry, not written.", SavesElided.sum());
+		builder.append("# HELP diary_http_rejected_total Requests answered 400, 403 or 429.\n")
+				.append("# TYPE diary_http_rejected_total counter\n")
+				.append("diary_http_rejected_total{status=\"400\"} ").append(Rejected400.sum()).append('\n')
+				.append("diary_http_rejected_total{status=\"403\"} ").append(Rejected403.sum()).append('\n')
+				.append("diary_http_rejected_total{status=\"429\"} ").append(Rejected429.sum()).append('\n');
+		builder.append("# HELP diary_rate_limit_decisions_total Rate limiter decisions per route budget.\n")
+				.append("# TYPE diary_rate_limit_decisions_total counter\n");
+		for (var limiter : RateLimits.getLimiters()) {
+			builder.append("diary_rate_limit_decisions_total{route=\"").append(limiter.getName()).append("\",decision=\"allowed\"} ").append(limiter.getAllowed()).append('\n')
+					.append("diary_rate_limit_decisions_total{route=\"").append(limiter.getName()).append("\",decision=\"limited\"} ").append(limiter.getLimited()).append('\n');
+		}
+		builder.append("# HELP diary_rate_limit_clients Clients with a partly drained bucket, per route budget.\n")
+				.append("# TYPE diary_rate_limit_clients gauge\n");
+		for (var limiter : RateLimits.getLimiters()) {
+			builder.append("diary_rate_limit_clients{route=\"").append(limiter.getName()).append("\"} ").append(limiter.getKeyCount()).append('\n');
+		}
+		builder.append("# HELP diary_rate_limit_overflow_total Decisions on the bucket shared by clients past the tracked maximum, per route budget.\n")
+				.append("# TYPE diary_rate_limit_overflow_total counter\n");
+		for (var limiter : RateLimits.getLimiters()) {
+			builder.append("diary_rate_limit_overflow_total{route=\"").append(limiter.getName()).append("\"} ").append(limiter.getOverflowed()).append('\n');
+		}
+		counter(builder, "diary_verify_rejected_total", "Signature verifications refused because too many were in flight.", VerifyRejected.sum());
+		builder.append("# HELP diary_auth_tokens Tokens in the token store.\n")
+				.append("# TYPE diary_auth_tokens gauge\n")
+				.append("diary_auth_tokens{state=\"active\"} ").append(Auth.getActiveTokenCount()).append('\n')
+				.append("diary_auth_tokens{state=\"pending\"} ").append(Auth.getPendingTokenCount()).append('\n');
+
+		gauge(builder, "diary_storage_queue", "Entry reads and saves waiting for a storage thread.", AsyncStorage.getQueueLength());
+		gauge(builder, "diary_open_diaries", "Diaries in memory, one per active user on a multi-user server.", Diaries.getInstance().getOpenCount());
+		gauge(builder, "diary_key_cache_entries", "Parsed public keys in memory.", KeyRegistry.getInstance().getCachedKeyCount());
+
+		var events = EntryEvents.getInstance();
+		gauge(builder, "diary_event_subscribers", "Open /events streams.", events.getSubscriberCount());
+		counter(builder, "diary_events_sent_total", "Entry change events written to subscribers.", events.getSent());
+		counter(builder, "diary_event_resets_total", "Subscribers told to reset after their buffer overflowed.", events.getResets());
+
+		var cache = EntryCache.getInstance();
+		counter(builder, "diary_entry_cache_hits_total", "Entry cache hits.", cache.getHits());
+		counter(builder, "diary_entry_cache_misses_total", "Entry cache misses.", cache.getMisses());
+		counter(builder, "diary_entry_cache_evictions_total", "Entries evicted to stay within the cache budget.", cache.getEvictions());
+		gauge(builder, "diary_entry_cache_entries", "Entries in the cache.", cache.getEntryCount());
+		gauge(builder, "diary_entry_cache_bytes", "Entry cache size.", cache.getCurrentBytes());
+		gauge(builder, "diary_entry_cache_max_bytes", "Entry cache budget.", cache.getMaxBytes());
+
+		context.status(200)
+				.contentType("text/plain; version=0.0.4; charset=utf-8")
+				.result(builder.toString());
+	}
+
+	private static void histogram(StringBuilder builder, String name, String help) {
+		builder.append("# HELP ").append(name).append(' ').append(help).append('\n')
+				.append("# TYPE ").append(name).append(" histogram\n");
+	}
+
+	private static void counter(StringBuilder builder, String name, String help, long value) {
+		builder.append("# HELP ").append(name).append(' ').append(help).append('\n')
+				.append("# TYPE ").append(name).append(" counter\n")
+				.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder builder, String name, String help, long value) {
+		builder.append("# HELP ").append(name).append(' ').append(help).append('\n')
+				.append("# TYPE ").append(name).append(" gauge\n")
+				.append(name).append(' ').append(value).append('\n');
+	}
+
+	private static boolean isMetricsToken(String authorization) {
+		if (Configure.MetricsToken == null || Configure.MetricsToken.isEmpty() || authorization == null) {
+			return false;
+		}
+		// constant time, the token is a password
+		return MessageDigest.isEqual(
+				("Bearer " + Configure.MetricsToken).getBytes(StandardCharsets.UTF_8),
+				authorization.getBytes(StandardCharsets.UTF_8));
+	}
+}
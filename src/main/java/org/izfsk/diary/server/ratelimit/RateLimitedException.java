@@ -0,0 +1,18 @@
+package org.izfsk.diary.server.ratelimit;
+
+/**
+ * Thrown when a client exhausts a route budget.
+ * Handlers let it propagate, it is answered with 429 and <code>Retry-After</code>.
+ */
+public final class RateLimitedException extends RuntimeException {
+	private final long retryAfterSeconds;
+
+	public RateLimitedException(String route, long retryAfterSeconds) {
+		super("Rate limit of " + route + " exceeded");
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	public long getRetryAfterSeconds() {
+		return retryAfterSeconds;
+	}
+}
@@ -0,0 +1,125 @@
+package org.izfsk.diary.server.ratelimit;
+
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-client token buckets for one route budget.
+ * <p>
+ * A bucket is a single <code>AtomicLong</code> holding the time at which it is full again (the generic cell rate
+ * algorithm), so a check is one map lookup and one CAS, with no lock. A full bucket carries no information, so
+ * <code>sweep</code> drops them and the table only holds clients seen within the last burst period.
+ * It never grows beyond <code>maxKeys</code> : while it is full, new clients share one overflow bucket, so one of
+ * them can starve the others. Requests charged to it are counted apart and the first one is logged.
+ */
+public final class RateLimiter {
+	private final String name;
+	private final long nanosPerToken;
+	private final long burstNanos;
+	private final int maxKeys;
+	private final Map<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+	private final AtomicLong overflowBucket = new AtomicLong(System.nanoTime());
+	private final LongAdder allowed = new LongAdder();
+	private final LongAdder limited = new LongAdder();
+	private final LongAdder overflowed = new LongAdder();
+	// set while the table is full, so the overflow is logged once per episode
+	private final AtomicBoolean overflowing = new AtomicBoolean();
+
+	/**
+	 * @param name            route name, for logs and metrics
+	 * @param burst           bucket capacity, in tokens
+	 * @param tokensPerMinute refill rate
+	 * @param maxKeys         max clients tracked
+	 */
+	public RateLimiter(String name, int burst, int tokensPerMinute, int maxKeys) {
+		if (burst <= 0 || tokensPerMinute <= 0) {
+			throw new IllegalArgumentException("Rate limit " + name + " must have a positive burst and rate");
+		}
+		this.name = name;
+		this.nanosPerToken = TimeUnit.MINUTES.toNanos(1) / tokensPerMinute;
+		this.burstNanos = nanosPerToken * burst;
+		this.maxKeys = maxKeys;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Take tokens from a client's bucket. A cost above the burst is charged as the whole burst,
+	 * so a large request is delayed until the bucket is full rather than refused forever.
+	 *
+	 * @param key  client key
+	 * @param cost tokens to take
+	 * @param now  <code>System.nanoTime()</code>
+	 * @return 0 if the tokens were taken, otherwise the nanoseconds until they are available
+	 */
+	public long tryAcquire(String key, double cost, long now) {
+		var bucket = buckets.get(key);
+		if (bucket == null) {
+			if (buckets.size() < maxKeys) {
+				bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+			} else {
+				bucket = overflowBucket;
+				overflowed.increment();
+				if (overflowing.compareAndSet(false, true)) {
+					LoggerFactory.getLogger("RateLimit").warn("The " + name + " budget tracks " + maxKeys +
+							" clients, new clients share one bucket");
+				}
+			}
+		}
+		var increment = Math.min((long) (cost * nanosPerToken), burstNanos);
+		while (true) {
+			var fullAt = bucket.get();
+			var newFullAt = (fullAt - now > 0 ? fullAt : now) + increment;
+			var excess = newFullAt - now - burstNanos;
+			if (excess > 0) {
+				limited.increment();
+				return excess;
+			}
+			if (bucket.compareAndSet(fullAt, newFullAt)) {
+				allowed.increment();
+				return 0;
+			}
+		}
+	}
+
+	/**
+	 * Drop the full buckets. A request racing with the removal may go uncharged, which only errs on the side of
+	 * letting one request through.
+	 *
+	 * @return number of clients still tracked
+	 */
+	public int sweep(long now) {
+		buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+		if (buckets.size() < maxKeys) {
+			overflowing.set(false);
+		}
+		return buckets.size();
+	}
+
+	public int getKeyCount() {
+		return buckets.size();
+	}
+
+	public long getAllowed() {
+		return allowed.sum();
+	}
+
+	public long getLimited() {
+		return limited.sum();
+	}
+
+	/**
+	 * @return decisions taken on the shared overflow bucket, also counted as allowed or limited
+	 */
+	public long getOverflowed() {
+		return overflowed.sum();
+	}
+}
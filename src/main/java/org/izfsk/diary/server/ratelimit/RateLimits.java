@@ -0,0 +1,98 @@
+package org.izfsk.diary.server.ratelimit;
+
+import io.javalin.http.Context;
+import io.javalin.http.HandlerType;
+import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.utils.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-IP budgets of the api routes, checked by before handlers so a refused request costs no parsing.
+ * <p>
+ * <code>/auth</code> stays at the former 10 logins a minute : only the second stage, which verifies a signature, is
+ * charged, the first one only hands out a salt and is bounded by <code>Configure.PendingTokensPerIP</code>. <code>/save</code> costs one token plus one per
+ * <code>Configure.SaveCostBytes</code> of declared body, so large uploads drain the budget faster.
+ * Reads cost one token, a range one more per 10 days. <code>/export</code> is a read costing as much as the
+ * largest range, <code>/import</code> a save.
+ */
+public final class RateLimits {
+	public static final RateLimiter AuthLimiter = new RateLimiter("auth", Configure.AuthRateBurst, Configure.AuthRatePerMinute, Configure.RateLimiterMaxKeys);
+	public static final RateLimiter SaveLimiter = new RateLimiter("save", Configure.SaveRateBurst, Configure.SaveRatePerMinute, Configure.RateLimiterMaxKeys);
+	public static final RateLimiter ReadLimiter = new RateLimiter("read", Configure.ReadRateBurst, Configure.ReadRatePerMinute, Configure.RateLimiterMaxKeys);
+
+	static {
+		var sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, "RateLimitSweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleWithFixedDelay(() -> {
+			var now = System.nanoTime();
+			for (var limiter : getLimiters()) {
+				limiter.sweep(now);
+			}
+		}, 10, 10, TimeUnit.SECONDS);
+	}
+
+	private RateLimits() {
+	}
+
+	public static List<RateLimiter> getLimiters() {
+		return List.of(AuthLimiter, SaveLimiter, ReadLimiter);
+	}
+
+	public static void AuthLimitHandler(@NotNull Context context) {
+		if (context.method() != HandlerType.POST) {
+			return;
+		}
+		limit(context, AuthLimiter, 1);
+	}
+
+	public static void SaveLimitHandler(@NotNull Context context) {
+		// an unknown length is charged as the largest accepted body
+		var length = context.req().getContentLengthLong();
+		limit(context, SaveLimiter, 1 + (length < 0 ? Configure.SaveMaxBodyBytes : length) / Configure.SaveCostBytes);
+	}
+
+	public static void ReadLimitHandler(@NotNull Context context) {
+		var cost = 1;
+		if (context.path().equals("/export")) {
+			// a whole diary, charged as the largest range
+			cost += Configure.RangeMaxDays / 10;
+		} else if (context.path().equals("/sync")) {
+			// a page, charged as a range of as many days, a malformed limit is charged one token
+			var limit = Configure.SyncPageEntries;
+			try {
+				limit = Integer.parseInt(Objects.requireNonNullElse(context.queryParam("limit"), Integer.toString(limit)));
+			} catch (NumberFormatException ignored) {
+			}
+			cost += Math.min(Math.max(limit, 0), Configure.SyncMaxPageEntries) / 10;
+		} else if (context.path().equals("/data/range")) {
+			// a malformed range is charged one token, the handler answers 400
+			var fromDate = StringUtils.parseDate(Objects.requireNonNullElse(context.queryParam("from"), ""));
+			var toDate = StringUtils.parseDate(Objects.requireNonNullElse(context.queryParam("to"), ""));
+			if (fromDate != null && toDate != null && ! toDate.isBefore(fromDate)) {
+				cost += (int) Math.min(ChronoUnit.DAYS.between(fromDate, toDate), Configure.RangeMaxDays) / 10;
+			}
+		}
+		limit(context, ReadLimiter, cost);
+	}
+
+	private static void limit(Context context, RateLimiter limiter, double cost) {
+		if (! Configure.RateLimitEnabled) {
+			return;
+		}
+		var waitNanos = limiter.tryAcquire(context.ip(), cost, System.nanoTime());
+		if (waitNanos > 0) {
+			LoggerFactory.getLogger("RateLimit").warn(context.ip() + " exceeded the " + limiter.getName() + " budget, cost " + cost);
+			throw new RateLimitedException(limiter.getName(), Math.max(1, TimeUnit.NANOSECONDS.toSeconds(waitNanos + 999_999_999)));
+		}
+	}
+}
@@ -0,0 +1,153 @@
+package org.izfsk.diary.server.storage;
+
+import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.metrics.Metrics;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Entry reads and saves off the request threads, see <code>Configure.StorageAsync</code>.
+ * <p>
+ * Entries are read through <code>AsynchronousFileChannel</code>s bound to a fixed pool of
+ * <code>Configure.StorageThreads</code>, and handlers hand the returned futures to <code>context.future</code>,
+ * so a request waiting on the disk holds no Jetty thread. The JDK runs the reads of such a channel on its pool,
+ * blocking, so the pool bounds the disk operations in flight : a slow disk shows up as its queue, not as a
+ * starved connector. Opening a file stays on the caller, it only touches metadata.
+ */
+public final class AsyncStorage {
+	// bounded queue for back-pressure, a full queue is answered 503
+	private static final ThreadPoolExecutor executor = new ThreadPoolExecutor(
+			Configure.StorageThreads,
+			Configure.StorageThreads,
+			0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<>(Configure.StorageQueueSize),
+			new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(@NotNull Runnable runnable) {
+					var thread = new Thread(runnable, "Storage-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			},
+			new ThreadPoolExecutor.AbortPolicy());
+
+	private AsyncStorage() {
+	}
+
+	/**
+	 * Bytes of an entry in a channel opened for a single read, which closes it.
+	 */
+	public record Region(AsynchronousFileChannel channel, long position, int length) {
+	}
+
+	/**
+	 * @return the storage pool, for blocking storage work such as publishing a save
+	 */
+	static Executor getExecutor() {
+		return executor;
+	}
+
+	/**
+	 * @return reads and saves waiting for a storage thread
+	 */
+	public static int getQueueLength() {
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Open a whole file. The channel keeps reading the opened file after it is replaced by a rename.
+	 *
+	 * @return the region, or null if the file does not exist
+	 */
+	static Region openFile(Path path) throws IOException {
+		AsynchronousFileChannel channel;
+		try {
+			channel = AsynchronousFileChannel.open(path, Set.of(StandardOpenOption.READ), executor);
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		try {
+			var size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Entry too large : " + path);
+			}
+			return new Region(channel, 0, (int) size);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Open part of a file, such as a record of a segment.
+	 */
+	static Region openRegion(Path path, long position, int length) throws IOException {
+		return new Region(AsynchronousFileChannel.open(path, Set.of(StandardOpenOption.READ), executor), position, length);
+	}
+
+	/**
+	 * Read a region into a heap buffer on the storage pool, then close its channel.
+	 *
+	 * @return the bytes, or an exception : <code>RejectedExecutionException</code> if the pool queue is full
+	 */
+	static CompletableFuture<ByteBuffer> read(Region region) {
+		var start = System.nanoTime();
+		var buffer = ByteBuffer.allocate(region.length());
+		var future = new CompletableFuture<ByteBuffer>();
+		readFrom(region, buffer, future);
+		return future.whenComplete((bytes, e) -> {
+			try {
+				region.channel().close();
+			} catch (IOException ignored) {
+			}
+			if (e == null) {
+				Metrics.FileRead.recordSince(start);
+				Metrics.BytesRead.add(bytes.remaining());
+			}
+		});
+	}
+
+	private static void readFrom(Region region, ByteBuffer buffer, CompletableFuture<ByteBuffer> future) {
+		if (! buffer.hasRemaining()) {
+			future.complete(buffer.flip());
+			return;
+		}
+		try {
+			region.channel().read(buffer, region.position() + buffer.position(), null, new CompletionHandler<Integer, Void>() {
+				@Override
+				public void completed(Integer count, Void attachment) {
+					if (count < 0) {
+						future.completeExceptionally(new EOFException("Entry shorter than expected"));
+					} else {
+						readFrom(region, buffer, future);
+					}
+				}
+
+				@Override
+				public void failed(Throwable e, Void attachment) {
+					future.completeExceptionally(e);
+				}
+			});
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+	}
+}
@@ -0,0 +1,244 @@
+package org.izfsk.diary.server.storage;
+
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.KeyRegistry;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * singleton registry of open diaries.
+ * <p>
+ * A single-user server opens its diary at <code>Configure.DiaryRootDir</code> at startup and keeps it.
+ * A multi-user server (<code>Configure.KeyDir</code>) opens a user's diary on the user's first request, a file tree
+ * at <code>DiaryRootDir/users/XX/FINGERPRINT</code> sharded by the first fingerprint byte, and closes it once idle
+ * for <code>Configure.DiaryIdleSeconds</code> with no request using it. Index and versions are rebuilt from disk when it is reopened,
+ * so memory follows active users rather than registered ones.
+ */
+public final class Diaries {
+	private static final Diaries diaries = new Diaries(TimeUnit.SECONDS.toNanos(Configure.DiaryIdleSeconds));
+
+	static {
+		var sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, "DiarySweeper");
+			thread.setDaemon(true);
+			return thread;
+		});
+		sweeper.scheduleWithFixedDelay(() -> {
+			var closed = diaries.sweep(System.nanoTime());
+			if (closed > 0) {
+				LoggerFactory.getLogger("DiarySweeper").info("Closed " + closed + " idle diaries.");
+			}
+		}, 60, 60, TimeUnit.SECONDS);
+		// a change log not checkpointed is recovered by recording every day again
+		Runtime.getRuntime().addShutdownHook(new Thread(diaries::checkpoint, "DiaryCheckpoint"));
+	}
+
+	// request attribute holding the diary the request acquired
+	static final String RequestAttribute = Diary.class.getName();
+
+	/**
+	 * Release the diary a request acquired through <code>Storage.getDiary</code> once its response is complete,
+	 * also after an asynchronous or failed response. Added as a bean to every connector.
+	 */
+	public static final HttpChannel.Listener ReleaseListener = new HttpChannel.Listener() {
+		@Override
+		public void onComplete(Request request) {
+			if (request.getAttribute(RequestAttribute) instanceof Diary diary) {
+				request.removeAttribute(RequestAttribute);
+				diaries.release(diary);
+			}
+		}
+	};
+
+	private final long idleNanos;
+	private volatile Diary defaultDiary = null;
+	private final Map<String, Diary> userDiaries = new ConcurrentHashMap<>();
+
+	Diaries(long idleNanos) {
+		this.idleNanos = idleNanos;
+	}
+
+	public static Diaries getInstance() {
+		return diaries;
+	}
+
+	/**
+	 * Open the single-user diary on first call : open the <code>Configure.StorageEngine</code> store,
+	 * open the change log, replay the journal if <code>Configure.JournalFsyncPolicy</code>, then build the index
+	 * and recover the change log if needed.
+	 *
+	 * @return the single-user diary
+	 * @throws IllegalArgumentException if the storage engine or the fsync policy is unknown
+	 */
+	public synchronized Diary openDefault() throws IOException {
+		if (defaultDiary != null) {
+			return defaultDiary;
+		}
+		var rootDir = Path.of(Configure.DiaryRootDir);
+		var diary = new Diary("", openStore(rootDir));
+		// before the journal, its replayed saves are changes too
+		diary.setChanges(new EntryChanges(rootDir));
+
+		// replay the journal, before the index sees the entries
+		if (Configure.JournalFsyncPolicy != null) {
+			var journal = new EntryJournal(rootDir, diary,
+					EntryJournal.FsyncPolicy.valueOf(Configure.JournalFsyncPolicy.toUpperCase()),
+					Configure.JournalFsyncIntervalMillis,
+					Configure.JournalCheckpointBytes);
+			diary.setJournal(journal);
+			LoggerFactory.getLogger("Diaries").info("Replayed " + journal.getReplayedCount() + " journal records, fsync policy " + Configure.JournalFsyncPolicy + ".");
+		}
+
+		var entryCount = diary.getIndex().rebuild(diary.getStore());
+		var versionCount = diary.getVersions().load(diary.getStore());
+		LoggerFactory.getLogger("Diaries").info("Indexed " + entryCount + " entries, loaded " + versionCount + " entry versions.");
+		var recoveredCount = diary.getChanges().recover(diary.getIndex());
+		if (recoveredCount > 0) {
+			LoggerFactory.getLogger("Diaries").info("Recorded " + recoveredCount + " entries in the change log, clients resync them.");
+		}
+		defaultDiary = diary;
+		return diary;
+	}
+
+	private static EntryStore openStore(Path rootDir) throws IOException {
+		switch (Configure.StorageEngine) {
+			case "tree":
+				return new FileTreeStore(rootDir);
+			case "segment":
+				var segmentStore = new SegmentStore(rootDir.resolve("segments"),
+						Configure.SegmentMaxBytes, Configure.SegmentCompactionLiveRatio);
+				segmentStore.startCompaction(Configure.SegmentCompactionIntervalSeconds);
+				return segmentStore;
+			default:
+				throw new IllegalArgumentException("Unknown storage engine " + Configure.StorageEngine);
+		}
+	}
+
+	/**
+	 * Get a diary for a request, opening it if needed. A user's diary is opened with the tree engine and without
+	 * journal. It is not closed until the request calls <code>release</code>.
+	 *
+	 * @param owner key fingerprint, empty for the single-user diary
+	 * @return the diary
+	 * @throws IllegalArgumentException if the single-user diary is asked for on a multi-user server
+	 */
+	public Diary acquire(String owner) throws IOException {
+		if (owner.isEmpty()) {
+			// never the shared root of a multi-user server
+			if (KeyRegistry.getInstance().isMultiUser()) {
+				throw new IllegalArgumentException("No single-user diary on a multi-user server");
+			}
+			var diary = defaultDiary;
+			if (diary == null) {
+				diary = openDefault();
+			}
+			diary.acquire();
+			return diary;
+		}
+		try {
+			// acquired under the map's lock, so the sweeper never closes a diary just handed out
+			return userDiaries.compute(owner, (key, diary) -> {
+				if (diary == null) {
+					diary = openUserDiary(key);
+				}
+				diary.acquire();
+				return diary;
+			});
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
+
+	/**
+	 * A request is done with a diary returned by <code>acquire</code>.
+	 */
+	public void release(Diary diary) {
+		diary.release();
+	}
+
+	private static Diary openUserDiary(String owner) {
+		try {
+			var rootDir = getUserRootDir(owner);
+			Files.createDirectories(rootDir);
+			var diary = new Diary(owner, new FileTreeStore(rootDir));
+			diary.setChanges(new EntryChanges(rootDir));
+			diary.getIndex().rebuild(diary.getStore());
+			diary.getVersions().load(diary.getStore());
+			diary.getChanges().recover(diary.getIndex());
+			return diary;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * @param owner key fingerprint
+	 * @return root of the user's file tree
+	 */
+	static Path getUserRootDir(String owner) {
+		return Path.of(Configure.DiaryRootDir, "users", owner.substring(0, 2), owner);
+	}
+
+	/**
+	 * Close user diaries no request uses, and none did for the idle time.
+	 *
+	 * @return number of closed diaries
+	 */
+	int sweep(long now) {
+		var closed = 0;
+		for (var owner : userDiaries.keySet()) {
+			var removed = new Diary[1];
+			userDiaries.computeIfPresent(owner, (key, diary) -> {
+				if (diary.getUsers() > 0 || now - diary.getLastUsed() < idleNanos) {
+					return diary;
+				}
+				removed[0] = diary;
+				return null;
+			});
+			if (removed[0] != null) {
+				try {
+					removed[0].close();
+				} catch (IOException e) {
+					LoggerFactory.getLogger("Diaries").warn("Unable to close diary " + owner + " : " + e.getMessage());
+				}
+				closed++;
+			}
+		}
+		return closed;
+	}
+
+	/**
+	 * Checkpoint the change log of every open diary, at shutdown.
+	 */
+	void checkpoint() {
+		var open = new ArrayList<>(userDiaries.values());
+		if (defaultDiary != null) {
+			open.add(defaultDiary);
+		}
+		for (var diary : open) {
+			try {
+				diary.getChanges().checkpoint();
+			} catch (IOException e) {
+				LoggerFactory.getLogger("Diaries").warn("Unable to checkpoint the change log of " + diary.getOwner() + " : " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return number of diaries in memory
+	 */
+	public int getOpenCount() {
+		return userDiaries.size() + (defaultDiary == null ? 0 : 1);
+	}
+}
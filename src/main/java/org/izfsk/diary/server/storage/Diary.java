@@ -0,0 +1,147 @@
+package org.izfsk.diary.server.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * One user's diary : its entry store, the in-memory index and versions of its entries, its change log,
+ * and its journal if any.
+ * <p>
+ * Entries are cached in the shared <code>EntryCache</code> and locked with the shared <code>EntryLocks</code>,
+ * both keyed by the owner, see {@link Diaries}.
+ */
+public final class Diary implements Closeable {
+	private final String owner;
+	private final EntryStore store;
+	private final EntryIndex index = new EntryIndex();
+	private final EntryVersions versions = new EntryVersions();
+	// set once while opening, before the diary is shared
+	private EntryJournal journal = null;
+	private EntryChanges changes = null;
+	private volatile long lastUsed = System.nanoTime();
+	// requests using the diary, it is not closed while any is running
+	private final AtomicInteger users = new AtomicInteger();
+
+	/**
+	 * @param owner key fingerprint, empty for the single-user diary
+	 * @param store entry store, closed along with the diary
+	 */
+	Diary(String owner, EntryStore store) {
+		this.owner = owner;
+		this.store = store;
+	}
+
+	/**
+	 * @return key fingerprint of the owner, empty for the single-user diary
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	public EntryStore getStore() {
+		return store;
+	}
+
+	public EntryIndex getIndex() {
+		return index;
+	}
+
+	public EntryVersions getVersions() {
+		return versions;
+	}
+
+	/**
+	 * @return the journal, or null if saves are written directly
+	 */
+	public EntryJournal getJournal() {
+		return journal;
+	}
+
+	void setJournal(EntryJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * @return the change log, null only for diaries built without one
+	 */
+	public EntryChanges getChanges() {
+		return changes;
+	}
+
+	void setChanges(EntryChanges changes) {
+		this.changes = changes;
+	}
+
+	public ReadWriteLock getLock(LocalDate date) {
+		return EntryLocks.getLock(owner, date);
+	}
+
+	/**
+	 * Make a written entry visible, must be called under the day's write lock.
+	 * The cache is updated before the version, see <code>EntryVersions</code>, then the change is logged
+	 * and subscribers are notified.
+	 *
+	 * @param bytes entry bytes to cache, or null if the entry is too large for the cache
+	 * @param etag  version of the entry
+	 */
+	void publish(LocalDate date, byte[] bytes, String etag) {
+		if (bytes != null) {
+			EntryCache.getInstance().put(owner, date, bytes);
+		} else {
+			EntryCache.getInstance().invalidate(owner, date);
+		}
+		versions.put(date, etag);
+		index.add(date);
+		if (changes != null) {
+			changes.record(date);
+		}
+		EntryEvents.getInstance().publish(owner, date, etag);
+	}
+
+	void touch() {
+		lastUsed = System.nanoTime();
+	}
+
+	void acquire() {
+		touch();
+		users.incrementAndGet();
+	}
+
+	void release() {
+		// idle from now on, not since it was acquired
+		touch();
+		users.decrementAndGet();
+	}
+
+	int getUsers() {
+		return users.get();
+	}
+
+	long getLastUsed() {
+		return lastUsed;
+	}
+
+	/**
+	 * Close the journal, waiting for queued saves, then the change log and the store.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			if (journal != null) {
+				journal.close();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		try {
+			if (changes != null) {
+				changes.close();
+			}
+		} finally {
+			store.close();
+		}
+	}
+}
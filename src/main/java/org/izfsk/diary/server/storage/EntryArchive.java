@@ -0,0 +1,688 @@
+package org.izfsk.diary.server.storage;
+
+import io.javalin.http.Context;
+import org.eclipse.jetty.server.HttpOutput;
+import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.KeyRegistry;
+import org.izfsk.diary.server.SignatureVerifier;
+import org.izfsk.diary.server.TargetPublicKey;
+import org.izfsk.diary.server.controllers.Auth;
+import org.izfsk.diary.server.metrics.Metrics;
+import org.izfsk.diary.server.utils.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Whole-diary backup and restore, as a tar or zip archive of <code>YYYY/M/D/diary.asc</code> files,
+ * the layout of the <code>tree</code> engine.
+ * <p>
+ * Both directions stream : export holds one entry at a time, import spools one entry at a time.
+ * Entries are exported in date order, so an interrupted export resumes from the day after the last complete file.
+ */
+public final class EntryArchive {
+	private static final int TarBlockBytes = 512;
+	private static final byte[] ZeroBlock = new byte[TarBlockBytes];
+	private static final byte[] ArmorHeader = "-----BEGIN PGP MESSAGE-----".getBytes(StandardCharsets.US_ASCII);
+	private static final Pattern EntryName = Pattern.compile("(?:\\./)?(\\d{4}/\\d{1,2}/\\d{1,2})/diary\\.asc");
+
+	private EntryArchive() {
+	}
+
+	/**
+	 * The archive could not be read, as opposed to a write that failed.
+	 */
+	static final class MalformedArchiveException extends IOException {
+		MalformedArchiveException(IOException cause) {
+			super(cause.getMessage(), cause);
+		}
+	}
+
+	/**
+	 * Sequential reader of an archive, skipping everything but regular files.
+	 */
+	interface ArchiveReader {
+		/**
+		 * @return name of the next file, whose content is then read from <code>getContent</code>, or null at the end
+		 */
+		String nextEntry() throws IOException;
+
+		InputStream getContent();
+	}
+
+	/**
+	 * Write the ustar header of a regular file.
+	 */
+	static void writeTarHeader(OutputStream outputStream, String name, long size, long mtimeSeconds) throws IOException {
+		var header = new byte[TarBlockBytes];
+		var nameBytes = name.getBytes(StandardCharsets.US_ASCII);
+		if (nameBytes.length > 100) {
+			throw new IOException("Name too long for tar : " + name);
+		}
+		System.arraycopy(nameBytes, 0, header, 0, nameBytes.length);
+		putOctal(header, 100, 8, 0644);
+		putOctal(header, 108, 8, 0);
+		putOctal(header, 116, 8, 0);
+		putOctal(header, 124, 12, size);
+		putOctal(header, 136, 12, mtimeSeconds);
+		header[156] = '0';
+		System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+		// checksum of the header with its own field as spaces
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		long checksum = 0;
+		for (var b : header) {
+			checksum += b & 0xff;
+		}
+		putOctal(header, 148, 7, checksum);
+		outputStream.write(header);
+	}
+
+	private static void putOctal(byte[] header, int offset, int length, long value) {
+		// zero-padded digits and a NUL
+		var digits = Long.toOctalString(value);
+		if (digits.length() > length - 1) {
+			throw new IllegalArgumentException("Value too large for a tar header : " + value);
+		}
+		var padded = "0".repeat(length - 1 - digits.length()) + digits;
+		System.arraycopy(padded.getBytes(StandardCharsets.US_ASCII), 0, header, offset, length - 1);
+		header[offset + length - 1] = 0;
+	}
+
+	static void writeTarPadding(OutputStream outputStream, long size) throws IOException {
+		var padding = (int) ((TarBlockBytes - size % TarBlockBytes) % TarBlockBytes);
+		outputStream.write(ZeroBlock, 0, padding);
+	}
+
+	static void writeTarEnd(OutputStream outputStream) throws IOException {
+		outputStream.write(ZeroBlock);
+		outputStream.write(ZeroBlock);
+	}
+
+	/**
+	 * Reader of ustar and GNU tar streams, pax and long name records are skipped along with their file.
+	 */
+	static final class TarReader implements ArchiveReader {
+		private final InputStream inputStream;
+		private long remaining = 0;
+		private long padding = 0;
+		private final InputStream content = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				var b = inputStream.read();
+				if (b < 0) {
+					throw new EOFException("Truncated tar entry");
+				}
+				remaining--;
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				if (remaining <= 0) {
+					return -1;
+				}
+				var count = inputStream.read(buffer, offset, (int) Math.min(length, remaining));
+				if (count < 0) {
+					throw new EOFException("Truncated tar entry");
+				}
+				remaining -= count;
+				return count;
+			}
+		};
+
+		TarReader(InputStream inputStream) {
+			this.inputStream = inputStream;
+		}
+
+		@Override
+		public String nextEntry() throws IOException {
+			while (true) {
+				skipFully(remaining + padding);
+				var header = inputStream.readNBytes(TarBlockBytes);
+				if (header.length < TarBlockBytes || Arrays.equals(header, ZeroBlock)) {
+					return null;
+				}
+				var size = parseOctal(header, 124, 12);
+				remaining = size;
+				padding = (TarBlockBytes - size % TarBlockBytes) % TarBlockBytes;
+				var type = header[156];
+				if (type != '0' && type != 0) {
+					continue;
+				}
+				var name = parseString(header, 0, 100);
+				if (new String(header, 257, 5, StandardCharsets.US_ASCII).equals("ustar")) {
+					var prefix = parseString(header, 345, 155);
+					if (! prefix.isEmpty()) {
+						name = prefix + "/" + name;
+					}
+				}
+				return name;
+			}
+		}
+
+		@Override
+		public InputStream getContent() {
+			return content;
+		}
+
+		private void skipFully(long count) throws IOException {
+			inputStream.skipNBytes(count);
+		}
+
+		private static String parseString(byte[] header, int offset, int length) {
+			var end = offset;
+			while (end < offset + length && header[end] != 0) {
+				end++;
+			}
+			return new String(header, offset, end - offset, StandardCharsets.US_ASCII);
+		}
+
+		private static long parseOctal(byte[] header, int offset, int length) throws IOException {
+			var text = parseString(header, offset, length).trim();
+			try {
+				return text.isEmpty() ? 0 : Long.parseLong(text, 8);
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed tar header");
+			}
+		}
+	}
+
+	/**
+	 * Reader of zip streams, directories are skipped.
+	 */
+	static final class ZipReader implements ArchiveReader {
+		private final ZipInputStream zipInputStream;
+
+		ZipReader(InputStream inputStream) {
+			this.zipInputStream = new ZipInputStream(inputStream, StandardCharsets.UTF_8);
+		}
+
+		@Override
+		public String nextEntry() throws IOException {
+			ZipEntry entry;
+			do {
+				entry = zipInputStream.getNextEntry();
+			} while (entry != null && entry.isDirectory());
+			return entry == null ? null : entry.getName();
+		}
+
+		@Override
+		public InputStream getContent() {
+			return zipInputStream;
+		}
+	}
+
+	/**
+	 * Open a tar or zip stream, told apart by the zip local header signature.
+	 */
+	static ArchiveReader openArchive(InputStream inputStream) throws IOException {
+		var buffered = new BufferedInputStream(inputStream, 64 * 1024);
+		buffered.mark(4);
+		var magic = buffered.readNBytes(4);
+		buffered.reset();
+		if (magic.length == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 3 && magic[3] == 4) {
+			return new ZipReader(buffered);
+		}
+		return new TarReader(buffered);
+	}
+
+	/**
+	 * @param name file name in the archive
+	 * @return the day of a <code>YYYY/M/D/diary.asc</code> name, or null for any other file
+	 */
+	static LocalDate parseEntryName(String name) {
+		var matcher = EntryName.matcher(name);
+		return matcher.matches() ? StringUtils.parseDate(matcher.group(1)) : null;
+	}
+
+	static String toEntryName(LocalDate date) {
+		return StringUtils.formatDate(date) + "/diary.asc";
+	}
+
+	/**
+	 * Read an entry for export, from the entry cache if it is there. Entries read from the store are not cached,
+	 * so an export does not evict the entries in use.
+	 */
+	private static ByteBuffer readForExport(Diary diary, LocalDate date) throws IOException {
+		var cached = EntryCache.getInstance().peek(diary.getOwner(), date);
+		if (cached != null) {
+			return ByteBuffer.wrap(cached);
+		}
+		var lock = diary.getLock(date).readLock();
+		EntryLocks.lock(lock);
+		try {
+			return Storage.readStoredEntry(diary, date);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * <h3>Diary export</h3>
+	 * <p>
+	 * verify user and stream every entry as an archive of <code>YYYY/M/D/diary.asc</code> files, in date order.
+	 * query params : <code>format</code> : <code>tar</code> (default) or <code>zip</code>,
+	 * <code>from</code> : YYYY/MM/DD, first day to export, to resume an interrupted export.
+	 * <p>
+	 * Tar bodies are handed to Jetty as is, memory-mapped entries included. Zip entries are deflated.
+	 * <p>
+	 * headers : <code>x-token</code> : serverSideSalt+clientSideSalt
+	 *
+	 * @param context Javalin context
+	 */
+	public static void ExportHandler(@NotNull Context context) {
+		var format = context.queryParamAsClass("format", String.class).getOrDefault("tar");
+		var fromParam = context.queryParam("from");
+		var fromDate = fromParam == null ? LocalDate.of(2001, 1, 1) : StringUtils.parseDate(fromParam);
+		if (fromDate == null || ! (format.equals("tar") || format.equals("zip"))) {
+			LoggerFactory.getLogger("Export").warn("Invalid export " + format + " from " + fromParam);
+			context.status(400);
+			return;
+		}
+
+		// check user
+		var token = context.header("x-token");
+		var owner = token == null ? null : Auth.getTokenOwner(token, context.ip());
+		if (owner == null) {
+			LoggerFactory.getLogger("Export").warn("Invalid token." + (token == null ? "(Token is NULL)" : ""));
+			context.status(403);
+			return;
+		}
+		var diary = Storage.getDiary(context, owner);
+		if (diary == null) {
+			return;
+		}
+
+		context.status(200)
+				.contentType(format.equals("tar") ? "application/x-tar" : "application/zip")
+				.header("Content-Disposition", "attachment; filename=\"diary." + format + "\"");
+		var count = 0;
+		var date = diary.getIndex().nextDate(fromDate);
+		try {
+			var outputStream = context.res().getOutputStream();
+			if (format.equals("zip")) {
+				try (var zipOutputStream = new ZipOutputStream(outputStream, StandardCharsets.UTF_8)) {
+					var channel = Channels.newChannel(zipOutputStream);
+					for (; date != null; date = diary.getIndex().nextDate(date.plusDays(1))) {
+						var buffer = readForExport(diary, date);
+						if (buffer == null) {
+							continue;
+						}
+						zipOutputStream.putNextEntry(new ZipEntry(toEntryName(date)));
+						channel.write(buffer);
+						zipOutputStream.closeEntry();
+						count++;
+					}
+				}
+			} else {
+				var mtime = System.currentTimeMillis() / 1000;
+				for (; date != null; date = diary.getIndex().nextDate(date.plusDays(1))) {
+					var buffer = readForExport(diary, date);
+					if (buffer == null) {
+						continue;
+					}
+					var size = buffer.remaining();
+					writeTarHeader(outputStream, toEntryName(date), size, mtime);
+					if (outputStream instanceof HttpOutput httpOutput) {
+						// large buffers are written straight from the mapping, without a copy to the heap
+						httpOutput.write(buffer);
+					} else {
+						Channels.newChannel(outputStream).write(buffer);
+					}
+					writeTarPadding(outputStream, size);
+					count++;
+				}
+				writeTarEnd(outputStream);
+			}
+			outputStream.flush();
+			LoggerFactory.getLogger("Export").info("Exported " + count + " entries as " + format + ".");
+		} catch (IOException e) {
+			// the client resumes from the day after its last complete file
+			LoggerFactory.getLogger("Export").warn("Export interrupted at " + date + " after " + count + " entries : " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Import counters, reported to the client.
+	 */
+	static final class ImportResult {
+		int imported = 0;
+		int unchanged = 0;
+		int skipped = 0;
+
+		@Override
+		public String toString() {
+			return "imported " + imported + "\n" +
+					"unchanged " + unchanged + "\n" +
+					"skipped " + skipped + "\n";
+		}
+	}
+
+	/**
+	 * Load every <code>YYYY/M/D/diary.asc</code> file of an archive into a diary, replacing existing entries.
+	 * Files are written in batches of <code>batchEntries</code>, each made durable before the next one starts :
+	 * by the journal if the diary has one, else by forcing the store. Other files, files larger than
+	 * <code>Configure.SaveMaxBodyBytes</code> and files not holding an armored PGP message are skipped.
+	 *
+	 * @throws MalformedArchiveException if the archive is malformed, the batches before are durable
+	 * @throws IOException if a write fails, the batches before are durable
+	 */
+	static void importArchive(Diary diary, InputStream inputStream, int batchEntries, ImportResult result) throws IOException {
+		ArchiveReader reader;
+		try {
+			reader = openArchive(inputStream);
+		} catch (IOException e) {
+			throw new MalformedArchiveException(e);
+		}
+		var batch = new ArrayList<CompletableFuture<Void>>();
+		var pending = 0;
+		try {
+			String name;
+			while ((name = nextEntry(reader)) != null) {
+				var date = parseEntryName(name);
+				if (date == null) {
+					LoggerFactory.getLogger("Import").warn("Skipping " + name + ", not an entry.");
+					result.skipped++;
+					continue;
+				}
+
+				var spoolFile = diary.getStore().createSpoolFile(date);
+				var digest = EntryVersions.newDigest();
+				try {
+					if (! spool(reader.getContent(), spoolFile, digest)) {
+						LoggerFactory.getLogger("Import").warn("Skipping " + name + ", not an armored PGP message or too large.");
+						Storage.deleteQuietly(spoolFile);
+						result.skipped++;
+						continue;
+					}
+					var etag = EntryVersions.toEtag(digest.digest());
+					if (Storage.isEntryUnchanged(diary, date, etag)) {
+						Storage.deleteQuietly(spoolFile);
+						result.unchanged++;
+						continue;
+					}
+					diary.getStore().setSpoolVersion(spoolFile, etag);
+					batch.add(write(diary, date, spoolFile, etag));
+				} catch (IOException | RuntimeException e) {
+					Storage.deleteQuietly(spoolFile);
+					throw e;
+				}
+				pending++;
+				if (pending == batchEntries) {
+					awaitBatch(diary, batch);
+					result.imported += pending;
+					pending = 0;
+				}
+			}
+		} catch (IOException | RuntimeException e) {
+			// keep what was written, the error that stopped the import is the one reported
+			try {
+				awaitBatch(diary, batch);
+				result.imported += pending;
+			} catch (IOException flushError) {
+				e.addSuppressed(flushError);
+			}
+			throw e;
+		}
+		awaitBatch(diary, batch);
+		result.imported += pending;
+	}
+
+	private static String nextEntry(ArchiveReader reader) throws MalformedArchiveException {
+		try {
+			return reader.nextEntry();
+		} catch (IOException e) {
+			throw new MalformedArchiveException(e);
+		}
+	}
+
+	private static int read(InputStream content, byte[] buffer, int offset, int length) throws MalformedArchiveException {
+		try {
+			return content.read(buffer, offset, length);
+		} catch (IOException e) {
+			throw new MalformedArchiveException(e);
+		}
+	}
+
+	/**
+	 * Copy an entry to its spool file.
+	 *
+	 * @return false if it is too large or does not start like an armored PGP message
+	 */
+	private static boolean spool(InputStream content, Path spoolFile, MessageDigest digest) throws IOException {
+		var buffer = new byte[64 * 1024];
+		long size = 0;
+		try (var outputStream = Files.newOutputStream(spoolFile)) {
+			int count;
+			while ((count = read(content, buffer, 0, buffer.length)) >= 0) {
+				// make sure the first read is long enough to check the header
+				while (size == 0 && count < ArmorHeader.length) {
+					var more = read(content, buffer, count, ArmorHeader.length - count);
+					if (more < 0) {
+						break;
+					}
+					count += more;
+				}
+				if (size == 0 && ! Arrays.equals(buffer, 0, ArmorHeader.length, ArmorHeader, 0, ArmorHeader.length)) {
+					return false;
+				}
+				size += count;
+				if (size > Configure.SaveMaxBodyBytes) {
+					return false;
+				}
+				digest.update(buffer, 0, count);
+				outputStream.write(buffer, 0, count);
+			}
+		}
+		return size > 0;
+	}
+
+	/**
+	 * Write one entry, the returned future completes once the journal made it durable.
+	 * Without journal the entry is visible once this returns, and durable after the store is forced.
+	 */
+	private static CompletableFuture<Void> write(Diary diary, LocalDate date, Path spoolFile, String etag) throws IOException {
+		var journal = diary.getJournal();
+		if (journal != null) {
+			return journal.append(date, spoolFile, etag);
+		}
+		var size = Files.size(spoolFile);
+		var lock = diary.getLock(date).writeLock();
+		EntryLocks.lock(lock);
+		try {
+			var start = System.nanoTime();
+			diary.getStore().write(date, spoolFile);
+			Metrics.FileWrite.recordSince(start);
+			Metrics.BytesWritten.add(size);
+			// not cached, an import must not evict the entries in use
+			diary.publish(date, null, etag);
+		} finally {
+			lock.unlock();
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	private static void awaitBatch(Diary diary, ArrayList<CompletableFuture<Void>> batch) throws IOException {
+		if (batch.isEmpty()) {
+			return;
+		}
+		try {
+			CompletableFuture.allOf(batch.toArray(new CompletableFuture[0])).get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the journal");
+		} catch (ExecutionException e) {
+			throw new IOException("Unable to write a batch : " + e.getCause().getMessage(), e.getCause());
+		} finally {
+			batch.clear();
+		}
+		if (diary.getJournal() == null) {
+			diary.getStore().force();
+		}
+	}
+
+	/**
+	 * Copy an archive to a file, feeding its raw bytes to the verification of its detached signature,
+	 * which is then checked with <code>verification.verify()</code>.
+	 *
+	 * @throws EntryUpload.TooLargeException if the archive is larger than maxBytes
+	 * @throws MalformedArchiveException     if the body could not be read
+	 */
+	static void spoolArchive(InputStream body, Path archiveFile,
+							 SignatureVerifier.Verification verification, long maxBytes) throws IOException {
+		var buffer = new byte[64 * 1024];
+		long total = 0;
+		try (var outputStream = Files.newOutputStream(archiveFile)) {
+			int count;
+			while ((count = read(body, buffer, 0, buffer.length)) >= 0) {
+				total += count;
+				if (total > maxBytes) {
+					throw new EntryUpload.TooLargeException(maxBytes);
+				}
+				verification.update(buffer, 0, count);
+				outputStream.write(buffer, 0, count);
+			}
+		}
+	}
+
+	/**
+	 * <h3>Diary import</h3>
+	 * <p>
+	 * verify user and load a tar or zip archive as produced by <code>/export</code>, streamed as the request body.
+	 * Entries replace the existing ones of the same day, and are durable once the response is sent.
+	 * Like a save, the import must be signed : the body is spooled to a temp file while its detached signature
+	 * is computed, and nothing is imported unless it is valid. The body is read on the request thread, only the
+	 * final signature check runs on the verification pool, so a slow upload never holds a verifier.
+	 * Answers a plain text summary, <code>imported</code>, <code>unchanged</code> and <code>skipped</code> counts,
+	 * with 200, 400 if the archive is malformed or 500 if a write failed, the batches before the error being imported.
+	 * <p>
+	 * headers : <code>x-token</code> : serverSideSalt+clientSideSalt
+	 * <code>x-signature</code> : Base64 of a gpg detached signature of the archive
+	 *
+	 * @param context Javalin context
+	 */
+	public static void ImportHandler(@NotNull Context context) {
+		// check user
+		var token = context.header("x-token");
+		var owner = token == null ? null : Auth.getTokenOwner(token, context.ip());
+		if (owner == null) {
+			LoggerFactory.getLogger("Import").warn("Invalid token." + (token == null ? "(Token is NULL)" : ""));
+			context.status(403);
+			return;
+		}
+		var diary = Storage.getDiary(context, owner);
+		if (diary == null) {
+			return;
+		}
+		var verifier = KeyRegistry.getInstance().getVerifier(diary.getOwner());
+		if (verifier == null) {
+			LoggerFactory.getLogger("Import").warn("Key of " + diary.getOwner() + " is not registered any more.");
+			context.status(403);
+			return;
+		}
+
+		// check body size before reading it
+		if (context.req().getContentLengthLong() > Configure.ImportMaxBodyBytes) {
+			LoggerFactory.getLogger("Import").warn("Body is too large : " + context.req().getContentLengthLong());
+			context.status(413);
+			return;
+		}
+		var signatureHeader = context.header("x-signature");
+		byte[] signature = null;
+		if (signatureHeader != null && signatureHeader.length() <= Configure.SignatureMaxBytes) {
+			try {
+				signature = Base64.getDecoder().decode(signatureHeader);
+			} catch (IllegalArgumentException ignored) {
+			}
+		}
+		if (signature == null) {
+			LoggerFactory.getLogger("Import").warn("Missing or malformed signature.");
+			context.status(400);
+			return;
+		}
+
+		// spool and verify in one pass on the verification pool, the archive is only read if valid
+		Path archiveFile;
+		try {
+			archiveFile = Files.createTempFile("diary-import", ".archive");
+		} catch (IOException e) {
+			e.printStackTrace();
+			context.status(500);
+			return;
+		}
+		try {
+			boolean verified;
+			try {
+				var verification = verifier.startVerification(signature);
+				spoolArchive(context.req().getInputStream(), archiveFile, verification, Configure.ImportMaxBodyBytes);
+				verified = TargetPublicKey.runVerification(verification::verify);
+			} catch (EntryUpload.TooLargeException e) {
+				LoggerFactory.getLogger("Import").warn(e.getMessage());
+				context.status(413);
+				return;
+			} catch (MalformedArchiveException e) {
+				LoggerFactory.getLogger("Import").warn("Unable to read body : " + e.getMessage());
+				context.status(400);
+				return;
+			} catch (IOException e) {
+				LoggerFactory.getLogger("Import").warn("Unable to spool archive : " + e.getMessage());
+				context.status(500);
+				return;
+			} catch (ExecutionException e) {
+				LoggerFactory.getLogger("Import").warn("Unable to verify archive : " + e.getCause());
+				context.status(500);
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				context.status(500);
+				return;
+			}
+			if (! verified) {
+				LoggerFactory.getLogger("Import").warn("Verify signature failed!");
+				context.status(403);
+				return;
+			}
+
+			var result = new ImportResult();
+			try (var inputStream = Files.newInputStream(archiveFile)) {
+				importArchive(diary, inputStream, Configure.ImportBatchEntries, result);
+				context.status(200);
+			} catch (MalformedArchiveException e) {
+				LoggerFactory.getLogger("Import").warn("Malformed archive : " + e.getMessage());
+				context.status(400);
+			} catch (IOException e) {
+				LoggerFactory.getLogger("Import").warn("Import failed : " + e.getMessage());
+				context.status(500);
+			}
+			LoggerFactory.getLogger("Import").info(result.toString().replace('\n', ' ').trim());
+			context.result(result.toString());
+		} finally {
+			Storage.deleteQuietly(archiveFile);
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package org.izfsk.diary.server.storage;
+
+import org.izfsk.diary.server.Configure;
+
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * singleton LRU cache of entry bytes keyed by diary owner and date, bounded by a byte budget shared by every diary.
+ * <p>
+ * Filled by the read path, updated by the save path.
+ */
+public final class EntryCache {
+	private record Key(String owner, LocalDate date) {
+	}
+
+	private static final EntryCache cache = new EntryCache(Configure.EntryCacheMaxBytes);
+
+	private final long maxBytes;
+	private final LinkedHashMap<Key, byte[]> entries;
+	private long currentBytes = 0;
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+
+	EntryCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		// access-ordered, so the eldest entry is the least recently used one
+		this.entries = new LinkedHashMap<>(64, 0.75f, true);
+	}
+
+	public static EntryCache getInstance() {
+		return cache;
+	}
+
+	/**
+	 * @param owner diary owner, see <code>Diary.getOwner</code>
+	 * @param date  entry date
+	 * @return cached entry bytes, or null on miss
+	 */
+	public synchronized byte[] get(String owner, LocalDate date) {
+		var data = entries.get(new Key(owner, date));
+		if (data == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return data;
+	}
+
+	/**
+	 * Look an entry up without counting a hit or a miss, for bulk reads like export and sync
+	 * which would skew the counters the cache is sized by.
+	 *
+	 * @param owner diary owner, see <code>Diary.getOwner</code>
+	 * @param date  entry date
+	 * @return cached entry bytes, or null if not cached
+	 */
+	public synchronized byte[] peek(String owner, LocalDate date) {
+		return entries.get(new Key(owner, date));
+	}
+
+	/**
+	 * Insert or replace an entry, evicting least recently used entries to stay within budget.
+	 * Entries larger than the whole budget are not cached.
+	 *
+	 * @param owner diary owner, see <code>Diary.getOwner</code>
+	 * @param date  entry date
+	 * @param data  entry bytes, must not be modified afterwards
+	 */
+	public synchronized void put(String owner, LocalDate date, byte[] data) {
+		invalidate(owner, date);
+		if (data.length > maxBytes) {
+			return;
+		}
+		entries.put(new Key(owner, date), data);
+		currentBytes += data.length;
+
+		Iterator<Map.Entry<Key, byte[]>> iterator = entries.entrySet().iterator();
+		while (currentBytes > maxBytes && iterator.hasNext()) {
+			var eldest = iterator.next();
+			currentBytes -= eldest.getValue().length;
+			iterator.remove();
+			evictions.increment();
+		}
+	}
+
+	public synchronized void invalidate(String owner, LocalDate date) {
+		var old = entries.remove(new Key(owner, date));
+		if (old != null) {
+			currentBytes -= old.length;
+		}
+	}
+
+	public synchronized int getEntryCount() {
+		return entries.size();
+	}
+
+	public synchronized long getCurrentBytes() {
+		return currentBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+}
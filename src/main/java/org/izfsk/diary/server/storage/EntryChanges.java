@@ -0,0 +1,392 @@
+package org.izfsk.diary.server.storage;
+
+import io.javalin.http.Context;
+import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.controllers.Auth;
+import org.izfsk.diary.server.utils.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Change log of one diary : every published entry gets the next sequence number, so a client holding the last
+ * sequence it saw fetches only what changed since, see <code>GET /sync</code>.
+ * <p>
+ * Only the latest change of a day matters, so the log keeps one sequence per day in memory. On disk,
+ * <code>changes/changes.log</code> is an append-only list of 12-byte records, sequence then epoch day, rewritten
+ * with the live records once most of them are stale. Records are not forced one by one : sequence numbers are
+ * reserved by blocks of <code>Configure.ChangeSequenceBlock</code> in the forced <code>changes/sequence</code>
+ * file, so none is handed out twice, and the file is marked clean by a checkpoint at shutdown. A log opened
+ * without that mark may have lost records, so every day is recorded again and clients resync once.
+ */
+public final class EntryChanges implements Closeable {
+	private static final int RecordBytes = 12;
+
+	private final Path logPath;
+	private final Path sequencePath;
+	// the log is new, or records may have been lost since the last checkpoint
+	private final boolean needsRecovery;
+	// latest change of each day, by sequence, read without lock
+	private final ConcurrentSkipListMap<Long, LocalDate> bySequence = new ConcurrentSkipListMap<>();
+	private final Map<LocalDate, Long> byDate = new HashMap<>();
+	private final ByteBuffer recordBuffer = ByteBuffer.allocate(RecordBytes);
+	private FileChannel channel;
+	private long fileRecords = 0;
+	private long reservedSequence = 0;
+	private volatile long lastSequence = 0;
+
+	/**
+	 * Open the change log under <code>rootDir/changes</code>, creating it if needed.
+	 * A record cut by a crash at the end of the log is dropped.
+	 */
+	EntryChanges(Path rootDir) throws IOException {
+		var changesDir = rootDir.resolve("changes");
+		Files.createDirectories(changesDir);
+		logPath = changesDir.resolve("changes.log");
+		sequencePath = changesDir.resolve("sequence");
+		var clean = false;
+		if (Files.exists(sequencePath)) {
+			// "N" while numbers up to N may be handed out, "N clean" after a checkpoint
+			var fields = Files.readString(sequencePath, StandardCharsets.US_ASCII).trim().split(" ");
+			try {
+				reservedSequence = Long.parseLong(fields[0]);
+			} catch (NumberFormatException e) {
+				throw new IOException("Malformed sequence file " + sequencePath);
+			}
+			clean = fields.length == 2 && fields[1].equals("clean");
+		}
+		needsRecovery = ! clean || Files.notExists(logPath);
+		channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		var size = channel.size();
+		if (size % RecordBytes != 0) {
+			LoggerFactory.getLogger("EntryChanges").warn("Dropping a truncated record at the end of " + logPath);
+			size -= size % RecordBytes;
+			channel.truncate(size);
+		}
+		var buffer = ByteBuffer.allocate(RecordBytes * 4096);
+		var position = 0L;
+		while (position < size) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), size - position));
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position + buffer.position()) < 0) {
+					throw new IOException("Unexpected end of " + logPath);
+				}
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				var sequence = buffer.getLong();
+				put(sequence, LocalDate.ofEpochDay(buffer.getInt()));
+				lastSequence = Math.max(lastSequence, sequence);
+				fileRecords++;
+			}
+			position += buffer.limit();
+		}
+		channel.position(size);
+		// numbers up to the reserved one may have been handed out before a crash
+		lastSequence = Math.max(lastSequence, reservedSequence);
+	}
+
+	/**
+	 * @return sequence of the latest change, 0 before the first one
+	 */
+	public long getLastSequence() {
+		return lastSequence;
+	}
+
+	/**
+	 * @return number of days in the log
+	 */
+	public synchronized int size() {
+		return byDate.size();
+	}
+
+	/**
+	 * Record a change of that day, called by <code>Diary.publish</code> under the day's write lock.
+	 * A failed write is logged : the change is served until a restart.
+	 *
+	 * @return sequence number of the change
+	 */
+	synchronized long record(LocalDate date) {
+		var sequence = lastSequence + 1;
+		try {
+			if (sequence > reservedSequence) {
+				reserve(sequence + Configure.ChangeSequenceBlock - 1, false);
+			}
+			recordBuffer.clear();
+			recordBuffer.putLong(sequence).putInt((int) date.toEpochDay()).flip();
+			while (recordBuffer.hasRemaining()) {
+				channel.write(recordBuffer);
+			}
+			fileRecords++;
+		} catch (IOException e) {
+			LoggerFactory.getLogger("EntryChanges").error("Unable to log the change of " + date + " : " + e.getMessage());
+		}
+		// the new sequence is visible before the old one goes, a reader may see the day twice but never miss it
+		put(sequence, date);
+		lastSequence = sequence;
+
+		if (fileRecords > 2L * byDate.size() + Configure.ChangeSequenceBlock) {
+			try {
+				compact();
+			} catch (IOException e) {
+				LoggerFactory.getLogger("EntryChanges").error("Unable to compact " + logPath + " : " + e.getMessage());
+			}
+		}
+		return sequence;
+	}
+
+	/**
+	 * Record every indexed day in date order if the log is new or was not checkpointed, so no change is missed.
+	 * Called once the index is built.
+	 *
+	 * @return number of days recorded
+	 */
+	synchronized int recover(EntryIndex index) {
+		if (! needsRecovery) {
+			return 0;
+		}
+		var count = 0;
+		for (var date = index.nextDate(LocalDate.of(2001, 1, 1)); date != null; date = index.nextDate(date.plusDays(1))) {
+			record(date);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * One change : the latest sequence of a day.
+	 */
+	public record Change(long sequence, LocalDate date) {
+	}
+
+	/**
+	 * Changes up to a sequence read from <code>getLastSequence</code> are all in the log, so the range is complete.
+	 * A day changed again meanwhile has moved past <code>until</code>.
+	 *
+	 * @param since sequence the client has seen, exclusive
+	 * @param until last sequence, inclusive
+	 * @param limit max number of changes
+	 * @return changes after <code>since</code>, oldest first
+	 */
+	public List<Change> since(long since, long until, int limit) {
+		var changes = new ArrayList<Change>(Math.min(limit, 1024));
+		if (since >= until) {
+			return changes;
+		}
+		for (var entry : bySequence.subMap(since, false, until, true).entrySet()) {
+			if (changes.size() == limit) {
+				break;
+			}
+			changes.add(new Change(entry.getKey(), entry.getValue()));
+		}
+		return changes;
+	}
+
+	private void put(long sequence, LocalDate date) {
+		bySequence.put(sequence, date);
+		var previous = byDate.put(date, sequence);
+		if (previous != null && previous != sequence) {
+			bySequence.remove(previous);
+		}
+	}
+
+	/**
+	 * Write and force the highest sequence number that may be handed out, replacing the sequence file atomically.
+	 */
+	private void reserve(long sequence, boolean clean) throws IOException {
+		var tempPath = sequencePath.resolveSibling("sequence.tmp");
+		try (var tempChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			tempChannel.write(ByteBuffer.wrap((sequence + (clean ? " clean\n" : "\n")).getBytes(StandardCharsets.US_ASCII)));
+			tempChannel.force(true);
+		}
+		Files.move(tempPath, sequencePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		FileTreeStore.forceDirectory(sequencePath.getParent());
+		reservedSequence = sequence;
+	}
+
+	/**
+	 * Rewrite the log with the live records only.
+	 */
+	private void compact() throws IOException {
+		var tempPath = logPath.resolveSibling("changes.log.tmp");
+		var tempChannel = FileChannel.open(tempPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			var buffer = ByteBuffer.allocate(RecordBytes * 4096);
+			for (var entry : bySequence.entrySet()) {
+				if (! buffer.hasRemaining()) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						tempChannel.write(buffer);
+					}
+					buffer.clear();
+				}
+				buffer.putLong(entry.getKey()).putInt((int) entry.getValue().toEpochDay());
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				tempChannel.write(buffer);
+			}
+			tempChannel.force(true);
+			Files.move(tempPath, logPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			tempChannel.close();
+			Storage.deleteQuietly(tempPath);
+			throw e;
+		}
+		FileTreeStore.forceDirectory(logPath.getParent());
+		channel.close();
+		channel = tempChannel;
+		fileRecords = bySequence.size();
+	}
+
+	/**
+	 * Force the log and mark it clean, the next change marks it in use again.
+	 */
+	synchronized void checkpoint() throws IOException {
+		if (! channel.isOpen()) {
+			return;
+		}
+		channel.force(false);
+		reserve(lastSequence, true);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		try {
+			checkpoint();
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * <h3>Incremental sync</h3>
+	 * <p>
+	 * verify user and stream, one JSON object per line, the entries changed after a sequence number, oldest change
+	 * first : <code>{"seq":42,"date":"2022/11/5","version":"\"etag\"","entry":"-----BEGIN PGP MESSAGE-----\n..."}</code>,
+	 * then <code>{"next":42,"more":false,"reset":false}</code>. The client keeps <code>next</code> for its next
+	 * call, and calls again at once while <code>more</code>. <code>reset</code> means <code>since</code> was
+	 * unknown to the server, a lost or foreign change log, so the page starts from the beginning.
+	 * query params : <code>since</code> : last sequence seen, 0 for everything,
+	 * <code>limit</code> : max entries per page, <code>Configure.SyncPageEntries</code> by default.
+	 * A page also ends after <code>Configure.SyncPageBytes</code> bytes of entries.
+	 * <p>
+	 * headers : <code>x-token</code> : serverSideSalt+clientSideSalt
+	 *
+	 * @param context Javalin context
+	 */
+	public static void SyncHandler(@NotNull Context context) {
+		long since;
+		int limit;
+		try {
+			since = context.queryParamAsClass("since", Long.class).getOrDefault(0L);
+			limit = context.queryParamAsClass("limit", Integer.class).getOrDefault(Configure.SyncPageEntries);
+		} catch (RuntimeException e) {
+			LoggerFactory.getLogger("Sync").warn("Invalid sync parameters " + context.queryString());
+			context.status(400);
+			return;
+		}
+		if (since < 0 || limit < 1) {
+			LoggerFactory.getLogger("Sync").warn("Invalid sync since " + since + " limit " + limit);
+			context.status(400);
+			return;
+		}
+		limit = Math.min(limit, Configure.SyncMaxPageEntries);
+
+		// check user
+		var token = context.header("x-token");
+		var owner = token == null ? null : Auth.getTokenOwner(token, context.ip());
+		if (owner == null) {
+			LoggerFactory.getLogger("Sync").warn("Invalid token." + (token == null ? "(Token is NULL)" : ""));
+			context.status(403);
+			return;
+		}
+		var diary = Storage.getDiary(context, owner);
+		if (diary == null) {
+			return;
+		}
+		var changes = diary.getChanges();
+		if (changes == null) {
+			LoggerFactory.getLogger("Sync").error("No change log for this diary.");
+			context.status(500);
+			return;
+		}
+
+		var reset = since > changes.getLastSequence();
+		if (reset) {
+			since = 0;
+		}
+		// a change published meanwhile is in the next page
+		var lastSequence = changes.getLastSequence();
+		var page = changes.since(since, lastSequence, limit + 1);
+		context.status(200).contentType("application/x-ndjson; charset=utf-8").header("Cache-Control", "no-store");
+		var next = since;
+		var count = 0;
+		var bytes = 0L;
+		var more = false;
+		try {
+			var outputStream = context.res().getOutputStream();
+			for (var change : page) {
+				if (count == limit || bytes >= Configure.SyncPageBytes) {
+					more = true;
+					break;
+				}
+				next = change.sequence();
+				ByteBuffer entry;
+				String version;
+				var lock = diary.getLock(change.date()).readLock();
+				EntryLocks.lock(lock);
+				try {
+					// the entry and its version as of now, the change or a later one
+					var cached = EntryCache.getInstance().peek(diary.getOwner(), change.date());
+					entry = cached != null ? ByteBuffer.wrap(cached) : Storage.readStoredEntry(diary, change.date());
+					version = diary.getVersions().get(change.date());
+				} finally {
+					lock.unlock();
+				}
+				if (entry == null) {
+					continue;
+				}
+				if (version == null) {
+					version = EntryVersions.etagOf(entry);
+				}
+				outputStream.write(("{\"seq\":" + change.sequence() + ",\"date\":\"" + StringUtils.formatDate(change.date()) +
+						"\",\"version\":").getBytes(StandardCharsets.UTF_8));
+				StringUtils.writeJsonString(outputStream, version);
+				outputStream.write(",\"entry\":".getBytes(StandardCharsets.US_ASCII));
+				bytes += entry.remaining();
+				StringUtils.writeJsonString(outputStream, entry);
+				outputStream.write(new byte[]{'}', '\n'});
+				count++;
+			}
+			if (! more) {
+				// past the days changed again meanwhile and the numbers a restart left unused
+				next = Math.max(next, lastSequence);
+			}
+			outputStream.write(("{\"next\":" + next + ",\"more\":" + more + ",\"reset\":" + reset + "}\n").getBytes(StandardCharsets.US_ASCII));
+			outputStream.flush();
+			LoggerFactory.getLogger("Sync").info("Synced " + count + " entries after " + since + ", next " + next + ".");
+		} catch (IOException e) {
+			// the client retries from its last complete page
+			LoggerFactory.getLogger("Sync").warn("Sync interrupted after " + count + " entries : " + e.getMessage());
+		}
+	}
+}
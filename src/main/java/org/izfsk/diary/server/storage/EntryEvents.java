@@ -0,0 +1,318 @@
+package org.izfsk.diary.server.storage;
+
+import io.javalin.http.Context;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.controllers.Auth;
+import org.izfsk.diary.server.utils.StringUtils;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server-sent events of committed saves, so open clients refetch an entry only when it changed.
+ * <p>
+ * <code>Diary.publish</code> hands each change to a single dispatcher thread, which fans it out to the subscribers
+ * of the diary's owner. Writes are non-blocking : an idle subscriber holds no thread, and a subscriber that can not
+ * take more output keeps its changes in a buffer coalesced by date. Past <code>Configure.EventBufferEntries</code>
+ * dates the buffer is dropped and the client is told to reset, that is to refetch what it shows.
+ * <p>
+ * Every <code>Configure.EventHeartbeatSeconds</code> a comment is sent to quiet subscribers, which keeps the
+ * connection below the connector idle timeout and finds dead peers. Subscriptions end with their token.
+ * A subscriber whose writes stay stalled is closed by the connector idle timeout.
+ */
+public final class EntryEvents {
+	private static final EntryEvents instance = new EntryEvents();
+	private static final byte[] Retry = "retry: 5000\n\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] Heartbeat = ":\n\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] Reset = "event: reset\ndata: \n\n".getBytes(StandardCharsets.US_ASCII);
+
+	private final Map<String, Set<Subscriber>> subscribers = new ConcurrentHashMap<>();
+	private final AtomicInteger subscriberCount = new AtomicInteger();
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder resets = new LongAdder();
+	private final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		var thread = new Thread(runnable, "EntryEvents");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private EntryEvents() {
+		dispatcher.scheduleWithFixedDelay(this::heartbeat,
+				Configure.EventHeartbeatSeconds, Configure.EventHeartbeatSeconds, TimeUnit.SECONDS);
+	}
+
+	public static EntryEvents getInstance() {
+		return instance;
+	}
+
+	/**
+	 * One open event stream. Output is only touched under its lock, from the dispatcher or a Jetty callback.
+	 */
+	final class Subscriber implements WriteListener, AsyncListener {
+		private final String owner;
+		private final String token;
+		private final String ip;
+		private final ServletOutputStream outputStream;
+		private final CompletableFuture<Void> closed = new CompletableFuture<>();
+		// changes not written yet, latest version per date
+		private final LinkedHashMap<LocalDate, String> pending = new LinkedHashMap<>();
+		// set with the write listener, the output is blocking before
+		private boolean listening = false;
+		private boolean greeted = false;
+		private boolean reset = false;
+		private boolean heartbeat = false;
+		private boolean needsFlush = false;
+		private boolean active = false;
+
+		Subscriber(String owner, String token, String ip, ServletOutputStream outputStream) {
+			this.owner = owner;
+			this.token = token;
+			this.ip = ip;
+			this.outputStream = outputStream;
+		}
+
+		synchronized void listen() {
+			listening = true;
+			outputStream.setWriteListener(this);
+		}
+
+		synchronized void offer(LocalDate date, String version) {
+			if (reset) {
+				return;
+			}
+			pending.remove(date);
+			pending.put(date, version);
+			if (pending.size() > Configure.EventBufferEntries) {
+				pending.clear();
+				reset = true;
+				resets.increment();
+			}
+		}
+
+		synchronized void offerHeartbeat() {
+			if (! active) {
+				heartbeat = true;
+			}
+			active = false;
+		}
+
+		/**
+		 * Write what is pending while the output accepts it without blocking.
+		 */
+		synchronized void drain() {
+			if (! listening || closed.isDone()) {
+				return;
+			}
+			try {
+				while (outputStream.isReady()) {
+					byte[] chunk;
+					if (! greeted) {
+						greeted = true;
+						chunk = Retry;
+					} else if (reset) {
+						reset = false;
+						chunk = Reset;
+					} else if (! pending.isEmpty()) {
+						var change = pending.entrySet().iterator().next();
+						pending.remove(change.getKey());
+						chunk = toEvent(change.getKey(), change.getValue());
+						sent.increment();
+					} else if (heartbeat) {
+						heartbeat = false;
+						chunk = Heartbeat;
+					} else if (needsFlush) {
+						needsFlush = false;
+						outputStream.flush();
+						continue;
+					} else {
+						return;
+					}
+					outputStream.write(chunk);
+					needsFlush = true;
+					active = true;
+				}
+			} catch (IOException | IllegalStateException e) {
+				close();
+			}
+		}
+
+		void close() {
+			if (closed.complete(null)) {
+				remove(this);
+			}
+		}
+
+		@Override
+		public void onWritePossible() {
+			drain();
+		}
+
+		@Override
+		public void onError(Throwable throwable) {
+			close();
+		}
+
+		@Override
+		public void onComplete(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onTimeout(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onError(AsyncEvent event) {
+			close();
+		}
+
+		@Override
+		public void onStartAsync(AsyncEvent event) {
+		}
+	}
+
+	static byte[] toEvent(LocalDate date, String version) {
+		// the version is the entry's ETag, quoted
+		var event = new ByteArrayOutputStream(96);
+		event.writeBytes(("event: entry\ndata: {\"date\":\"" + StringUtils.formatDate(date) + "\",\"version\":")
+				.getBytes(StandardCharsets.UTF_8));
+		try {
+			StringUtils.writeJsonString(event, version);
+		} catch (IOException e) {
+			// never thrown by a byte array
+			throw new UncheckedIOException(e);
+		}
+		event.writeBytes("}\n\n".getBytes(StandardCharsets.US_ASCII));
+		return event.toByteArray();
+	}
+
+	/**
+	 * Queue a committed change for the owner's subscribers, never blocks.
+	 */
+	void publish(String owner, LocalDate date, String version) {
+		if (! subscribers.containsKey(owner)) {
+			return;
+		}
+		dispatcher.execute(() -> {
+			for (var subscriber : subscribers.getOrDefault(owner, Set.of())) {
+				subscriber.offer(date, version);
+				subscriber.drain();
+			}
+		});
+	}
+
+	private void heartbeat() {
+		for (var targets : subscribers.values()) {
+			for (var subscriber : targets) {
+				if (Auth.checkToken(subscriber.token, subscriber.ip)) {
+					subscriber.close();
+					continue;
+				}
+				subscriber.offerHeartbeat();
+				subscriber.drain();
+			}
+		}
+	}
+
+	private void remove(Subscriber subscriber) {
+		subscribers.computeIfPresent(subscriber.owner, (owner, targets) -> {
+			targets.remove(subscriber);
+			return targets.isEmpty() ? null : targets;
+		});
+		subscriberCount.decrementAndGet();
+	}
+
+	public int getSubscriberCount() {
+		return subscriberCount.get();
+	}
+
+	public long getSent() {
+		return sent.sum();
+	}
+
+	public long getResets() {
+		return resets.sum();
+	}
+
+	/**
+	 * <h3>Entry change stream</h3>
+	 * <p>
+	 * <code>GET /events</code> with the token in <code>x-token</code>, or in <code>?token=</code> for
+	 * <code>EventSource</code>, which can not set headers. Sends <code>entry</code> events whose data is
+	 * <code>{"date":"2022/11/5","version":"\"etag\""}</code>, the ETag of <code>GET /data/&lt;date&gt;</code>,
+	 * and <code>reset</code> events after an overflow.
+	 *
+	 * @param context Javalin context
+	 */
+	public static void EventsHandler(@NotNull Context context) {
+		var token = Objects.requireNonNullElse(context.header("x-token"), Objects.requireNonNullElse(context.queryParam("token"), ""));
+		var owner = Auth.getTokenOwner(token, context.ip());
+		if (owner == null) {
+			LoggerFactory.getLogger("Events").warn("Invalid token.");
+			context.status(403);
+			return;
+		}
+		var diary = Storage.getDiary(context, owner);
+		if (diary == null) {
+			return;
+		}
+		var events = getInstance();
+		if (events.subscriberCount.incrementAndGet() > Configure.EventMaxSubscribers) {
+			events.subscriberCount.decrementAndGet();
+			LoggerFactory.getLogger("Events").warn("Too many subscribers, refuse " + context.ip());
+			context.status(503);
+			return;
+		}
+
+		context.status(200);
+		context.contentType("text/event-stream; charset=utf-8");
+		context.header("Cache-Control", "no-cache");
+		context.header("X-Accel-Buffering", "no");
+		var ip = context.ip();
+		context.future(() -> {
+			// started here, with no timeout, so the write listener can be set, Javalin then keeps this async context
+			Subscriber subscriber;
+			try {
+				var asyncContext = context.req().startAsync();
+				asyncContext.setTimeout(0);
+				subscriber = events.new Subscriber(diary.getOwner(), token, ip, context.res().getOutputStream());
+				asyncContext.addListener(subscriber);
+			} catch (IOException | RuntimeException e) {
+				events.subscriberCount.decrementAndGet();
+				LoggerFactory.getLogger("Events").warn("Unable to open the event stream : " + e);
+				context.status(500);
+				return CompletableFuture.completedFuture(null);
+			}
+			// under the map's lock, like the removal of the last subscriber
+			events.subscribers.compute(diary.getOwner(), (key, targets) -> {
+				var subscriberSet = targets == null ? ConcurrentHashMap.<Subscriber>newKeySet() : targets;
+				subscriberSet.add(subscriber);
+				return subscriberSet;
+			});
+			// Jetty then calls onWritePossible, which sends the first bytes
+			subscriber.listen();
+			return subscriber.closed;
+		});
+	}
+}
@@ -0,0 +1,93 @@
+package org.izfsk.diary.server.storage;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of which days of a diary have an entry, see <code>Diary.getIndex</code>.
+ * <p>
+ * One <code>BitSet</code> per year, bit <code>dayOfYear - 1</code> is set if that day has an entry.
+ * Built from the entry store at startup, then kept up to date by the save path.
+ */
+public final class EntryIndex {
+	// 366 bits
+	public static final int YearBitmapBytes = 46;
+
+	private final Map<Integer, BitSet> years = new ConcurrentHashMap<>();
+
+	EntryIndex() {
+	}
+
+	/**
+	 * Replace the index content with the days the store has an entry for.
+	 *
+	 * @param store entry store
+	 * @return number of entries found
+	 */
+	public int rebuild(EntryStore store) throws IOException {
+		years.clear();
+		var count = new int[]{0};
+		store.forEachDate(date -> {
+			add(date);
+			count[0]++;
+		});
+		return count[0];
+	}
+
+	public void add(LocalDate date) {
+		var bitSet = years.computeIfAbsent(date.getYear(), year -> new BitSet(366));
+		synchronized (bitSet) {
+			bitSet.set(date.getDayOfYear() - 1);
+		}
+	}
+
+	public boolean contains(LocalDate date) {
+		var bitSet = years.get(date.getYear());
+		if (bitSet == null) {
+			return false;
+		}
+		synchronized (bitSet) {
+			return bitSet.get(date.getDayOfYear() - 1);
+		}
+	}
+
+	/**
+	 * @param from first day to look at
+	 * @return the first day from <code>from</code> on having an entry, or null if there is none
+	 */
+	public LocalDate nextDate(LocalDate from) {
+		var lastYear = years.keySet().stream().mapToInt(Integer::intValue).max().orElse(Integer.MIN_VALUE);
+		for (var year = from.getYear(); year <= lastYear; year++) {
+			var bitSet = years.get(year);
+			if (bitSet == null) {
+				continue;
+			}
+			int day;
+			synchronized (bitSet) {
+				day = bitSet.nextSetBit(year == from.getYear() ? from.getDayOfYear() - 1 : 0);
+			}
+			if (day >= 0) {
+				return LocalDate.ofYearDay(year, day + 1);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @param year year
+	 * @return {@value YearBitmapBytes} bytes, little-endian bit order as <code>BitSet.toByteArray</code>
+	 */
+	public byte[] getYearBitmap(int year) {
+		var bitSet = years.get(year);
+		if (bitSet == null) {
+			return new byte[YearBitmapBytes];
+		}
+		synchronized (bitSet) {
+			return Arrays.copyOf(bitSet.toByteArray(), YearBitmapBytes);
+		}
+	}
+}
@@ -0,0 +1,384 @@
+package org.izfsk.diary.server.storage;
+
+import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.metrics.Metrics;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only write-ahead journal of saved entries, at <code>rootDir/journal/diary.journal</code>.
+ * <p>
+ * A save is appended by a single writer thread, which batches all saves queued meanwhile into one
+ * <code>force()</code> (group commit). Once the batch is durable under the {@link FsyncPolicy},
+ * the entries are published : readers are served from the spooled file until a background thread
+ * has written it to the <code>EntryStore</code>.
+ * <p>
+ * When the journal grows over the checkpoint size, the store is forced and the journal is truncated. Opening the journal replays whatever is left.
+ * <p>
+ * Records are laid out as <code>EntryRecord</code>. Replay stops at the first incomplete or corrupt record, which is a write torn by a crash.
+ */
+public final class EntryJournal {
+	public enum FsyncPolicy {
+		// force after every batch, a save is acknowledged once it is on disk
+		ALWAYS,
+		// force at most once per interval, saves wait for the next force
+		BATCHED,
+		// never force, a save is acknowledged once it is written to the page cache
+		NEVER
+	}
+
+	// queued by close, the writer stops once it reaches it
+	private static final PendingAppend CloseMarker = new PendingAppend(null, null, null, null, 0, 0, null);
+
+	private record PendingAppend(LocalDate date, Path spoolFile, String etag, byte[] bytes, long length, int crc,
+	                             CompletableFuture<Void> durable) {
+	}
+
+	private final Diary diary;
+	private final EntryStore store;
+	private final FsyncPolicy fsyncPolicy;
+	private final long fsyncIntervalNanos;
+	private final long checkpointBytes;
+	private final FileChannel channel;
+	private final BlockingQueue<PendingAppend> queue = new LinkedBlockingQueue<>();
+	// spooled files of durable entries which are not renamed to their entry path yet
+	private final Map<LocalDate, Path> unmaterialized = new ConcurrentHashMap<>();
+	// appends per day not published yet
+	private final Map<LocalDate, Integer> queued = new ConcurrentHashMap<>();
+	private final ExecutorService materializer;
+	private final Thread writer;
+	private volatile boolean closed = false;
+	private int replayed = 0;
+
+	/**
+	 * Replay the journal under <code>rootDir</code> into the diary's store and start accepting saves.
+	 */
+	EntryJournal(Path rootDir, Diary diary, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, long checkpointBytes) throws IOException {
+		this.diary = diary;
+		this.store = diary.getStore();
+		this.fsyncPolicy = fsyncPolicy;
+		this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+		this.checkpointBytes = checkpointBytes;
+
+		var journalPath = getJournalPath(rootDir);
+		Files.createDirectories(journalPath.getParent());
+		this.channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		replay();
+		FileTreeStore.forceDirectory(journalPath.getParent());
+
+		this.materializer = Executors.newSingleThreadExecutor(runnable -> {
+			var thread = new Thread(runnable, "JournalMaterializer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.writer = new Thread(this::writeLoop, "JournalWriter");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * @return number of records replayed when the journal was opened
+	 */
+	public int getReplayedCount() {
+		return replayed;
+	}
+
+	static Path getJournalPath(Path rootDir) {
+		return rootDir.resolve("journal").resolve("diary.journal");
+	}
+
+	/**
+	 * Rewrite every complete record to its entry file, fsync them and empty the journal.
+	 */
+	private void replay() throws IOException {
+		var header = ByteBuffer.allocate(EntryRecord.HeaderBytes);
+		var position = 0L;
+		while (true) {
+			header.clear();
+			if (readFully(header, position) < EntryRecord.HeaderBytes) {
+				break;
+			}
+			header.flip();
+			var length = header.getInt();
+			var epochDay = header.getLong();
+			var expectedCrc = header.getInt();
+			if (length < 0 || position + EntryRecord.HeaderBytes + length > channel.size()) {
+				break;
+			}
+			var data = ByteBuffer.allocate(length);
+			readFully(data, position + EntryRecord.HeaderBytes);
+			var crc = EntryRecord.newChecksum(epochDay);
+			crc.update(data.array());
+			if ((int) crc.getValue() != expectedCrc) {
+				break;
+			}
+
+			var date = LocalDate.ofEpochDay(epochDay);
+			var spoolFile = store.createSpoolFile(date);
+			Files.write(spoolFile, data.array());
+			store.write(date, spoolFile);
+			position += EntryRecord.HeaderBytes + length;
+			replayed++;
+		}
+		if (position < channel.size()) {
+			LoggerFactory.getLogger("EntryJournal").warn("Discard " + (channel.size() - position) + " bytes of torn journal tail.");
+		}
+		store.force();
+		channel.truncate(0);
+		channel.force(true);
+	}
+
+	/**
+	 * Append a verified entry spooled by the store, see <code>Storage.createTempEntryFile</code>.
+	 * The spooled file is owned by the journal from now on.
+	 *
+	 * @param etag validator of the entry, see <code>EntryVersions</code>
+	 * @return completes once the entry is durable under the fsync policy and visible to readers
+	 */
+	public CompletableFuture<Void> append(LocalDate date, Path spoolFile, String etag) {
+		var durable = new CompletableFuture<Void>();
+		try {
+			var length = Files.size(spoolFile);
+			// small entries go to the cache, so keep them in memory
+			byte[] bytes = null;
+			var crc = EntryRecord.newChecksum(date.toEpochDay());
+			if (length < Configure.ZeroCopyThresholdBytes) {
+				bytes = Files.readAllBytes(spoolFile);
+				crc.update(bytes);
+			} else {
+				try (var spool = FileChannel.open(spoolFile, StandardOpenOption.READ)) {
+					var buffer = ByteBuffer.allocateDirect(64 * 1024);
+					while (spool.read(buffer) >= 0) {
+						buffer.flip();
+						crc.update(buffer);
+						buffer.clear();
+					}
+				}
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Entry too large for the journal : " + length);
+			}
+			if (closed) {
+				throw new IOException("The journal is closed");
+			}
+			queued.merge(date, 1, Integer::sum);
+			queue.add(new PendingAppend(date, spoolFile, etag, bytes, length, (int) crc.getValue(), durable));
+		} catch (IOException e) {
+			durable.completeExceptionally(e);
+		}
+		return durable;
+	}
+
+	/**
+	 * Whether a save of that day is appended but not published yet, or published but not materialized yet.
+	 * Either would replace the entry in the store later.
+	 */
+	boolean hasPendingSave(LocalDate date) {
+		return queued.containsKey(date) || unmaterialized.containsKey(date);
+	}
+
+	private void dequeued(PendingAppend pending) {
+		queued.computeIfPresent(pending.date(), (date, count) -> count == 1 ? null : count - 1);
+	}
+
+	/**
+	 * Where to read an entry from, must be called under the entry's read lock.
+	 *
+	 * @return the spooled file if the entry is not materialized yet, else null
+	 */
+	Path getUnmaterializedPath(LocalDate date) {
+		return unmaterialized.get(date);
+	}
+
+	private void writeLoop() {
+		var batch = new ArrayList<PendingAppend>();
+		var lastForce = System.nanoTime();
+		var stop = false;
+		while (! stop) {
+			try {
+				batch.add(queue.take());
+				if (fsyncPolicy == FsyncPolicy.BATCHED) {
+					// keep collecting until the interval since the last force is over
+					var wait = lastForce + fsyncIntervalNanos - System.nanoTime();
+					if (wait > 0) {
+						TimeUnit.NANOSECONDS.sleep(wait);
+					}
+				}
+				queue.drainTo(batch);
+			} catch (InterruptedException e) {
+				break;
+			}
+			stop = batch.remove(CloseMarker);
+			if (batch.isEmpty()) {
+				continue;
+			}
+
+			var batchStart = -1L;
+			var start = System.nanoTime();
+			try {
+				batchStart = channel.size();
+				channel.position(batchStart);
+				for (var pending : batch) {
+					write(pending);
+				}
+				if (fsyncPolicy != FsyncPolicy.NEVER) {
+					channel.force(false);
+					lastForce = System.nanoTime();
+				}
+				Metrics.JournalCommit.recordSince(start);
+			} catch (IOException e) {
+				LoggerFactory.getLogger("EntryJournal").error("Unable to append to journal : " + e.getMessage());
+				// drop the partial batch, so later records stay replayable
+				try {
+					if (batchStart >= 0) {
+						channel.truncate(batchStart);
+					}
+				} catch (IOException ignored) {
+				}
+				for (var pending : batch) {
+					dequeued(pending);
+					pending.durable().completeExceptionally(e);
+				}
+				batch.clear();
+				continue;
+			}
+
+			for (var pending : batch) {
+				publish(pending);
+				pending.durable().complete(null);
+			}
+			batch.clear();
+
+			try {
+				if (channel.size() >= checkpointBytes) {
+					checkpoint();
+				}
+			} catch (IOException | ExecutionException | InterruptedException e) {
+				LoggerFactory.getLogger("EntryJournal").warn("Checkpoint failed : " + e);
+			}
+		}
+	}
+
+	private void write(PendingAppend pending) throws IOException {
+		Metrics.BytesWritten.add(pending.length());
+		var header = EntryRecord.header((int) pending.length(), pending.date().toEpochDay(), pending.crc());
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+		if (pending.bytes() != null) {
+			var data = ByteBuffer.wrap(pending.bytes());
+			while (data.hasRemaining()) {
+				channel.write(data);
+			}
+			return;
+		}
+		try (var spool = FileChannel.open(pending.spoolFile(), StandardOpenOption.READ)) {
+			var position = channel.position();
+			var copied = 0L;
+			while (copied < pending.length()) {
+				var count = channel.transferFrom(spool, position + copied, pending.length() - copied);
+				if (count <= 0) {
+					throw new IOException("Spooled entry shrunk " + pending.spoolFile());
+				}
+				copied += count;
+			}
+			channel.position(position + copied);
+		}
+	}
+
+	/**
+	 * Make a durable entry visible and queue its rename to the entry path.
+	 */
+	private void publish(PendingAppend pending) {
+		var lock = diary.getLock(pending.date()).writeLock();
+		EntryLocks.lock(lock);
+		try {
+			unmaterialized.put(pending.date(), pending.spoolFile());
+			dequeued(pending);
+			diary.publish(pending.date(), pending.bytes(), pending.etag());
+		} finally {
+			lock.unlock();
+		}
+		materializer.execute(() -> materialize(pending.date(), pending.spoolFile()));
+	}
+
+	private void materialize(LocalDate date, Path spoolFile) {
+		var lock = diary.getLock(date).writeLock();
+		EntryLocks.lock(lock);
+		try {
+			var start = System.nanoTime();
+			store.write(date, spoolFile);
+			Metrics.FileWrite.recordSince(start);
+			// a newer save of the same day may be pending already
+			unmaterialized.remove(date, spoolFile);
+		} catch (IOException e) {
+			// the entry is still in the journal and readable from the spooled file
+			LoggerFactory.getLogger("EntryJournal").warn("Unable to materialize " + date + " : " + e.getMessage());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Called by the writer, so nothing is appended meanwhile.
+	 * Waits for every queued materialization, fsyncs the entry files and truncates the journal.
+	 */
+	private void checkpoint() throws IOException, ExecutionException, InterruptedException {
+		var synced = materializer.submit(() -> {
+			if (! unmaterialized.isEmpty()) {
+				return false;
+			}
+			store.force();
+			return true;
+		}).get();
+		if (synced) {
+			channel.truncate(0);
+			channel.force(true);
+		}
+	}
+
+	/**
+	 * Stop the writer and wait for queued materializations. Saves queued meanwhile fail.
+	 */
+	void close() throws IOException, InterruptedException {
+		closed = true;
+		queue.add(CloseMarker);
+		writer.join();
+		for (var pending : queue) {
+			dequeued(pending);
+			pending.durable().completeExceptionally(new IOException("The journal is closed"));
+		}
+		materializer.shutdown();
+		materializer.awaitTermination(1, TimeUnit.MINUTES);
+		channel.close();
+	}
+
+	private int readFully(ByteBuffer buffer, long position) throws IOException {
+		var total = 0;
+		while (buffer.hasRemaining()) {
+			var count = channel.read(buffer, position + total);
+			if (count < 0) {
+				break;
+			}
+			total += count;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,49 @@
+package org.izfsk.diary.server.storage;
+
+import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.metrics.Metrics;
+
+import java.time.LocalDate;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * In-process striped read/write locks, one stripe per group of (diary owner, date).
+ * <p>
+ * Writers only hold the write lock while publishing an already written file
+ * (rename + cache update), so readers are never blocked behind disk writes.
+ */
+public final class EntryLocks {
+	private static final ReadWriteLock[] stripes = new ReadWriteLock[Configure.EntryLockStripes];
+
+	static {
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * @return the lock of a day of the single-user diary
+	 */
+	public static ReadWriteLock getLock(LocalDate date) {
+		return getLock("", date);
+	}
+
+	/**
+	 * @param owner diary owner, see <code>Diary.getOwner</code>
+	 */
+	public static ReadWriteLock getLock(String owner, LocalDate date) {
+		// every user saves today's entry, so the owner spreads them over the stripes
+		return stripes[Math.floorMod(31 * owner.hashCode() + Long.hashCode(date.toEpochDay()), stripes.length)];
+	}
+
+	/**
+	 * Acquire a lock of a stripe, recording the wait.
+	 */
+	static void lock(Lock lock) {
+		var start = System.nanoTime();
+		lock.lock();
+		Metrics.LockAcquire.recordSince(start);
+	}
+}
@@ -0,0 +1,29 @@
+package org.izfsk.diary.server.storage;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * The record layout shared by the journal and the segment files :
+ * <code>int length | long epochDay | int crc32c(epochDay, data) | data</code>.
+ */
+final class EntryRecord {
+	static final int HeaderBytes = Integer.BYTES + Long.BYTES + Integer.BYTES;
+
+	/**
+	 * @return a checksum already fed with the epoch day, feed it the data next
+	 */
+	static CRC32C newChecksum(long epochDay) {
+		var crc = new CRC32C();
+		crc.update(ByteBuffer.allocate(Long.BYTES).putLong(0, epochDay));
+		return crc;
+	}
+
+	static ByteBuffer header(int length, long epochDay, int crc) {
+		return ByteBuffer.allocate(HeaderBytes)
+				.putInt(length)
+				.putLong(epochDay)
+				.putInt(crc)
+				.flip();
+	}
+}
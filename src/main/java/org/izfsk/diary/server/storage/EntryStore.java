@@ -0,0 +1,69 @@
+package org.izfsk.diary.server.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.function.Consumer;
+
+/**
+ * Where entries are kept on disk, see <code>Configure.StorageEngine</code>.
+ * <p>
+ * Stores do no caching and no per-day locking : <code>Storage</code> calls them under the day's
+ * <code>EntryLocks</code> lock, and keeps <code>EntryCache</code> and <code>EntryIndex</code> up to date.
+ */
+public interface EntryStore extends Closeable {
+	/**
+	 * Entries smaller than <code>Configure.ZeroCopyThresholdBytes</code> are returned as heap buffers,
+	 * larger ones may be memory-mapped. A returned buffer stays valid after the entry is replaced.
+	 *
+	 * @param date entry date
+	 * @return the entry, or null if that day has no entry
+	 */
+	ByteBuffer read(LocalDate date) throws IOException;
+
+	/**
+	 * Open that day's entry for {@link AsyncStorage#read}. The region keeps the opened entry readable after it
+	 * is replaced, so only opening needs the day's lock.
+	 *
+	 * @param date entry date
+	 * @return the entry, or null if that day has no entry
+	 */
+	AsyncStorage.Region open(LocalDate date) throws IOException;
+
+	/**
+	 * Create a temp file for an upload of that day, which can be handed to {@link #write}.
+	 */
+	Path createSpoolFile(LocalDate date) throws IOException;
+
+	/**
+	 * Replace that day's entry with a spooled file, which is consumed.
+	 * The new entry is visible once this returns, but only durable after {@link #force}.
+	 */
+	void write(LocalDate date, Path spoolFile) throws IOException;
+
+	/**
+	 * Persist the version of a spooled file, see <code>EntryVersions</code>, so that it is kept along with
+	 * the entry once written. Stores unable to keep it ignore this, and the version is recomputed on first read.
+	 */
+	default void setSpoolVersion(Path spoolFile, String version) {
+	}
+
+	/**
+	 * @return the version persisted along with that day's entry, or null if unknown
+	 */
+	default String readVersion(LocalDate date) {
+		return null;
+	}
+
+	/**
+	 * Make every write so far durable.
+	 */
+	void force() throws IOException;
+
+	/**
+	 * Call <code>consumer</code> for every day having an entry, in no particular order.
+	 */
+	void forEachDate(Consumer<LocalDate> consumer) throws IOException;
+}
@@ -0,0 +1,91 @@
+package org.izfsk.diary.server.storage;
+
+import org.izfsk.diary.server.SignatureVerifier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Streaming save pipeline.
+ * <p>
+ * The uploaded entry is read once in fixed size chunks. Raw bytes are spooled to a temp file and hashed,
+ * while the CRLF-normalised bytes are Base64-encoded on the fly and fed to the signature verification,
+ * since the client signs <code>btoa(data)</code>. No copy of the whole entry is ever held in memory.
+ */
+final class EntryUpload {
+	private static final int BufferSize = 8192;
+
+	static final class TooLargeException extends IOException {
+		TooLargeException(long maxBytes) {
+			super("Entry is larger than " + maxBytes + " bytes");
+		}
+	}
+
+	/**
+	 * @param data         uploaded entry
+	 * @param tempFile     spool file, overwritten
+	 * @param verification started verification of the entry's signature
+	 * @param digest       fed with the raw entry bytes
+	 * @param maxBytes     max entry size
+	 * @return true if the signature is valid
+	 * @throws TooLargeException if data is larger than maxBytes
+	 */
+	static boolean spoolAndVerify(InputStream data, Path tempFile,
+								  SignatureVerifier.Verification verification, MessageDigest digest, long maxBytes) throws IOException {
+		var buffer = new byte[BufferSize];
+		var normalized = new byte[BufferSize + 1];
+		var base64Stream = Base64.getEncoder().wrap(new OutputStream() {
+			@Override
+			public void write(int b) {
+				verification.update(new byte[]{(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				verification.update(b, off, len);
+			}
+		});
+
+		long total = 0;
+		boolean pendingCR = false;
+		try (var spoolStream = Files.newOutputStream(tempFile)) {
+			int read;
+			while ((read = data.read(buffer)) >= 0) {
+				total += read;
+				if (total > maxBytes) {
+					throw new TooLargeException(maxBytes);
+				}
+				spoolStream.write(buffer, 0, read);
+				digest.update(buffer, 0, read);
+
+				// same as replaceAll("\r\n", "\n"), a trailing CR waits for the next chunk
+				int length = 0;
+				for (int i = 0; i < read; i++) {
+					if (pendingCR) {
+						pendingCR = false;
+						if (buffer[i] != '\n') {
+							normalized[length++] = '\r';
+						}
+					}
+					if (buffer[i] == '\r') {
+						pendingCR = true;
+					} else {
+						normalized[length++] = buffer[i];
+					}
+				}
+				base64Stream.write(normalized, 0, length);
+			}
+		}
+		if (pendingCR) {
+			base64Stream.write('\r');
+		}
+		// flush the last Base64 quantum and its padding
+		base64Stream.close();
+		return verification.verify();
+	}
+}
@@ -0,0 +1,76 @@
+package org.izfsk.diary.server.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory validators of a diary's entries, used as strong ETags, see <code>Diary.getVersions</code>.
+ * <p>
+ * A validator is the first 128 bits of the SHA-256 of the entry, hex encoded and quoted.
+ * The save path sets it when an entry is published, from the digest computed while spooling.
+ * The read path sets it the first time an entry is read from the store.
+ * Stores able to persist it keep it along with the entry, and it is loaded at startup.
+ * <p>
+ * Writers update the entry cache before the validator, so a reader fetching the validator
+ * before the cached bytes never pairs a new validator with old bytes.
+ */
+public final class EntryVersions {
+	private final Map<LocalDate, String> etags = new ConcurrentHashMap<>();
+
+	EntryVersions() {
+	}
+
+	/**
+	 * @return the validator, or null if that day's entry was not read or saved since startup
+	 */
+	public String get(LocalDate date) {
+		return etags.get(date);
+	}
+
+	/**
+	 * Load the versions persisted by the store, see <code>EntryStore.readVersion</code>.
+	 *
+	 * @return versions loaded
+	 */
+	public int load(EntryStore store) throws IOException {
+		etags.clear();
+		store.forEachDate(date -> {
+			var etag = store.readVersion(date);
+			if (etag != null) {
+				etags.put(date, etag);
+			}
+		});
+		return etags.size();
+	}
+
+	void put(LocalDate date, String etag) {
+		etags.put(date, etag);
+	}
+
+	static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param digest SHA-256 of the entry
+	 */
+	static String toEtag(byte[] digest) {
+		return "\"" + HexFormat.of().formatHex(digest, 0, 16) + "\"";
+	}
+
+	static String etagOf(ByteBuffer entry) {
+		var digest = newDigest();
+		digest.update(entry.duplicate());
+		return toEtag(digest.digest());
+	}
+}
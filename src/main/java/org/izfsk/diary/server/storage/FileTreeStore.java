@@ -0,0 +1,183 @@
+package org.izfsk.diary.server.storage;
+
+import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.utils.StringUtils;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.time.LocalDate;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * The original layout : each day have its own dir, file is saved at <code>rootDir/YYYY/M/D/diary.asc</code>.
+ * <p>
+ * A spooled file is created in <code>rootDir/spool</code> and atomically renamed over its target once published,
+ * so readers see either the old or the new entry, never a truncated one, and a refused upload leaves no day dir behind.
+ * The entry's version is a user extended attribute of the file, renamed along with it.
+ * An entry edited in place outside the server keeps a stale version : remove the attribute
+ * (<code>setfattr -x user.diary.version diary.asc</code>) or restart with a fresh copy of the file.
+ */
+public final class FileTreeStore implements EntryStore {
+	private static final String VersionAttribute = "diary.version";
+
+	private final Path rootDir;
+	private final Path spoolDir;
+	// entry files renamed since the last force
+	private final Set<Path> unsynced = ConcurrentHashMap.newKeySet();
+
+	public FileTreeStore(Path rootDir) throws IOException {
+		this.rootDir = rootDir;
+		this.spoolDir = rootDir.resolve("spool");
+		Files.createDirectories(spoolDir);
+
+		// leftovers of uploads interrupted by a crash
+		try (var paths = Files.list(spoolDir)) {
+			for (var path : paths.toList()) {
+				if (path.getFileName().toString().startsWith("diary.asc.")) {
+					Files.delete(path);
+				}
+			}
+		}
+	}
+
+	public Path getEntryPath(LocalDate date) {
+		return rootDir.resolve(StringUtils.formatDate(date)).resolve("diary.asc");
+	}
+
+	@Override
+	public ByteBuffer read(LocalDate date) throws IOException {
+		return readFile(getEntryPath(date));
+	}
+
+	@Override
+	public AsyncStorage.Region open(LocalDate date) throws IOException {
+		return AsyncStorage.openFile(getEntryPath(date));
+	}
+
+	/**
+	 * Read a whole file, small ones into heap and large ones memory-mapped.
+	 *
+	 * @return file content, or null if it does not exist
+	 */
+	static ByteBuffer readFile(Path path) throws IOException {
+		try (var fileChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+			var size = fileChannel.size();
+			if (size >= Configure.ZeroCopyThresholdBytes) {
+				// the mapping outlives the channel, and a later rename does not affect it
+				return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			}
+			var buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining()) {
+				if (fileChannel.read(buffer) < 0) {
+					throw new IOException("Unexpected end of file " + path);
+				}
+			}
+			return buffer.flip();
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public Path createSpoolFile(LocalDate date) throws IOException {
+		return Files.createTempFile(spoolDir, "diary.asc.", ".tmp");
+	}
+
+	@Override
+	public void write(LocalDate date, Path spoolFile) throws IOException {
+		var targetFilePath = getEntryPath(date);
+		// same file system as the spool dir, so the rename stays atomic
+		Files.createDirectories(targetFilePath.getParent());
+		Files.move(spoolFile, targetFilePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		unsynced.add(targetFilePath);
+	}
+
+	@Override
+	public void setSpoolVersion(Path spoolFile, String version) {
+		try {
+			var view = Files.getFileAttributeView(spoolFile, UserDefinedFileAttributeView.class);
+			if (view != null) {
+				view.write(VersionAttribute, StandardCharsets.US_ASCII.encode(version));
+			}
+		} catch (IOException | UnsupportedOperationException ignored) {
+			// no extended attributes on this file system
+		}
+	}
+
+	@Override
+	public String readVersion(LocalDate date) {
+		try {
+			var view = Files.getFileAttributeView(getEntryPath(date), UserDefinedFileAttributeView.class);
+			if (view == null) {
+				return null;
+			}
+			var buffer = ByteBuffer.allocate(64);
+			view.read(VersionAttribute, buffer);
+			return StandardCharsets.US_ASCII.decode(buffer.flip()).toString();
+		} catch (IOException | UnsupportedOperationException e) {
+			// no entry, no attribute, or no extended attributes on this file system
+			return null;
+		}
+	}
+
+	@Override
+	public void force() throws IOException {
+		for (var iterator = unsynced.iterator(); iterator.hasNext(); ) {
+			var entryPath = iterator.next();
+			iterator.remove();
+			try (var fileChannel = FileChannel.open(entryPath, StandardOpenOption.READ)) {
+				fileChannel.force(true);
+			} catch (NoSuchFileException ignored) {
+			}
+			forceDirectory(entryPath.getParent());
+		}
+	}
+
+	static void forceDirectory(Path path) {
+		// not supported on every platform, the entry files themselves are forced anyway
+		try (var directoryChannel = FileChannel.open(path, StandardOpenOption.READ)) {
+			directoryChannel.force(true);
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * Walk <code>rootDir/YYYY/M/D/diary.asc</code>.
+	 */
+	@Override
+	public void forEachDate(Consumer<LocalDate> consumer) throws IOException {
+		try (var paths = Files.walk(rootDir, 4)) {
+			for (var path : (Iterable<Path>) paths::iterator) {
+				if (path.getNameCount() - rootDir.getNameCount() != 4 ||
+						! path.getFileName().toString().equals("diary.asc")) {
+					continue;
+				}
+				var dateString = String.join("/",
+						path.getName(path.getNameCount() - 4).toString(),
+						path.getName(path.getNameCount() - 3).toString(),
+						path.getName(path.getNameCount() - 2).toString());
+				var date = StringUtils.parseDate(dateString);
+				if (date == null) {
+					LoggerFactory.getLogger("FileTreeStore").warn("Ignore unexpected file " + path);
+					continue;
+				}
+				consumer.accept(date);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+	}
+}
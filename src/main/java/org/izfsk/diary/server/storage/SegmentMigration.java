@@ -0,0 +1,59 @@
+package org.izfsk.diary.server.storage;
+
+import org.izfsk.diary.server.Configure;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+
+/**
+ * One-shot migration from the <code>YYYY/M/D/diary.asc</code> tree to the segment engine.
+ * <p>
+ * Copies every entry of <code>Configure.DiaryRootDir</code> into <code>DiaryRootDir/segments</code>, oldest first,
+ * and reads each one back. The tree is left in place, remove it once the server runs with
+ * <code>-Ddiary.storage=segment</code>. Run with the server stopped :
+ * <code>java -Ddiary.rootDir=... -cp DiaryServer.jar org.izfsk.diary.server.storage.SegmentMigration</code>
+ */
+public final class SegmentMigration {
+	public static void main(String[] args) throws IOException {
+		var rootDir = Path.of(Configure.DiaryRootDir);
+		var segmentDir = rootDir.resolve("segments");
+		if (Files.exists(segmentDir)) {
+			LoggerFactory.getLogger("SegmentMigration").error(segmentDir + " already exists, refusing to migrate twice.");
+			System.exit(1);
+		}
+
+		var tree = new FileTreeStore(rootDir);
+		var dates = new ArrayList<LocalDate>();
+		tree.forEachDate(dates::add);
+		dates.sort(null);
+
+		long bytes = 0;
+		try (var segments = new SegmentStore(segmentDir, Configure.SegmentMaxBytes, Configure.SegmentCompactionLiveRatio)) {
+			for (var date : dates) {
+				var entry = tree.read(date);
+				var spoolFile = segments.createSpoolFile(date);
+				try (var spool = FileChannel.open(spoolFile, StandardOpenOption.WRITE)) {
+					while (entry.hasRemaining()) {
+						bytes += spool.write(entry);
+					}
+				}
+				segments.write(date, spoolFile);
+			}
+			segments.force();
+
+			for (var date : dates) {
+				if (! tree.read(date).equals(segments.read(date))) {
+					LoggerFactory.getLogger("SegmentMigration").error("Entry " + date + " differs after migration.");
+					System.exit(1);
+				}
+			}
+		}
+		LoggerFactory.getLogger("SegmentMigration").info("Migrated " + dates.size() + " entries, " + bytes + " bytes, to " + segmentDir);
+	}
+}
@@ -0,0 +1,408 @@
+package org.izfsk.diary.server.storage;
+
+import org.izfsk.diary.server.Configure;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Entries packed into append-only segment files, at <code>dir/NNNNNNNN.seg</code>.
+ * <p>
+ * A save appends a record (see <code>EntryRecord</code>) to the active segment, which is sealed once it
+ * reaches its max size. <code>dir/entries.idx</code> is a memory-mapped array of fixed-width slots, one per
+ * day from 2001/1/1 to 2100/12/31 : <code>int segmentId | int length | long dataOffset</code>, segment 0 is none.
+ * <p>
+ * Replaced versions stay in their segment until compaction re-appends the live records of a mostly dead
+ * sealed segment and deletes it. The index is checked against the segments on open, and rebuilt by
+ * scanning them if it does not match, the last record of a day wins.
+ */
+public final class SegmentStore implements EntryStore {
+	private static final long IndexMagic = 0x4449415259494458L; // DIARYIDX
+	private static final int IndexHeaderBytes = 16;
+	private static final int SlotBytes = 16;
+	private static final long FirstEpochDay = LocalDate.of(2001, 1, 1).toEpochDay();
+	private static final int Days = (int) (LocalDate.of(2100, 12, 31).toEpochDay() - FirstEpochDay + 1);
+
+	private static final class Segment {
+		final int id;
+		final Path path;
+		final FileChannel channel;
+		// guarded by the store
+		long size;
+		long liveBytes = 0;
+
+		Segment(int id, Path path) throws IOException {
+			this.id = id;
+			this.path = path;
+			this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			this.size = channel.size();
+		}
+	}
+
+	private final Path dir;
+	private final long maxSegmentBytes;
+	private final double compactionLiveRatio;
+	private final FileChannel indexChannel;
+	private final MappedByteBuffer index;
+	private final Map<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+	// guarded by this
+	private Segment active;
+	private final Set<Segment> unsynced = new HashSet<>();
+	private ScheduledExecutorService compactor = null;
+
+	public SegmentStore(Path dir, long maxSegmentBytes, double compactionLiveRatio) throws IOException {
+		this.dir = dir;
+		this.maxSegmentBytes = maxSegmentBytes;
+		this.compactionLiveRatio = compactionLiveRatio;
+		Files.createDirectories(dir);
+
+		// leftovers of uploads interrupted by a crash
+		try (var paths = Files.list(dir)) {
+			for (var path : paths.toList()) {
+				var fileName = path.getFileName().toString();
+				if (fileName.startsWith("spool.")) {
+					Files.delete(path);
+				} else if (fileName.endsWith(".seg")) {
+					var id = Integer.parseInt(fileName.substring(0, fileName.length() - 4));
+					segments.put(id, new Segment(id, path));
+				}
+			}
+		}
+		if (segments.isEmpty()) {
+			segments.put(1, new Segment(1, segmentPath(1)));
+		}
+		for (var segment : segments.values()) {
+			active = segment;
+		}
+		// only the active segment can have a torn tail, the others were forced when sealed
+		active.size = scan(active, null);
+		active.channel.truncate(active.size);
+
+		indexChannel = FileChannel.open(dir.resolve("entries.idx"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		var newIndex = indexChannel.size() == 0;
+		index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, IndexHeaderBytes + (long) Days * SlotBytes);
+		if (newIndex || index.getLong(0) != IndexMagic || ! checkIndex()) {
+			if (! newIndex) {
+				LoggerFactory.getLogger("SegmentStore").warn("Rebuild segment index of " + dir);
+			}
+			rebuildIndex();
+		}
+		for (int day = 0; day < Days; day++) {
+			var segment = segments.get(index.getInt(slot(day)));
+			if (segment != null) {
+				segment.liveBytes += EntryRecord.HeaderBytes + index.getInt(slot(day) + 4);
+			}
+		}
+	}
+
+	/**
+	 * Compact sealed segments in the background, see {@link #compact}.
+	 */
+	public synchronized void startCompaction(long intervalSeconds) {
+		if (compactor != null) {
+			return;
+		}
+		compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			var thread = new Thread(runnable, "SegmentCompactor");
+			thread.setDaemon(true);
+			return thread;
+		});
+		compactor.scheduleWithFixedDelay(() -> {
+			try {
+				var reclaimed = compact();
+				if (reclaimed > 0) {
+					LoggerFactory.getLogger("SegmentStore").info("Compaction reclaimed " + reclaimed + " bytes.");
+				}
+			} catch (IOException e) {
+				LoggerFactory.getLogger("SegmentStore").warn("Compaction failed : " + e.getMessage());
+			}
+		}, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+	}
+
+	private Path segmentPath(int id) {
+		return dir.resolve(String.format("%08d.seg", id));
+	}
+
+	private static int slot(int day) {
+		return IndexHeaderBytes + day * SlotBytes;
+	}
+
+	private static int dayOf(LocalDate date) {
+		var day = date.toEpochDay() - FirstEpochDay;
+		if (day < 0 || day >= Days) {
+			throw new IllegalArgumentException("Date out of range " + date);
+		}
+		return (int) day;
+	}
+
+	/**
+	 * Walk the valid records of a segment.
+	 *
+	 * @param consumer called with (epochDay, data offset, length) packed as a record, may be null
+	 * @return end of the last valid record
+	 */
+	private long scan(Segment segment, Consumer<long[]> consumer) throws IOException {
+		var header = ByteBuffer.allocate(EntryRecord.HeaderBytes);
+		var data = ByteBuffer.allocate(64 * 1024);
+		var size = segment.channel.size();
+		var position = 0L;
+		while (position + EntryRecord.HeaderBytes <= size) {
+			header.clear();
+			readFully(segment.channel, header, position);
+			var length = header.getInt(0);
+			var epochDay = header.getLong(4);
+			if (length < 0 || position + EntryRecord.HeaderBytes + length > size) {
+				break;
+			}
+			var crc = EntryRecord.newChecksum(epochDay);
+			for (long read = 0; read < length; ) {
+				data.clear().limit((int) Math.min(data.capacity(), length - read));
+				readFully(segment.channel, data, position + EntryRecord.HeaderBytes + read);
+				read += data.flip().remaining();
+				crc.update(data);
+			}
+			if ((int) crc.getValue() != header.getInt(12)) {
+				break;
+			}
+			if (consumer != null) {
+				consumer.accept(new long[]{epochDay, position + EntryRecord.HeaderBytes, length});
+			}
+			position += EntryRecord.HeaderBytes + length;
+		}
+		if (position < size) {
+			LoggerFactory.getLogger("SegmentStore").warn("Discard " + (size - position) + " bytes of torn tail in " + segment.path);
+		}
+		return position;
+	}
+
+	/**
+	 * Every slot must point at a record header of the same day and length.
+	 */
+	private boolean checkIndex() throws IOException {
+		var header = ByteBuffer.allocate(EntryRecord.HeaderBytes);
+		for (int day = 0; day < Days; day++) {
+			var segmentId = index.getInt(slot(day));
+			if (segmentId == 0) {
+				continue;
+			}
+			var segment = segments.get(segmentId);
+			var length = index.getInt(slot(day) + 4);
+			var offset = index.getLong(slot(day) + 8);
+			if (segment == null || offset < EntryRecord.HeaderBytes || offset + length > segment.size) {
+				return false;
+			}
+			header.clear();
+			readFully(segment.channel, header, offset - EntryRecord.HeaderBytes);
+			if (header.getInt(0) != length || header.getLong(4) != FirstEpochDay + day) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rebuildIndex() throws IOException {
+		for (int i = 0; i < IndexHeaderBytes + Days * SlotBytes; i++) {
+			index.put(i, (byte) 0);
+		}
+		for (var segment : segments.values()) {
+			scan(segment, record -> setSlot((int) (record[0] - FirstEpochDay), segment.id, (int) record[2], record[1]));
+		}
+		index.putLong(0, IndexMagic);
+		index.force();
+	}
+
+	private void setSlot(int day, int segmentId, int length, long offset) {
+		// segment id last, it marks the slot as used
+		index.putLong(slot(day) + 8, offset);
+		index.putInt(slot(day) + 4, length);
+		index.putInt(slot(day), segmentId);
+	}
+
+	@Override
+	public ByteBuffer read(LocalDate date) throws IOException {
+		var day = dayOf(date);
+		var segment = segments.get(index.getInt(slot(day)));
+		if (segment == null) {
+			return null;
+		}
+		var length = index.getInt(slot(day) + 4);
+		var offset = index.getLong(slot(day) + 8);
+		if (length >= Configure.ZeroCopyThresholdBytes) {
+			// the mapping outlives the segment, even if compaction deletes it
+			return segment.channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		}
+		var buffer = ByteBuffer.allocate(length);
+		readFully(segment.channel, buffer, offset);
+		return buffer.flip();
+	}
+
+	@Override
+	public AsyncStorage.Region open(LocalDate date) throws IOException {
+		var day = dayOf(date);
+		var segment = segments.get(index.getInt(slot(day)));
+		if (segment == null) {
+			return null;
+		}
+		// compaction moves the record under the day's write lock, and deletes the segment after, the open file outlives it
+		return AsyncStorage.openRegion(segment.path, index.getLong(slot(day) + 8), index.getInt(slot(day) + 4));
+	}
+
+	@Override
+	public Path createSpoolFile(LocalDate date) throws IOException {
+		return Files.createTempFile(dir, "spool.", ".tmp");
+	}
+
+	@Override
+	public void write(LocalDate date, Path spoolFile) throws IOException {
+		try (var spool = FileChannel.open(spoolFile, StandardOpenOption.READ)) {
+			append(dayOf(date), spool, 0, spool.size());
+		}
+		Files.delete(spoolFile);
+	}
+
+	/**
+	 * Append a record to the active segment and point the day's slot at it.
+	 * Data and checksum are produced in one pass over the source.
+	 */
+	private synchronized void append(int day, FileChannel source, long sourceOffset, long length) throws IOException {
+		if (length > Integer.MAX_VALUE) {
+			throw new IOException("Entry too large for a segment : " + length);
+		}
+		if (active.size > 0 && active.size + EntryRecord.HeaderBytes + length > maxSegmentBytes) {
+			// seal it
+			active.channel.force(false);
+			unsynced.remove(active);
+			var id = active.id + 1;
+			active = new Segment(id, segmentPath(id));
+			segments.put(id, active);
+		}
+
+		var recordOffset = active.size;
+		var dataOffset = recordOffset + EntryRecord.HeaderBytes;
+		var crc = EntryRecord.newChecksum(FirstEpochDay + day);
+		var buffer = ByteBuffer.allocate((int) Math.min(64 * 1024, Math.max(length, 1)));
+		for (long copied = 0; copied < length; ) {
+			buffer.clear().limit((int) Math.min(buffer.capacity(), length - copied));
+			readFully(source, buffer, sourceOffset + copied);
+			buffer.flip();
+			crc.update(buffer.duplicate());
+			while (buffer.hasRemaining()) {
+				copied += active.channel.write(buffer, dataOffset + copied);
+			}
+		}
+		var header = EntryRecord.header((int) length, FirstEpochDay + day, (int) crc.getValue());
+		while (header.hasRemaining()) {
+			active.channel.write(header, recordOffset + header.position());
+		}
+		active.size = dataOffset + length;
+		active.liveBytes += EntryRecord.HeaderBytes + length;
+		unsynced.add(active);
+
+		var previous = segments.get(index.getInt(slot(day)));
+		if (previous != null) {
+			previous.liveBytes -= EntryRecord.HeaderBytes + index.getInt(slot(day) + 4);
+		}
+		setSlot(day, active.id, (int) length, dataOffset);
+	}
+
+	@Override
+	public synchronized void force() throws IOException {
+		for (var segment : unsynced) {
+			segment.channel.force(false);
+		}
+		unsynced.clear();
+		index.force();
+	}
+
+	@Override
+	public void forEachDate(Consumer<LocalDate> consumer) {
+		for (int day = 0; day < Days; day++) {
+			if (index.getInt(slot(day)) != 0) {
+				consumer.accept(LocalDate.ofEpochDay(FirstEpochDay + day));
+			}
+		}
+	}
+
+	/**
+	 * Re-append the live records of every sealed segment whose live ratio is below the threshold, then delete it.
+	 * Each day is moved under its write lock, so readers never see a dangling slot.
+	 *
+	 * @return bytes reclaimed
+	 */
+	public long compact() throws IOException {
+		long reclaimed = 0;
+		for (var segment : segments.values()) {
+			synchronized (this) {
+				if (segment == active || segment.liveBytes >= segment.size * compactionLiveRatio) {
+					continue;
+				}
+			}
+			for (int day = 0; day < Days; day++) {
+				if (index.getInt(slot(day)) != segment.id) {
+					continue;
+				}
+				var lock = EntryLocks.getLock(LocalDate.ofEpochDay(FirstEpochDay + day)).writeLock();
+				EntryLocks.lock(lock);
+				try {
+					if (index.getInt(slot(day)) == segment.id) {
+						append(day, segment.channel, index.getLong(slot(day) + 8), index.getInt(slot(day) + 4));
+					}
+				} finally {
+					lock.unlock();
+				}
+			}
+			// the copies must be durable before the originals go away
+			force();
+			segments.remove(segment.id);
+			segment.channel.close();
+			Files.delete(segment.path);
+			reclaimed += segment.size;
+		}
+		return reclaimed;
+	}
+
+	/**
+	 * @return total size of the segment files
+	 */
+	public synchronized long getSegmentBytes() {
+		return segments.values().stream().mapToLong(segment -> segment.size).sum();
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (compactor != null) {
+				compactor.shutdownNow();
+			}
+		}
+		force();
+		for (var segment : segments.values()) {
+			segment.channel.close();
+		}
+		indexChannel.close();
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		var start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position() - start) < 0) {
+				throw new IOException("Unexpected end of segment");
+			}
+		}
+	}
+}
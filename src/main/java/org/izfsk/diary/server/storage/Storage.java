@@ -1,80 +1,459 @@
 package org.izfsk.diary.server.storage;
 
 import io.javalin.http.Context;
+import jakarta.servlet.MultipartConfigElement;
+import jakarta.servlet.ServletException;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.util.Callback;
 import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.KeyRegistry;
 import org.izfsk.diary.server.TargetPublicKey;
 import org.izfsk.diary.server.controllers.Auth;
+import org.izfsk.diary.server.metrics.Metrics;
 import org.izfsk.diary.server.utils.StringUtils;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.LoggerFactory;
 
-import java.io.File;
-import java.io.FileInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Base64;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 
 class SaveFileTask implements Runnable {
-	private final RandomAccessFile randomAccessFile;
-	private final String data;
+	private final Diary diary;
+	private final LocalDate targetDate;
+	private final Path tempFilePath;
+	private final String etag;
 
 	/**
-	 * Save file to disk.
-	 * Each day have its own dir, file is saved at
+	 * Publish a saved entry to the entry store.
+	 * <p>
+	 * The entry was spooled by <code>EntryStore.createSpoolFile</code>, see <code>Storage.createTempEntryFile</code>.
+	 * The store replaces the entry atomically, so readers see either the old or the new entry, never a truncated one.
 	 *
-	 * @param targetDay      target day (full path)
-	 * @param data           PGP encrypted ascii-armored data string
+	 * @param diary          target diary
+	 * @param targetDate     target day
+	 * @param tempFilePath   verified PGP encrypted ascii-armored data, spooled by the store
+	 * @param etag           validator of the data, see <code>EntryVersions</code>
 	 */
-	public SaveFileTask(String targetDay, String data) {
-		this.data = data;
-		try {
-			new File(targetDay).mkdirs();
-			randomAccessFile = new RandomAccessFile(String.valueOf(Path.of(targetDay,"diary.asc")), "rw");
-			randomAccessFile.setLength(0);
-		} catch (IOException e) {
-			LoggerFactory.getLogger("SaveFile").error(e.getMessage());
-			throw new RuntimeException(e);
-		}
+	public SaveFileTask(Diary diary, LocalDate targetDate, Path tempFilePath, String etag) {
+		this.diary = diary;
+		this.targetDate = targetDate;
+		this.tempFilePath = tempFilePath;
+		this.etag = etag;
 	}
 
 	@Override
 	public void run() {
 		try {
-			FileChannel fileChannel = randomAccessFile.getChannel();
-			FileLock fileLock;
-			while (true) {
-				try {
-					fileLock = fileChannel.tryLock();
-					break;
-				} catch (IOException e) {
-					Thread.sleep(100);
-				}
+			// small entries go to the cache, read them before taking the lock
+			var size = Files.size(tempFilePath);
+			var bytes = size < Configure.ZeroCopyThresholdBytes ? Files.readAllBytes(tempFilePath) : null;
+
+			// publish it, and refresh cache while still holding the lock
+			var lock = diary.getLock(targetDate).writeLock();
+			EntryLocks.lock(lock);
+			try {
+				var start = System.nanoTime();
+				diary.getStore().write(targetDate, tempFilePath);
+				Metrics.FileWrite.recordSince(start);
+				Metrics.BytesWritten.add(size);
+				diary.publish(targetDate, bytes, etag);
+			} finally {
+				lock.unlock();
 			}
-			// write file
-			randomAccessFile.write(this.data.getBytes(StandardCharsets.UTF_8));
-			fileLock.release();
-			fileChannel.close();
-			randomAccessFile.close();
 		} catch (IOException e) {
 			LoggerFactory.getLogger("WriteFileTask").warn("Unable to write file!");
 			e.printStackTrace();
-		} catch (InterruptedException e) {
-			LoggerFactory.getLogger("WriteFileTask").error("Error while sleep!");
-			e.printStackTrace();
-			throw new RuntimeException(e);
+			try {
+				Files.deleteIfExists(tempFilePath);
+			} catch (IOException ignored) {
+			}
+			throw new UncheckedIOException(e);
 		}
 	}
 }
 
 public final class Storage {
+	/**
+	 * @param date entry date
+	 * @return path of that day's <code>diary.asc</code> in the file tree layout of the single-user diary
+	 */
+	public static Path getEntryPath(LocalDate date) {
+		return Path.of(Configure.DiaryRootDir, StringUtils.formatDate(date), "diary.asc");
+	}
+
+	/**
+	 * Read an entry from the store, must be called under the entry's read lock.
+	 * With the journal, a durable entry is read from its spooled file until it is materialized.
+	 *
+	 * @param date entry date
+	 * @return heap or memory-mapped entry, or null if that day has no entry
+	 */
+	static ByteBuffer readStoredEntry(Diary diary, LocalDate date) throws IOException {
+		var journal = diary.getJournal();
+		if (journal != null) {
+			var spoolFile = journal.getUnmaterializedPath(date);
+			if (spoolFile != null) {
+				return countRead(FileTreeStore.readFile(spoolFile));
+			}
+		}
+		return countRead(diary.getStore().read(date));
+	}
+
+	/**
+	 * Open a stored entry for {@link AsyncStorage#read}, must be called under the entry's read lock.
+	 * Like <code>readStoredEntry</code>, a durable entry is read from its spooled file until it is materialized.
+	 *
+	 * @return the entry, or null if that day has no entry
+	 */
+	static AsyncStorage.Region openStoredEntry(Diary diary, LocalDate date) throws IOException {
+		var journal = diary.getJournal();
+		if (journal != null) {
+			var spoolFile = journal.getUnmaterializedPath(date);
+			if (spoolFile != null) {
+				return AsyncStorage.openFile(spoolFile);
+			}
+		}
+		return diary.getStore().open(date);
+	}
+
+	private static ByteBuffer countRead(ByteBuffer buffer) {
+		if (buffer != null) {
+			Metrics.BytesRead.add(buffer.remaining());
+		}
+		return buffer;
+	}
+
+	/**
+	 * Create a temp file for an upload, which the store can publish atomically.
+	 *
+	 * @param date entry date
+	 * @return temp file path
+	 */
+	static Path createTempEntryFile(Diary diary, LocalDate date) throws IOException {
+		return diary.getStore().createSpoolFile(date);
+	}
+
+	/**
+	 * Read an entry, from the entry cache if possible. Days missing from the entry index are not looked up.
+	 * On a cache miss the file is read under its stripe's read lock and put into the cache.
+	 *
+	 * @param diary diary
+	 * @param date  entry date
+	 * @return entry bytes, or null if that day has no entry
+	 */
+	public static byte[] readEntry(Diary diary, LocalDate date) throws IOException {
+		if (! diary.getIndex().contains(date)) {
+			return null;
+		}
+		var cached = EntryCache.getInstance().get(diary.getOwner(), date);
+		if (cached != null) {
+			return cached;
+		}
+
+		var lock = diary.getLock(date).readLock();
+		EntryLocks.lock(lock);
+		try {
+			var buffer = readStoredEntry(diary, date);
+			if (buffer == null) {
+				return null;
+			}
+			var data = new byte[buffer.remaining()];
+			buffer.get(data);
+			EntryCache.getInstance().put(diary.getOwner(), date, data);
+			return data;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Send an entry as the response body, bypassing Javalin's result stream and dynamic compression.
+	 * <p>
+	 * Cached or small entries are sent from heap and put into the cache.
+	 * Entries of at least <code>Configure.ZeroCopyThresholdBytes</code> are memory-mapped by the store and
+	 * handed to Jetty as is.
+	 * If that day has no entry, <code>"null"</code> is sent without touching the filesystem.
+	 *
+	 * @param context Javalin context
+	 * @param diary   diary
+	 * @param date    entry date
+	 * @return true if the entry exists
+	 */
+	public static boolean sendEntry(@NotNull Context context, Diary diary, LocalDate date) throws IOException {
+		if (! diary.getIndex().contains(date)) {
+			context.status(200).result("null");
+			return false;
+		}
+		// validator first, see EntryVersions
+		var versions = diary.getVersions();
+		var etag = versions.get(date);
+		var data = EntryCache.getInstance().get(diary.getOwner(), date);
+		if (data != null) {
+			context.header("ETag", etag != null ? etag : EntryVersions.etagOf(ByteBuffer.wrap(data)));
+			writeBody(context, ByteBuffer.wrap(data));
+			return true;
+		}
+
+		ByteBuffer buffer;
+		var lock = diary.getLock(date).readLock();
+		EntryLocks.lock(lock);
+		try {
+			buffer = readStoredEntry(diary, date);
+			if (buffer == null) {
+				context.status(200).result("null");
+				return false;
+			}
+			if (buffer.hasArray()) {
+				EntryCache.getInstance().put(diary.getOwner(), date, buffer.array());
+			}
+			etag = versions.get(date);
+			if (etag == null) {
+				etag = EntryVersions.etagOf(buffer);
+				versions.put(date, etag);
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		// a memory-mapped entry is not affected by a concurrent save
+		context.header("ETag", etag);
+		writeBody(context, buffer);
+		return true;
+	}
+
+	/**
+	 * Send an entry like {@link #sendEntry}, without waiting on the disk : a cache miss is opened under the read
+	 * lock, read on the storage pool, and the body is handed to Jetty without blocking.
+	 * <p>
+	 * The bytes read are cached, and their version kept, only if no save published the day meanwhile.
+	 * Entries of at least <code>Configure.ZeroCopyThresholdBytes</code> are not read into the heap : they are
+	 * memory-mapped on the storage pool and handed to Jetty as is, like {@link #sendEntry} does.
+	 *
+	 * @param context Javalin context
+	 * @param diary   diary
+	 * @param date    entry date
+	 * @return completes once the body is sent, with true if the entry exists
+	 */
+	public static CompletableFuture<Boolean> sendEntryAsync(@NotNull Context context, Diary diary, LocalDate date) {
+		if (! diary.getIndex().contains(date)) {
+			context.status(200).result("null");
+			return CompletableFuture.completedFuture(false);
+		}
+		// validator first, see EntryVersions
+		var versions = diary.getVersions();
+		var cachedVersion = versions.get(date);
+		var data = EntryCache.getInstance().get(diary.getOwner(), date);
+		if (data != null) {
+			context.header("ETag", cachedVersion != null ? cachedVersion : EntryVersions.etagOf(ByteBuffer.wrap(data)));
+			return writeBodyAsync(context, ByteBuffer.wrap(data)).thenApply(sent -> true);
+		}
+
+		String version;
+		AsyncStorage.Region region;
+		var lock = diary.getLock(date).readLock();
+		EntryLocks.lock(lock);
+		try {
+			version = versions.get(date);
+			region = openStoredEntry(diary, date);
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		} finally {
+			lock.unlock();
+		}
+		if (region == null) {
+			context.status(200).result("null");
+			return CompletableFuture.completedFuture(false);
+		}
+		if (region.length() >= Configure.ZeroCopyThresholdBytes) {
+			try {
+				region.channel().close();
+			} catch (IOException ignored) {
+			}
+			return sendMappedEntryAsync(context, diary, date);
+		}
+
+		return AsyncStorage.read(region).thenCompose(buffer -> {
+			var etag = version != null ? version : EntryVersions.etagOf(buffer);
+			// on the storage thread, briefly, so a concurrent save is either before the read or after this
+			EntryLocks.lock(lock);
+			try {
+				if (Objects.equals(version, versions.get(date))) {
+					if (version == null) {
+						versions.put(date, etag);
+					}
+					if (buffer.remaining() < Configure.ZeroCopyThresholdBytes) {
+						EntryCache.getInstance().put(diary.getOwner(), date, buffer.array());
+					}
+				}
+			} finally {
+				lock.unlock();
+			}
+			context.header("ETag", etag);
+			return writeBodyAsync(context, buffer).thenApply(sent -> true);
+		});
+	}
+
+	/**
+	 * Map a large entry on the storage pool under its read lock, versioning it if needed, then send it without copy.
+	 */
+	private static CompletableFuture<Boolean> sendMappedEntryAsync(@NotNull Context context, Diary diary, LocalDate date) {
+		CompletableFuture<ByteBuffer> mapped;
+		try {
+			mapped = CompletableFuture.supplyAsync(() -> {
+				var lock = diary.getLock(date).readLock();
+				EntryLocks.lock(lock);
+				try {
+					var buffer = readStoredEntry(diary, date);
+					if (buffer != null) {
+						var etag = diary.getVersions().get(date);
+						if (etag == null) {
+							etag = EntryVersions.etagOf(buffer);
+							diary.getVersions().put(date, etag);
+						}
+						context.header("ETag", etag);
+					}
+					return buffer;
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				} finally {
+					lock.unlock();
+				}
+			}, AsyncStorage.getExecutor());
+		} catch (RejectedExecutionException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		return mapped.thenCompose(buffer -> {
+			if (buffer == null) {
+				context.status(200).result("null");
+				return CompletableFuture.completedFuture(false);
+			}
+			// a memory-mapped entry is not affected by a concurrent save
+			return writeBodyAsync(context, buffer).thenApply(sent -> true);
+		});
+	}
+
+	/**
+	 * Answer a failed asynchronous read or save, 503 if the storage pool is full.
+	 */
+	public static void failStorage(@NotNull Context context, Throwable e, String what) {
+		var cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+		LoggerFactory.getLogger("Storage").warn("Error while " + what + " : " + cause);
+		if (! context.res().isCommitted()) {
+			context.status(cause instanceof RejectedExecutionException ? 503 : 500);
+		}
+	}
+
+	/**
+	 * Whether a verified save is identical to that day's entry, so its write can be elided. Compared under the day's
+	 * write lock, so no other save publishes in between, hashing the stored entry if its version is not known yet.
+	 * Never true while the journal holds a save of that day not materialized yet : it would overwrite the entry later.
+	 *
+	 * @param etag version of the save
+	 */
+	static boolean isEntryUnchanged(Diary diary, LocalDate date, String etag) throws IOException {
+		if (! diary.getIndex().contains(date)) {
+			return false;
+		}
+		var versions = diary.getVersions();
+		var lock = diary.getLock(date).writeLock();
+		EntryLocks.lock(lock);
+		try {
+			var journal = diary.getJournal();
+			if (journal != null && journal.hasPendingSave(date)) {
+				return false;
+			}
+			var current = versions.get(date);
+			if (current == null) {
+				var buffer = readStoredEntry(diary, date);
+				if (buffer == null) {
+					return false;
+				}
+				current = EntryVersions.etagOf(buffer);
+				versions.put(date, current);
+			}
+			return etag.equals(current);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Resolve the diary of a valid token's owner, held until the response is complete, including asynchronous
+	 * and streamed responses, so the idle sweeper never closes it under the request.
+	 *
+	 * @param owner owner returned by <code>Auth.getTokenOwner</code>
+	 * @return the diary, or null if it could not be opened, the response is then set
+	 */
+	public static Diary getDiary(@NotNull Context context, String owner) {
+		try {
+			var diary = Diaries.getInstance().acquire(owner);
+			// released by Diaries.ReleaseListener
+			context.req().setAttribute(Diaries.RequestAttribute, diary);
+			return diary;
+		} catch (IllegalArgumentException e) {
+			LoggerFactory.getLogger("Storage").warn("Refused diary : " + e.getMessage());
+			context.status(403);
+			return null;
+		} catch (IOException e) {
+			LoggerFactory.getLogger("Storage").warn("Unable to open diary : " + e.getMessage());
+			context.status(500);
+			return null;
+		}
+	}
+
+	private static void writeBody(@NotNull Context context, ByteBuffer body) throws IOException {
+		context.status(200);
+		context.res().setContentLengthLong(body.remaining());
+		var outputStream = context.res().getOutputStream();
+		if (outputStream instanceof HttpOutput httpOutput) {
+			// blocks until the buffer is written
+			httpOutput.sendContent(body);
+		} else {
+			Channels.newChannel(outputStream).write(body);
+			outputStream.flush();
+		}
+	}
+
+	private static CompletableFuture<Void> writeBodyAsync(@NotNull Context context, ByteBuffer body) {
+		context.status(200);
+		context.res().setContentLengthLong(body.remaining());
+		var sent = new CompletableFuture<Void>();
+		try {
+			var outputStream = context.res().getOutputStream();
+			if (outputStream instanceof HttpOutput httpOutput) {
+				// completed by Jetty once the buffer is written, no thread waits for the client
+				httpOutput.sendContent(body, Callback.from(() -> sent.complete(null), sent::completeExceptionally));
+			} else {
+				Channels.newChannel(outputStream).write(body);
+				outputStream.flush();
+				sent.complete(null);
+			}
+		} catch (IOException e) {
+			sent.completeExceptionally(e);
+		}
+		return sent;
+	}
+
 	/**
 	 * <h3>The journey data API.</h3>
 	 * <p>
 	 * verify user and return encrypted pgp data when found or "null" if not found.<br/>
+	 * Entries carry an <code>ETag</code>, a matching <code>If-None-Match</code> is answered with 304.<br/>
 	 * The path param is YYYY/MM/DD.<br/>
 	 * the request cred is appended in header <code>x-token</code>
 	 * contains <code>serverSideSalt+clientSideToken</code>.
@@ -91,44 +470,160 @@ public final class Storage {
 
 		// check user
 		var token = context.header("x-token");
-		if (token == null || Auth.checkToken(token, context.ip())) {
+		var owner = token == null ? null : Auth.getTokenOwner(token, context.ip());
+		if (owner == null) {
 			LoggerFactory.getLogger("EntryGet").warn("Invalid token." + (token == null ? "(Token is NULL)" : ""));
 			context.status(403);
 			return;
 		}
+		var diary = getDiary(context, owner);
+		if (diary == null) {
+			return;
+		}
 
-		// now send data. read from disk. acquire file lock first.
-		String targetFilePath = String.valueOf(Path.of(Configure.DiaryRootDir,targetDateString, "diary.asc"));
-		var targetFile = new File(targetFilePath);
-		if (! targetFile.exists()) {
-			LoggerFactory.getLogger("EntryGet").info("The entry " + targetDateString + " is not exists.");
-			context.status(200).result("null");
+		sendEntryIfChanged(context, diary, StringUtils.parseDate(targetDateString));
+	}
+
+	/**
+	 * Answer an entry read of a verified user : 304 if <code>If-None-Match</code> matches the entry's version,
+	 * <code>*</code> matching any existing entry, otherwise the entry from cache or disk.
+	 *
+	 * @param context    Javalin context
+	 * @param diary      the user's diary
+	 * @param targetDate entry date
+	 */
+	static void sendEntryIfChanged(@NotNull Context context, Diary diary, LocalDate targetDate) {
+		// unchanged since the client's copy, answer without touching the entry
+		context.header("Cache-Control", "private, no-cache");
+		var etag = diary.getVersions().get(targetDate);
+		if (diary.getIndex().contains(targetDate) && StringUtils.matchesIfNoneMatch(context.header("If-None-Match"), etag)) {
+			if (etag != null) {
+				context.header("ETag", etag);
+			}
+			context.status(304);
 			return;
 		}
 
-		try (var randomAccessFile = new RandomAccessFile(targetFilePath, "rw")) {
-			var fileChannel = randomAccessFile.getChannel();
-			FileLock fileLock;
-			while (true) {
-				try {
-					fileLock = fileChannel.tryLock();
-					break;
-				} catch (Exception e) {
-					Thread.sleep(100);
+		// now send data, from cache or disk.
+		if (Configure.StorageAsync) {
+			context.future(() -> sendEntryAsync(context, diary, targetDate).handle((found, e) -> {
+				if (e != null) {
+					failStorage(context, e, "reading file " + StringUtils.formatDate(targetDate));
+				} else if (! found) {
+					LoggerFactory.getLogger("EntryGet").info("The entry " + StringUtils.formatDate(targetDate) + " is not exists.");
+				}
+				return null;
+			}));
+			return;
+		}
+		try {
+			if (! sendEntry(context, diary, targetDate)) {
+				LoggerFactory.getLogger("EntryGet").info("The entry " + StringUtils.formatDate(targetDate) + " is not exists.");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			LoggerFactory.getLogger("EntryGet").info("Error while reading file " + StringUtils.formatDate(targetDate));
+			context.status(500);
+		}
+	}
+
+	/**
+	 * <h3>The journey range API.</h3>
+	 * <p>
+	 * verify user once and stream every existing entry between query params <code>from</code> and <code>to</code>
+	 * (both YYYY/MM/DD, inclusive) as NDJSON, one <code>{"date":"YYYY/M/D","data":"..."}</code> line per entry.
+	 * Days without entry are skipped. The range is capped at <code>Configure.RangeMaxDays</code> days.
+	 * <p>
+	 * headers : <code>x-token</code> : serverSideSalt+clientSideSalt
+	 *
+	 * @param context Javalin context
+	 */
+	public static void EntryRangeGetHandler(@NotNull Context context) {
+		var fromDate = StringUtils.parseDate(Objects.requireNonNullElse(context.queryParam("from"), ""));
+		var toDate = StringUtils.parseDate(Objects.requireNonNullElse(context.queryParam("to"), ""));
+		if (fromDate == null || toDate == null || fromDate.isAfter(toDate) ||
+				ChronoUnit.DAYS.between(fromDate, toDate) >= Configure.RangeMaxDays) {
+			LoggerFactory.getLogger("EntryRangeGet").warn("Invalid range " + context.queryParam("from") + " - " + context.queryParam("to"));
+			context.status(400);
+			return;
+		}
+
+		// check user
+		var token = context.header("x-token");
+		var owner = token == null ? null : Auth.getTokenOwner(token, context.ip());
+		if (owner == null) {
+			LoggerFactory.getLogger("EntryRangeGet").warn("Invalid token." + (token == null ? "(Token is NULL)" : ""));
+			context.status(403);
+			return;
+		}
+		var diary = getDiary(context, owner);
+		if (diary == null) {
+			return;
+		}
+
+		// stream entries one by one, only a single entry is held at a time
+		context.status(200).contentType("application/x-ndjson");
+		try {
+			var outputStream = context.outputStream();
+			for (var date = fromDate; ! date.isAfter(toDate); date = date.plusDays(1)) {
+				var data = readEntry(diary, date);
+				if (data == null) {
+					continue;
 				}
+				outputStream.write(("{\"date\":\"" + StringUtils.formatDate(date) + "\",\"data\":").getBytes(StandardCharsets.UTF_8));
+				StringUtils.writeJsonString(outputStream, ByteBuffer.wrap(data));
+				outputStream.write(new byte[]{'}', '\n'});
 			}
-			context.status(200).result(new FileInputStream(targetFile));
-			fileLock.release();
-		} catch (IOException | InterruptedException e) {
+		} catch (IOException e) {
 			e.printStackTrace();
-			LoggerFactory.getLogger("EntryGet").info("Error while reading file " + targetDateString);
+			LoggerFactory.getLogger("EntryRangeGet").info("Error while sending range " + fromDate + " - " + toDate);
 		}
 	}
 
+	/**
+	 * <h3>The journey index API.</h3>
+	 * <p>
+	 * verify user and return which days of the year in path param <code>year</code> have an entry,
+	 * as a {@value EntryIndex#YearBitmapBytes} byte bitmap. Bit <code>dayOfYear - 1</code> is bit
+	 * <code>n % 8</code> of byte <code>n / 8</code>.
+	 * <p>
+	 * headers : <code>x-token</code> : serverSideSalt+clientSideSalt
+	 *
+	 * @param context Javalin context
+	 */
+	public static void IndexGetHandler(@NotNull Context context) {
+		int year;
+		try {
+			year = Integer.parseInt(context.pathParam("year"));
+		} catch (NumberFormatException e) {
+			LoggerFactory.getLogger("IndexGet").warn("Invalid year " + context.pathParam("year"));
+			context.status(400);
+			return;
+		}
+
+		// check user
+		var token = context.header("x-token");
+		var owner = token == null ? null : Auth.getTokenOwner(token, context.ip());
+		if (owner == null) {
+			LoggerFactory.getLogger("IndexGet").warn("Invalid token." + (token == null ? "(Token is NULL)" : ""));
+			context.status(403);
+			return;
+		}
+		var diary = getDiary(context, owner);
+		if (diary == null) {
+			return;
+		}
+
+		context.status(200)
+				.contentType("application/octet-stream")
+				.result(diary.getIndex().getYearBitmap(year));
+	}
+
 	/**
 	 * <h3>The journey setter </h3>
 	 * <p>
 	 * verify user and save file. the file save operation is a task thread.
+	 * A verified entry identical to the stored one is not written again.
 	 * <p>
 	 * headers : <code>x-token</code> : serverSideSalt+clientSideSalt
 	 * post form : <code>data</code> : gpg encrypted ascii-armored string
@@ -139,7 +634,8 @@ public final class Storage {
 	public static void EntrySetHandler(@NotNull Context context) {
 		// check user
 		var token = context.header("x-token");
-		if (token == null || Auth.checkToken(token, context.ip())) {
+		var owner = token == null ? null : Auth.getTokenOwner(token, context.ip());
+		if (owner == null) {
 			LoggerFactory.getLogger("EntrySet").warn("Invalid token.");
 			context.status(403);
 			return;
@@ -153,33 +649,160 @@ public final class Storage {
 			return;
 		}
 
-		// now save data
-		var gpgData = context.formParam("data");
-		var signature = context.formParam("signature");
+		// the owner's key, which may have been removed since the token was issued
+		var diary = getDiary(context, owner);
+		if (diary == null) {
+			return;
+		}
+		var verifier = KeyRegistry.getInstance().getVerifier(diary.getOwner());
+		if (verifier == null) {
+			LoggerFactory.getLogger("EntrySet").warn("Key of " + diary.getOwner() + " is not registered any more.");
+			context.status(403);
+			return;
+		}
+
+		// check body size before reading it
+		if (context.req().getContentLengthLong() > Configure.SaveMaxBodyBytes) {
+			LoggerFactory.getLogger("EntrySet").warn("Body is too large : " + context.req().getContentLengthLong());
+			context.status(413);
+			return;
+		}
+
+		// now save data, the data part is streamed, never buffered as a whole
+		InputStream gpgData;
+		byte[] signature;
+		try {
+			if (context.isMultipartFormData()) {
+				context.req().setAttribute(Request.__MULTIPART_CONFIG_ELEMENT, new MultipartConfigElement(
+						System.getProperty("java.io.tmpdir"),
+						Configure.SaveMaxBodyBytes,
+						Configure.SaveMaxBodyBytes,
+						Configure.SaveSpoolThresholdBytes));
+				var dataPart = context.req().getPart("data");
+				var signaturePart = context.req().getPart("signature");
+				gpgData = dataPart == null ? null : dataPart.getInputStream();
+				signature = signaturePart == null ? null : signaturePart.getInputStream().readNBytes(Configure.SignatureMaxBytes);
+			} else {
+				var dataParam = context.formParam("data");
+				var signatureParam = context.formParam("signature");
+				gpgData = dataParam == null ? null : new ByteArrayInputStream(dataParam.getBytes(StandardCharsets.UTF_8));
+				signature = signatureParam == null ? null : signatureParam.getBytes(StandardCharsets.US_ASCII);
+			}
+		} catch (IllegalStateException e) {
+			// thrown by Jetty when the multipart limits are exceeded
+			LoggerFactory.getLogger("EntrySet").warn("Body is too large : " + e.getMessage());
+			context.status(413);
+			return;
+		} catch (IOException | ServletException e) {
+			LoggerFactory.getLogger("EntrySet").warn("Unable to read body : " + e.getMessage());
+			context.status(400);
+			return;
+		}
 		if (gpgData == null || signature == null) {
 			LoggerFactory.getLogger("EntrySet").warn("Empty token or gpg data!");
 			context.status(400);
 			return;
 		}
+
 		// the gpgData will be treated as decrypt target by verifyDetachedSignature
 		// so the signature target is Base64-encoded-string of original gpgData!
-		if (! TargetPublicKey.verifyDetachedSignature(Base64.getEncoder()
-				.encodeToString(gpgData.replaceAll("\r\n", "\n").getBytes()), signature)) {
+		// spool and verify in one pass on the verification pool, the temp file is only published if valid.
+		Path tempFilePath;
+		boolean verified;
+		try {
+			tempFilePath = createTempEntryFile(diary, targetDate);
+		} catch (IOException e) {
+			e.printStackTrace();
+			context.status(500);
+			return;
+		}
+		var start = System.nanoTime();
+		var digest = EntryVersions.newDigest();
+		try {
+			var verification = verifier.startVerification(signature);
+			verified = TargetPublicKey.runVerification(() -> EntryUpload.spoolAndVerify(
+					gpgData, tempFilePath, verification, digest, Configure.SaveMaxBodyBytes));
+			Metrics.SpoolAndVerify.recordSince(start);
+		} catch (ExecutionException e) {
+			deleteQuietly(tempFilePath);
+			if (e.getCause() instanceof EntryUpload.TooLargeException) {
+				LoggerFactory.getLogger("EntrySet").warn(e.getCause().getMessage());
+				context.status(413);
+			} else {
+				LoggerFactory.getLogger("EntrySet").warn("Unable to spool entry : " + e.getCause());
+				context.status(500);
+			}
+			return;
+		} catch (InterruptedException e) {
+			deleteQuietly(tempFilePath);
+			Thread.currentThread().interrupt();
+			context.status(500);
+			return;
+		} catch (RuntimeException e) {
+			deleteQuietly(tempFilePath);
+			throw e;
+		}
+		if (! verified) {
+			deleteQuietly(tempFilePath);
 			LoggerFactory.getLogger("EntrySet").warn("Verify signature failed!");
 			context.status(403);
 			return;
 		}
 
+		// identical to the stored entry, nothing to write
+		var etag = EntryVersions.toEtag(digest.digest());
+		try {
+			if (isEntryUnchanged(diary, targetDate, etag)) {
+				deleteQuietly(tempFilePath);
+				Metrics.SavesElided.increment();
+				LoggerFactory.getLogger("EntrySet").info("Entry " + targetDate + " unchanged, write elided.");
+				context.status(200);
+				return;
+			}
+		} catch (IOException e) {
+			LoggerFactory.getLogger("EntrySet").warn("Unable to read entry " + targetDate + " : " + e.getMessage());
+		}
+		diary.getStore().setSpoolVersion(tempFilePath, etag);
+
+		// through the journal, answer once the entry is durable
+		var journal = diary.getJournal();
+		if (journal != null) {
+			context.future(() -> journal.append(targetDate, tempFilePath, etag).thenRun(() -> context.status(200)));
+			return;
+		}
+
+		// publish it on the storage pool, answer once it is visible
+		if (Configure.StorageAsync) {
+			CompletableFuture<Void> saved;
+			try {
+				saved = CompletableFuture.runAsync(new SaveFileTask(diary, targetDate, tempFilePath, etag), AsyncStorage.getExecutor());
+			} catch (RejectedExecutionException e) {
+				deleteQuietly(tempFilePath);
+				failStorage(context, e, "queueing save of " + targetDate);
+				return;
+			}
+			context.future(() -> saved.handle((ignored, e) -> {
+				if (e != null) {
+					failStorage(context, e, "saving " + targetDate);
+				} else {
+					context.status(200);
+				}
+				return null;
+			}));
+			return;
+		}
+
 		// set a thread to save file
 		context.async(() -> {
-			var formattedDateString = String.join("/",
-					String.valueOf(targetDate.getYear()),
-					String.valueOf(targetDate.getMonthValue()),
-					String.valueOf(targetDate.getDayOfMonth()));
-			new SaveFileTask(String.valueOf(Path.of(
-					Configure.DiaryRootDir, formattedDateString)
-			), gpgData).run();
+			new SaveFileTask(diary, targetDate, tempFilePath, etag).run();
 			context.status(200);
 		});
 	}
+
+	static void deleteQuietly(Path path) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException ignored) {
+		}
+	}
 }
@@ -1,5 +1,11 @@
 package org.izfsk.diary.server.utils;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 import java.util.Random;
 
 public final class StringUtils {
@@ -12,6 +18,16 @@ public final class StringUtils {
 	}
 
 	public static boolean checkDate(String dateString) {
+		return parseDate(dateString) != null;
+	}
+
+	/**
+	 * Parse a <code>YYYY/MM/DD</code> date string (month and day may be zero-padded or not).
+	 *
+	 * @param dateString date string from request
+	 * @return the date, or null if it is malformed or out of range
+	 */
+	public static LocalDate parseDate(String dateString) {
 		int year, month, day;
 
 		// check date format
@@ -26,9 +42,99 @@ public final class StringUtils {
 			if (year < 2001 || year > 2100 || month < 0 || month > 12 || day < 0 || day > 31) {
 				throw new NumberFormatException();
 			}
-		} catch (NumberFormatException e) {
+			return LocalDate.of(year, month, day);
+		} catch (NumberFormatException | DateTimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Format a date the way entries are laid out on disk : <code>YYYY/M/D</code>, not zero-padded.
+	 *
+	 * @param date the date
+	 * @return formatted date string
+	 */
+	public static String formatDate(LocalDate date) {
+		return String.join("/",
+				String.valueOf(date.getYear()),
+				String.valueOf(date.getMonthValue()),
+				String.valueOf(date.getDayOfMonth()));
+	}
+
+	/**
+	 * Write bytes as a JSON string literal, quotes included, escaping byte by byte without decoding :
+	 * armored entries and versions are ASCII, other UTF-8 bytes pass as they are.
+	 *
+	 * @param outputStream destination
+	 * @param value        UTF-8 bytes, from position to limit, not consumed
+	 */
+	public static void writeJsonString(OutputStream outputStream, ByteBuffer value) throws IOException {
+		var buffer = new byte[8192 + 6];
+		var length = 0;
+		buffer[length++] = '"';
+		for (int i = value.position(); i < value.limit(); i++) {
+			if (length >= 8192) {
+				outputStream.write(buffer, 0, length);
+				length = 0;
+			}
+			var b = value.get(i);
+			switch (b) {
+				case '"', '\\' -> {
+					buffer[length++] = '\\';
+					buffer[length++] = b;
+				}
+				case '\n' -> {
+					buffer[length++] = '\\';
+					buffer[length++] = 'n';
+				}
+				case '\r' -> {
+					buffer[length++] = '\\';
+					buffer[length++] = 'r';
+				}
+				case '\t' -> {
+					buffer[length++] = '\\';
+					buffer[length++] = 't';
+				}
+				default -> {
+					if (b >= 0 && b < 0x20) {
+						var escape = String.format("\\u%04x", b).getBytes(StandardCharsets.US_ASCII);
+						System.arraycopy(escape, 0, buffer, length, escape.length);
+						length += escape.length;
+					} else {
+						buffer[length++] = b;
+					}
+				}
+			}
+		}
+		buffer[length++] = '"';
+		outputStream.write(buffer, 0, length);
+	}
+
+	public static void writeJsonString(OutputStream outputStream, String value) throws IOException {
+		writeJsonString(outputStream, ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+	}
+
+	/**
+	 * Weak comparison of an <code>If-None-Match</code> header with a validator : the header is a comma separated
+	 * list of entity tags, <code>W/</code> prefixes are ignored, and <code>*</code> matches any current entity.
+	 *
+	 * @param ifNoneMatch header value, may be null
+	 * @param etag        quoted validator of the current entity, may be null if it is not known
+	 * @return true if the client's copy is current
+	 */
+	public static boolean matchesIfNoneMatch(String ifNoneMatch, String etag) {
+		if (ifNoneMatch == null) {
 			return false;
 		}
-		return true;
+		for (var tag : ifNoneMatch.split(",")) {
+			tag = tag.strip();
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
 	}
 }
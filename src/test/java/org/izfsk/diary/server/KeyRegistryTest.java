@@ -0,0 +1,52 @@
+package org.izfsk.diary.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.pgpainless.PGPainless;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyRegistryTest {
+
+	@Test
+	void lookupTest(@TempDir Path keyDir) throws Exception {
+		var first = PGPainless.extractCertificate(PGPainless.generateKeyRing().modernKeyRing("first <first@example.com>", (String) null));
+		var second = PGPainless.extractCertificate(PGPainless.generateKeyRing().modernKeyRing("second <second@example.com>", (String) null));
+		var firstFingerprint = KeyRegistry.register(keyDir, first);
+		var secondFingerprint = KeyRegistry.register(keyDir, second);
+
+		var registry = new KeyRegistry(keyDir, 1);
+		assertTrue(registry.isMultiUser());
+		assertEquals(firstFingerprint, registry.getVerifier(firstFingerprint).getFingerprint());
+		assertSame(registry.getVerifier(firstFingerprint), registry.getVerifier(firstFingerprint));
+
+		// the LRU only keeps the last key
+		assertEquals(secondFingerprint, registry.getVerifier(secondFingerprint).getFingerprint());
+		assertEquals(1, registry.getCachedKeyCount());
+
+		assertNull(registry.getVerifier(""));
+		assertNull(registry.getVerifier("../" + firstFingerprint));
+		assertNull(registry.getVerifier("0".repeat(40)));
+	}
+
+	@Test
+	void rejectMisnamedKeyTest(@TempDir Path keyDir) throws Exception {
+		var key = PGPainless.extractCertificate(PGPainless.generateKeyRing().modernKeyRing("key <key@example.com>", (String) null));
+		var fingerprint = KeyRegistry.register(keyDir, key);
+		var otherFingerprint = "A".repeat(40);
+		Files.move(keyDir.resolve(fingerprint + ".asc"), keyDir.resolve(otherFingerprint + ".asc"));
+
+		assertNull(new KeyRegistry(keyDir, 16).getVerifier(otherFingerprint));
+	}
+
+	@Test
+	void singleUserTest() {
+		var registry = new KeyRegistry(null, 16);
+		assertFalse(registry.isMultiUser());
+		assertSame(TargetPublicKey.getSignatureVerifier(), registry.getVerifier(""));
+		assertNull(registry.getVerifier("A".repeat(40)));
+	}
+}
@@ -0,0 +1,63 @@
+package org.izfsk.diary.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SettingsTest {
+
+	@Test
+	void environmentNameTest() {
+		assertEquals("DIARY_ROOT_DIR", Settings.toEnvironmentName("diary.rootDir"));
+		assertEquals("DIARY_HTTP2_MAX_CONCURRENT_STREAMS", Settings.toEnvironmentName("diary.http2.maxConcurrentStreams"));
+	}
+
+	@Test
+	void precedenceTest(@TempDir Path dir) throws Exception {
+		var configFile = dir.resolve("diary.properties");
+		Files.writeString(configFile, """
+				diary.preset=low-memory
+				diary.threads.max=64
+				diary.http.port=8081
+				diary.https.port=7778
+				""");
+
+		var settings = new Settings(
+				Map.of("diary.config", configFile.toString(), "diary.http.port", "9090"),
+				Map.of("DIARY_HTTP_PORT", "9091", "DIARY_HTTPS_PORT", "9443"));
+		// system property, environment, file, preset, default
+		assertEquals(9090, settings.getInt("diary.http.port", 8080));
+		assertEquals(9443, settings.getInt("diary.https.port", 7777));
+		assertEquals(64, settings.getInt("diary.threads.max", 200));
+		assertEquals(32, settings.getInt("diary.http2.maxConcurrentStreams", 128));
+		assertEquals("/srv/diary", settings.getString("diary.rootDir", "/srv/diary"));
+		assertEquals("file " + configFile + ", preset low-memory", settings.getSources());
+	}
+
+	@Test
+	void presetsTest() {
+		for (var preset : new String[]{"low-memory", "high-concurrency"}) {
+			var settings = new Settings(Map.of("diary.preset", preset), Map.of());
+			assertTrue(settings.getInt("diary.threads.max", -1) > 0);
+			assertTrue(settings.getInt("diary.http2.streamRecvWindow", -1) > 0);
+		}
+		assertEquals("defaults", new Settings(Map.of(), Map.of()).getSources());
+	}
+
+	@Test
+	void invalidTest() {
+		assertThrows(IllegalArgumentException.class, () -> new Settings(Map.of("diary.preset", "huge"), Map.of()));
+		assertThrows(UncheckedIOException.class, () -> new Settings(Map.of("diary.config", "/nonexistent/diary.properties"), Map.of()));
+
+		var settings = new Settings(Map.of("diary.http.port", "http", "diary.cache.maxBytes", "4294967296"), Map.of());
+		assertThrows(IllegalArgumentException.class, () -> settings.getInt("diary.http.port", 8080));
+		assertThrows(IllegalArgumentException.class, () -> settings.getInt("diary.cache.maxBytes", 0));
+		assertEquals(4294967296L, settings.getLong("diary.cache.maxBytes", 0));
+	}
+}
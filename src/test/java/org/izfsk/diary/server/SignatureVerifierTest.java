@@ -0,0 +1,62 @@
+package org.izfsk.diary.server;
+
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.util.io.Streams;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.pgpainless.PGPainless;
+import org.pgpainless.algorithm.DocumentSignatureType;
+import org.pgpainless.encryption_signing.ProducerOptions;
+import org.pgpainless.encryption_signing.SigningOptions;
+import org.pgpainless.key.protection.SecretKeyRingProtector;
+import org.pgpainless.util.ArmorUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SignatureVerifierTest {
+	private static PGPSecretKeyRing secretKeyRing;
+	private static SignatureVerifier verifier;
+
+	@BeforeAll
+	static void generateKey() throws Exception {
+		secretKeyRing = PGPainless.generateKeyRing().modernKeyRing("test <test@example.com>", (String) null);
+		verifier = new SignatureVerifier(PGPainless.extractCertificate(secretKeyRing));
+	}
+
+	private static byte[] sign(String message, DocumentSignatureType signatureType) throws Exception {
+		var signingStream = PGPainless.encryptAndOrSign()
+				.onOutputStream(new ByteArrayOutputStream())
+				.withOptions(ProducerOptions.sign(SigningOptions.get()
+						.addDetachedSignature(SecretKeyRingProtector.unprotectedKeys(), secretKeyRing, signatureType)));
+		Streams.pipeAll(new ByteArrayInputStream(message.getBytes(StandardCharsets.UTF_8)), signingStream);
+		signingStream.close();
+		var signature = signingStream.getResult().getDetachedSignatures().values().iterator().next().iterator().next();
+		return ArmorUtils.toAsciiArmoredString(signature).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	void verifyBinarySignatureTest() throws Exception {
+		var signature = sign("Hello, World!", DocumentSignatureType.BINARY_DOCUMENT);
+		assertTrue(verifier.verify("Hello, World!".getBytes(StandardCharsets.UTF_8), signature));
+		assertFalse(verifier.verify("Hel, World!".getBytes(StandardCharsets.UTF_8), signature));
+	}
+
+	@Test
+	void verifyTextSignatureTest() throws Exception {
+		var signature = sign("SGVsbG8sIFdvcmxkIQ==", DocumentSignatureType.CANONICAL_TEXT_DOCUMENT);
+		assertTrue(verifier.verify("SGVsbG8sIFdvcmxkIQ==".getBytes(StandardCharsets.UTF_8), signature));
+	}
+
+	@Test
+	void rejectForeignSignatureTest() throws Exception {
+		var otherKey = PGPainless.generateKeyRing().modernKeyRing("other <other@example.com>", (String) null);
+		var otherVerifier = new SignatureVerifier(PGPainless.extractCertificate(otherKey));
+		var signature = sign("Hello, World!", DocumentSignatureType.BINARY_DOCUMENT);
+		assertFalse(otherVerifier.verify("Hello, World!".getBytes(StandardCharsets.UTF_8), signature));
+		assertFalse(verifier.verify("Hello, World!".getBytes(StandardCharsets.UTF_8), "garbage".getBytes(StandardCharsets.US_ASCII)));
+	}
+}
@@ -0,0 +1,42 @@
+package org.izfsk.diary.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TrustedProxyCustomizerTest {
+	@Test
+	void rightmostUntrustedHopTest() throws Exception {
+		var customizer = new TrustedProxyCustomizer("127.0.0.1, 10.0.0.2");
+		var proxy = InetAddress.getByName("127.0.0.1");
+
+		// the client prepends a spoofed address, the proxy appends the real one
+		assertEquals(InetAddress.getByName("203.0.113.7"),
+				customizer.getClientAddress(proxy, List.of("1.2.3.4, 203.0.113.7")));
+		// hops of trusted proxies are skipped, over several lines
+		assertEquals(InetAddress.getByName("203.0.113.7"),
+				customizer.getClientAddress(proxy, List.of("1.2.3.4", "203.0.113.7, 10.0.0.2")));
+		assertEquals(InetAddress.getByName("2001:db8::1"),
+				customizer.getClientAddress(proxy, List.of("[2001:db8::1]")));
+
+		// an untrusted peer keeps its address, whatever it sends
+		assertNull(customizer.getClientAddress(InetAddress.getByName("198.51.100.1"), List.of("1.2.3.4")));
+		// no header, or garbage where the proxy writes
+		assertNull(customizer.getClientAddress(proxy, List.of()));
+		assertNull(customizer.getClientAddress(proxy, List.of("1.2.3.4, unknown")));
+	}
+
+	@Test
+	void parseAddressTest() {
+		assertNotNull(TrustedProxyCustomizer.parseAddress("192.0.2.1"));
+		assertNotNull(TrustedProxyCustomizer.parseAddress("::1"));
+		assertNull(TrustedProxyCustomizer.parseAddress("256.0.0.1"));
+		assertNull(TrustedProxyCustomizer.parseAddress("localhost"));
+		assertNull(TrustedProxyCustomizer.parseAddress("cafe"));
+		assertNull(TrustedProxyCustomizer.parseAddress("1:2:3"));
+		assertThrows(IllegalArgumentException.class, () -> new TrustedProxyCustomizer("proxy.example.com"));
+	}
+}
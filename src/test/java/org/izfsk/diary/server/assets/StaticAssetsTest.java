@@ -0,0 +1,54 @@
+package org.izfsk.diary.server.assets;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StaticAssetsTest {
+
+	@Test
+	void loadAssetTest(@TempDir Path assetDir) throws Exception {
+		var script = "console.log('diary');\n".repeat(100);
+		var scriptPath = assetDir.resolve("Application.c341de8f.js");
+		Files.writeString(scriptPath, script);
+		Files.write(assetDir.resolve("Application.c341de8f.js.br"), new byte[]{1, 2, 3});
+		Files.writeString(assetDir.resolve("index.html"), "<html></html>");
+
+		var asset = StaticAssets.loadAsset(scriptPath);
+		assertEquals("text/javascript; charset=utf-8", asset.contentType());
+		assertEquals(StaticAssets.ImmutableCacheControl, asset.cacheControl());
+		assertEquals(script, new String(new GZIPInputStream(new ByteArrayInputStream(asset.gzip().body())).readAllBytes()));
+		assertArrayEquals(new byte[]{1, 2, 3}, asset.brotli().body());
+		assertNotEquals(asset.identity().etag(), asset.gzip().etag());
+
+		// too small to gain from gzip
+		var index = StaticAssets.loadAsset(assetDir.resolve("index.html"));
+		assertEquals(StaticAssets.RevalidateCacheControl, index.cacheControl());
+		assertNull(index.gzip());
+		assertNull(index.brotli());
+
+		var assets = new StaticAssets();
+		assets.load(assetDir);
+		assertEquals(2, assets.getAssetCount());
+	}
+
+	@Test
+	void selectVariantTest(@TempDir Path assetDir) throws Exception {
+		var scriptPath = assetDir.resolve("index.331db15f.js");
+		Files.writeString(scriptPath, "let a = 1;\n".repeat(100));
+		Files.write(assetDir.resolve("index.331db15f.js.br"), new byte[]{1});
+		var asset = StaticAssets.loadAsset(scriptPath);
+
+		assertSame(asset.identity(), StaticAssets.selectVariant(null, asset));
+		assertSame(asset.brotli(), StaticAssets.selectVariant("gzip, deflate, br", asset));
+		assertSame(asset.gzip(), StaticAssets.selectVariant("gzip, br;q=0", asset));
+		assertSame(asset.gzip(), StaticAssets.selectVariant("GZIP", asset));
+		assertSame(asset.identity(), StaticAssets.selectVariant("deflate", asset));
+	}
+}
@@ -0,0 +1,92 @@
+package org.izfsk.diary.server.controllers;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuthTokenStoreTest {
+
+	private static TokenPayload pending(String clientIP) {
+		return new TokenPayload(null, clientIP, false, LocalDate.now(), Instant.now(), null);
+	}
+
+	private static TokenPayload valid(TokenPayload pending, String owner) {
+		return new TokenPayload("cccccccccccccccc", pending.clientIP(), true, LocalDate.now(), Instant.now(), owner);
+	}
+
+	@Test
+	void dropOldestPendingTokenOfSameIPTest() {
+		var store = new authTokenStore(10, 2, Duration.ofMinutes(5));
+		store.put("aaaaaaaaaaaaaaaa", pending("1.1.1.1"));
+		store.put("bbbbbbbbbbbbbbbb", pending("2.2.2.2"));
+		store.put("cccccccccccccccc", pending("1.1.1.1"));
+		assertNotNull(store.get("aaaaaaaaaaaaaaaa"));
+		store.put("dddddddddddddddd", pending("1.1.1.1"));
+		assertNull(store.get("aaaaaaaaaaaaaaaa"));
+		assertNotNull(store.get("bbbbbbbbbbbbbbbb"));
+		assertNotNull(store.get("cccccccccccccccc"));
+		assertNotNull(store.get("dddddddddddddddd"));
+		assertEquals(3, store.size());
+	}
+
+	@Test
+	void ownersBehindSameIPTest() {
+		var store = new authTokenStore(10, 1, Duration.ofMinutes(5));
+		var alice = pending("1.1.1.1");
+		store.put("aaaaaaaaaaaaaaaa", alice);
+		assertTrue(store.replace("aaaaaaaaaaaaaaaa", alice, valid(alice, "ALICE")));
+		var bob = pending("1.1.1.1");
+		store.put("bbbbbbbbbbbbbbbb", bob);
+		assertTrue(store.replace("bbbbbbbbbbbbbbbb", bob, valid(bob, "BOB")));
+
+		// stage 1 from the same IP keeps both logins
+		store.put("cccccccccccccccc", pending("1.1.1.1"));
+		store.put("dddddddddddddddd", pending("1.1.1.1"));
+		assertTrue(store.get("aaaaaaaaaaaaaaaa").valid());
+		assertTrue(store.get("bbbbbbbbbbbbbbbb").valid());
+		assertNull(store.get("cccccccccccccccc"));
+
+		// a user's new login replaces only their own token
+		var aliceAgain = store.get("dddddddddddddddd");
+		assertTrue(store.replace("dddddddddddddddd", aliceAgain, valid(aliceAgain, "ALICE")));
+		assertNull(store.get("aaaaaaaaaaaaaaaa"));
+		assertTrue(store.get("bbbbbbbbbbbbbbbb").valid());
+		assertEquals(2, store.countValid());
+	}
+
+	@Test
+	void sweepAndCapTest() {
+		var store = new authTokenStore(2, 16, Duration.ofMinutes(5));
+		var now = Instant.now();
+		var pending = new TokenPayload(null, "1.1.1.1", false, LocalDate.now(), now.minus(Duration.ofMinutes(10)), null);
+		var valid = new TokenPayload("cccccccccccccccc", "2.2.2.2", true, LocalDate.now(), now.minus(Duration.ofMinutes(10)), "");
+		assertTrue(store.put("aaaaaaaaaaaaaaaa", pending));
+		assertTrue(store.put("bbbbbbbbbbbbbbbb", valid));
+
+		// full, but the stale pending token is swept to make room
+		assertTrue(store.put("dddddddddddddddd", new TokenPayload(null, "3.3.3.3", false, LocalDate.now(), now, null)));
+		assertNull(store.get("aaaaaaaaaaaaaaaa"));
+		assertNotNull(store.get("bbbbbbbbbbbbbbbb"));
+
+		// full with live tokens
+		assertFalse(store.put("eeeeeeeeeeeeeeee", new TokenPayload(null, "4.4.4.4", false, LocalDate.now(), now, null)));
+		assertEquals(2, store.size());
+	}
+
+	@Test
+	void fullSweepThrottleTest() {
+		var store = new authTokenStore(1, 16, Duration.ofMinutes(5));
+		var stale = Instant.now().minus(Duration.ofMinutes(10));
+		assertTrue(store.put("aaaaaaaaaaaaaaaa", new TokenPayload(null, "1.1.1.1", false, LocalDate.now(), stale, null)));
+		assertTrue(store.put("bbbbbbbbbbbbbbbb", new TokenPayload(null, "2.2.2.2", false, LocalDate.now(), stale, null)));
+
+		// the stale token is left to the background sweeper, a full store swept within the second
+		assertFalse(store.put("cccccccccccccccc", new TokenPayload(null, "3.3.3.3", false, LocalDate.now(), Instant.now(), null)));
+		assertNotNull(store.get("bbbbbbbbbbbbbbbb"));
+		assertEquals(1, store.sweep(Instant.now()));
+	}
+}
@@ -0,0 +1,32 @@
+package org.izfsk.diary.server.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+	@Test
+	void writeToTest() {
+		var histogram = new LatencyHistogram();
+		histogram.record(50_000L);
+		histogram.record(100_000L);
+		histogram.record(2_000_000L);
+		histogram.record(60_000_000_000L);
+		assertEquals(4, histogram.getCount());
+
+		var builder = new StringBuilder();
+		histogram.writeTo(builder, "test_seconds", "route=\"/save\"");
+		var text = builder.toString();
+		assertTrue(text.contains("test_seconds_bucket{route=\"/save\",le=\"1.0E-4\"} 2\n"));
+		assertTrue(text.contains("test_seconds_bucket{route=\"/save\",le=\"0.0025\"} 3\n"));
+		assertTrue(text.contains("test_seconds_bucket{route=\"/save\",le=\"10.0\"} 3\n"));
+		assertTrue(text.contains("test_seconds_bucket{route=\"/save\",le=\"+Inf\"} 4\n"));
+		assertTrue(text.contains("test_seconds_count{route=\"/save\"} 4\n"));
+
+		builder.setLength(0);
+		new LatencyHistogram().writeTo(builder, "empty_seconds", "");
+		assertTrue(builder.toString().contains("empty_seconds_bucket{le=\"+Inf\"} 0\n"));
+		assertTrue(builder.toString().contains("empty_seconds_sum 0.0\n"));
+	}
+}
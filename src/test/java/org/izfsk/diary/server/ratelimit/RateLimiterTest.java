@@ -0,0 +1,66 @@
+package org.izfsk.diary.server.ratelimit;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+	private static final long Second = TimeUnit.SECONDS.toNanos(1);
+
+	@Test
+	void burstAndRefillTest() {
+		// 60 a minute, one token a second
+		var limiter = new RateLimiter("test", 5, 60, 16);
+		var now = System.nanoTime();
+		for (int i = 0; i < 5; i++) {
+			assertEquals(0, limiter.tryAcquire("1.2.3.4", 1, now));
+		}
+		var wait = limiter.tryAcquire("1.2.3.4", 1, now);
+		assertEquals(Second, wait);
+		assertEquals(0, limiter.tryAcquire("5.6.7.8", 1, now));
+
+		assertEquals(0, limiter.tryAcquire("1.2.3.4", 1, now + wait));
+		assertTrue(limiter.tryAcquire("1.2.3.4", 1, now + wait) > 0);
+		assertEquals(7, limiter.getAllowed());
+		assertEquals(2, limiter.getLimited());
+	}
+
+	@Test
+	void weightedCostTest() {
+		var limiter = new RateLimiter("test", 10, 60, 16);
+		var now = System.nanoTime();
+		assertEquals(0, limiter.tryAcquire("1.2.3.4", 4, now));
+		assertEquals(0, limiter.tryAcquire("1.2.3.4", 4, now));
+		assertEquals(2 * Second, limiter.tryAcquire("1.2.3.4", 4, now));
+
+		// a cost above the burst waits for a full bucket
+		assertEquals(0, limiter.tryAcquire("5.6.7.8", 100, now));
+		assertEquals(10 * Second, limiter.tryAcquire("5.6.7.8", 100, now));
+		assertEquals(0, limiter.tryAcquire("5.6.7.8", 100, now + 10 * Second));
+	}
+
+	@Test
+	void boundedTableTest() {
+		var limiter = new RateLimiter("test", 2, 60, 2);
+		var now = System.nanoTime();
+		assertEquals(0, limiter.tryAcquire("a", 1, now));
+		assertEquals(0, limiter.tryAcquire("b", 2, now));
+		assertEquals(2, limiter.getKeyCount());
+
+		// the table is full, new clients share the overflow bucket
+		assertEquals(0, limiter.tryAcquire("c", 1, now));
+		assertEquals(0, limiter.tryAcquire("d", 1, now));
+		assertTrue(limiter.tryAcquire("e", 1, now) > 0);
+		assertEquals(2, limiter.getKeyCount());
+		assertEquals(3, limiter.getOverflowed());
+
+		// "a" is full again after a second, "b" after two
+		assertEquals(1, limiter.sweep(now + Second));
+		assertEquals(0, limiter.sweep(now + 2 * Second));
+		assertEquals(0, limiter.tryAcquire("e", 1, now + 2 * Second));
+		assertEquals(1, limiter.getKeyCount());
+		assertEquals(3, limiter.getOverflowed());
+	}
+}
@@ -0,0 +1,57 @@
+package org.izfsk.diary.server.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsyncStorageTest {
+	private static String read(AsyncStorage.Region region) throws Exception {
+		var buffer = AsyncStorage.read(region).get(10, TimeUnit.SECONDS);
+		assertFalse(region.channel().isOpen());
+		return StandardCharsets.UTF_8.decode(buffer).toString();
+	}
+
+	@Test
+	void treeTest(@TempDir Path rootDir) throws Exception {
+		var store = new FileTreeStore(rootDir);
+		var date = LocalDate.of(2001, 6, 1);
+		assertNull(store.open(date));
+
+		var spoolFile = store.createSpoolFile(date);
+		Files.writeString(spoolFile, "entry");
+		store.write(date, spoolFile);
+		var region = store.open(date);
+
+		// an opened entry is read as it was, even once replaced
+		spoolFile = store.createSpoolFile(date);
+		Files.writeString(spoolFile, "newer entry");
+		store.write(date, spoolFile);
+		assertEquals("entry", read(region));
+		assertEquals("newer entry", read(store.open(date)));
+	}
+
+	@Test
+	void segmentTest(@TempDir Path dir) throws Exception {
+		try (var store = new SegmentStore(dir, 1024 * 1024, 0.5)) {
+			var date = LocalDate.of(2001, 6, 1);
+			assertNull(store.open(date));
+			var spoolFile = store.createSpoolFile(date);
+			Files.writeString(spoolFile, "in a segment");
+			store.write(date, spoolFile);
+			assertEquals("in a segment", read(store.open(date)));
+		}
+	}
+
+	@Test
+	void emptyTest(@TempDir Path dir) throws Exception {
+		var path = Files.createFile(dir.resolve("empty"));
+		assertEquals("", read(AsyncStorage.openFile(path)));
+	}
+}
@@ -0,0 +1,153 @@
+package org.izfsk.diary.server.storage;
+
+import org.bouncycastle.util.io.Streams;
+import org.izfsk.diary.server.SignatureVerifier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.pgpainless.PGPainless;
+import org.pgpainless.algorithm.DocumentSignatureType;
+import org.pgpainless.encryption_signing.ProducerOptions;
+import org.pgpainless.encryption_signing.SigningOptions;
+import org.pgpainless.key.protection.SecretKeyRingProtector;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryArchiveTest {
+	private static final String Entry = "-----BEGIN PGP MESSAGE-----\n\nhQEMA\n-----END PGP MESSAGE-----\n";
+
+	private static void addTarFile(ByteArrayOutputStream outputStream, String name, String content) throws IOException {
+		var bytes = content.getBytes(StandardCharsets.US_ASCII);
+		EntryArchive.writeTarHeader(outputStream, name, bytes.length, 0);
+		outputStream.write(bytes);
+		EntryArchive.writeTarPadding(outputStream, bytes.length);
+	}
+
+	@Test
+	void tarTest() throws IOException {
+		var outputStream = new ByteArrayOutputStream();
+		addTarFile(outputStream, "2022/1/1/diary.asc", "first");
+		addTarFile(outputStream, "2022/1/2/diary.asc", "x".repeat(512));
+		EntryArchive.writeTarEnd(outputStream);
+		assertEquals(0, outputStream.size() % 512);
+
+		var reader = EntryArchive.openArchive(new ByteArrayInputStream(outputStream.toByteArray()));
+		assertEquals("2022/1/1/diary.asc", reader.nextEntry());
+		// the rest of an entry is skipped
+		assertEquals('f', reader.getContent().read());
+		assertEquals("2022/1/2/diary.asc", reader.nextEntry());
+		assertEquals("x".repeat(512), new String(reader.getContent().readAllBytes(), StandardCharsets.US_ASCII));
+		assertNull(reader.nextEntry());
+	}
+
+	@Test
+	void entryNameTest() {
+		assertEquals(LocalDate.of(2022, 11, 5), EntryArchive.parseEntryName("2022/11/5/diary.asc"));
+		assertEquals(LocalDate.of(2022, 11, 5), EntryArchive.parseEntryName("./2022/11/05/diary.asc"));
+		assertNull(EntryArchive.parseEntryName("2022/2/31/diary.asc"));
+		assertNull(EntryArchive.parseEntryName("../2022/11/5/diary.asc"));
+		assertEquals("2022/11/5/diary.asc", EntryArchive.toEntryName(LocalDate.of(2022, 11, 5)));
+	}
+
+	@Test
+	void importTarTest(@TempDir Path rootDir) throws IOException {
+		var diary = new Diary("", new FileTreeStore(rootDir));
+		var outputStream = new ByteArrayOutputStream();
+		addTarFile(outputStream, "2022/1/1/diary.asc", Entry);
+		addTarFile(outputStream, "2022/1/2/diary.asc", "not an entry");
+		addTarFile(outputStream, "README", Entry);
+		addTarFile(outputStream, "2022/1/3/diary.asc", Entry);
+		EntryArchive.writeTarEnd(outputStream);
+
+		var result = new EntryArchive.ImportResult();
+		EntryArchive.importArchive(diary, new ByteArrayInputStream(outputStream.toByteArray()), 1, result);
+		assertEquals(2, result.imported);
+		assertEquals(2, result.skipped);
+		assertTrue(diary.getIndex().contains(LocalDate.of(2022, 1, 3)));
+		assertFalse(diary.getIndex().contains(LocalDate.of(2022, 1, 2)));
+		assertEquals(Entry, Files.readString(rootDir.resolve("2022/1/1/diary.asc")));
+
+		// importing it again changes nothing
+		result = new EntryArchive.ImportResult();
+		EntryArchive.importArchive(diary, new ByteArrayInputStream(outputStream.toByteArray()), 64, result);
+		assertEquals(0, result.imported);
+		assertEquals(2, result.unchanged);
+	}
+
+	@Test
+	void importZipTest(@TempDir Path rootDir) throws IOException {
+		var diary = new Diary("", new FileTreeStore(rootDir));
+		var outputStream = new ByteArrayOutputStream();
+		try (var zipOutputStream = new ZipOutputStream(outputStream)) {
+			zipOutputStream.putNextEntry(new ZipEntry("2022/"));
+			zipOutputStream.putNextEntry(new ZipEntry("2022/3/4/diary.asc"));
+			zipOutputStream.write(Entry.getBytes(StandardCharsets.US_ASCII));
+		}
+
+		var result = new EntryArchive.ImportResult();
+		EntryArchive.importArchive(diary, new ByteArrayInputStream(outputStream.toByteArray()), 64, result);
+		assertEquals(1, result.imported);
+		assertEquals(Entry, Files.readString(rootDir.resolve("2022/3/4/diary.asc")));
+	}
+
+	@Test
+	void truncatedImportTest(@TempDir Path rootDir) throws IOException {
+		var diary = new Diary("", new FileTreeStore(rootDir));
+		var outputStream = new ByteArrayOutputStream();
+		addTarFile(outputStream, "2022/1/1/diary.asc", Entry);
+		addTarFile(outputStream, "2022/1/2/diary.asc", Entry);
+		var truncated = Arrays.copyOf(outputStream.toByteArray(), outputStream.size() - 512 + 10);
+
+		// the complete entries before the error are kept
+		var result = new EntryArchive.ImportResult();
+		assertThrows(EntryArchive.MalformedArchiveException.class,
+				() -> EntryArchive.importArchive(diary, new ByteArrayInputStream(truncated), 64, result));
+		assertEquals(1, result.imported);
+		assertTrue(diary.getIndex().contains(LocalDate.of(2022, 1, 1)));
+		assertFalse(diary.getIndex().contains(LocalDate.of(2022, 1, 2)));
+	}
+
+	@Test
+	void signedArchiveTest(@TempDir Path tempDir) throws Exception {
+		var secretKeyRing = PGPainless.generateKeyRing().modernKeyRing("test <test@example.com>", (String) null);
+		var verifier = new SignatureVerifier(PGPainless.extractCertificate(secretKeyRing));
+		var outputStream = new ByteArrayOutputStream();
+		addTarFile(outputStream, "2022/1/1/diary.asc", Entry);
+		EntryArchive.writeTarEnd(outputStream);
+		var archive = outputStream.toByteArray();
+
+		// a binary detached signature of the raw archive, like gpg --detach-sign
+		var signingStream = PGPainless.encryptAndOrSign()
+				.onOutputStream(new ByteArrayOutputStream())
+				.withOptions(ProducerOptions.sign(SigningOptions.get()
+						.addDetachedSignature(SecretKeyRingProtector.unprotectedKeys(), secretKeyRing, DocumentSignatureType.BINARY_DOCUMENT)));
+		Streams.pipeAll(new ByteArrayInputStream(archive), signingStream);
+		signingStream.close();
+		var signature = signingStream.getResult().getDetachedSignatures().values().iterator().next().iterator().next().getEncoded();
+
+		var archiveFile = tempDir.resolve("archive");
+		var verification = verifier.startVerification(signature);
+		EntryArchive.spoolArchive(new ByteArrayInputStream(archive), archiveFile, verification, archive.length);
+		assertTrue(verification.verify());
+		assertArrayEquals(archive, Files.readAllBytes(archiveFile));
+
+		// one byte changed
+		var tampered = archive.clone();
+		tampered[600] ^= 1;
+		verification = verifier.startVerification(signature);
+		EntryArchive.spoolArchive(new ByteArrayInputStream(tampered), archiveFile, verification, archive.length);
+		assertFalse(verification.verify());
+		assertThrows(EntryUpload.TooLargeException.class, () -> EntryArchive.spoolArchive(
+				new ByteArrayInputStream(archive), archiveFile, verifier.startVerification(signature), archive.length - 1));
+	}
+}
@@ -0,0 +1,56 @@
+package org.izfsk.diary.server.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryCacheTest {
+
+	@Test
+	void evictLeastRecentlyUsedTest() {
+		var cache = new EntryCache(10);
+		var a = LocalDate.of(2022, 11, 1);
+		var b = LocalDate.of(2022, 11, 2);
+		var c = LocalDate.of(2022, 11, 3);
+		cache.put("", a, new byte[4]);
+		cache.put("", b, new byte[4]);
+		assertNotNull(cache.get("", a));
+		cache.put("", c, new byte[4]);
+		assertNull(cache.get("other", a));
+
+		assertNull(cache.get("", b));
+		assertNotNull(cache.get("", a));
+		assertNotNull(cache.get("", c));
+		assertEquals(8, cache.getCurrentBytes());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(3, cache.getHits());
+		assertEquals(2, cache.getMisses());
+	}
+
+	@Test
+	void replaceAndInvalidateTest() {
+		var cache = new EntryCache(10);
+		var a = LocalDate.of(2022, 11, 1);
+		cache.put("", a, new byte[4]);
+		cache.put("", a, new byte[6]);
+		assertEquals(6, cache.getCurrentBytes());
+		cache.put("", LocalDate.of(2022, 11, 2), new byte[11]);
+		assertEquals(1, cache.getEntryCount());
+		cache.invalidate("", a);
+		assertEquals(0, cache.getCurrentBytes());
+		assertNull(cache.get("", a));
+	}
+
+	@Test
+	void peekTest() {
+		var cache = new EntryCache(10);
+		var a = LocalDate.of(2022, 11, 1);
+		cache.put("", a, new byte[4]);
+		assertNotNull(cache.peek("", a));
+		assertNull(cache.peek("", LocalDate.of(2022, 11, 2)));
+		assertEquals(0, cache.getHits());
+		assertEquals(0, cache.getMisses());
+	}
+}
@@ -0,0 +1,97 @@
+package org.izfsk.diary.server.storage;
+
+import org.izfsk.diary.server.Configure;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryChangesTest {
+	private static final LocalDate Day1 = LocalDate.of(2022, 1, 1);
+	private static final LocalDate Day2 = LocalDate.of(2022, 1, 2);
+	private static final LocalDate Day3 = LocalDate.of(2022, 1, 3);
+
+	@Test
+	void sinceTest(@TempDir Path dir) throws Exception {
+		try (var changes = new EntryChanges(dir)) {
+			assertEquals(0, changes.getLastSequence());
+			assertEquals(1, changes.record(Day1));
+			assertEquals(2, changes.record(Day2));
+			assertEquals(3, changes.record(Day1));
+			assertEquals(4, changes.record(Day3));
+
+			// one change per day, the latest
+			assertEquals(List.of(new EntryChanges.Change(2, Day2), new EntryChanges.Change(3, Day1), new EntryChanges.Change(4, Day3)),
+					changes.since(0, 4, 10));
+			assertEquals(List.of(new EntryChanges.Change(4, Day3)), changes.since(3, 4, 10));
+			assertEquals(List.of(new EntryChanges.Change(2, Day2)), changes.since(0, 4, 1));
+			assertEquals(List.of(new EntryChanges.Change(2, Day2)), changes.since(0, 2, 10));
+			assertTrue(changes.since(4, 4, 10).isEmpty());
+		}
+	}
+
+	@Test
+	void reopenTest(@TempDir Path dir) throws Exception {
+		try (var changes = new EntryChanges(dir)) {
+			changes.record(Day1);
+			changes.record(Day2);
+			changes.record(Day1);
+		}
+		// a clean close resumes after the last change
+		try (var changes = new EntryChanges(dir)) {
+			assertEquals(0, changes.recover(new EntryIndex()));
+			assertEquals(3, changes.getLastSequence());
+			assertEquals(List.of(new EntryChanges.Change(2, Day2), new EntryChanges.Change(3, Day1)), changes.since(0, 3, 10));
+			assertEquals(4, changes.record(Day3));
+		}
+	}
+
+	@Test
+	void crashTest(@TempDir Path dir) throws Exception {
+		var changes = new EntryChanges(dir);
+		changes.record(Day1);
+		changes.record(Day2);
+		// crash : no checkpoint, and half a record at the end of the log
+		Files.write(dir.resolve("changes/changes.log"), new byte[]{0, 0, 0}, StandardOpenOption.APPEND);
+
+		var index = new EntryIndex();
+		index.add(Day1);
+		index.add(Day2);
+		index.add(Day3);
+		try (var reopened = new EntryChanges(dir)) {
+			// numbers of the reserved block are never handed out again
+			assertEquals(Configure.ChangeSequenceBlock, reopened.getLastSequence());
+			// every day is recorded again, past what clients have seen
+			assertEquals(3, reopened.recover(index));
+			var page = reopened.since(2, reopened.getLastSequence(), 10);
+			assertEquals(List.of(Day1, Day2, Day3), page.stream().map(EntryChanges.Change::date).toList());
+			assertTrue(page.get(0).sequence() > Configure.ChangeSequenceBlock);
+			assertEquals(3, reopened.size());
+		}
+	}
+
+	@Test
+	void compactTest(@TempDir Path dir) throws Exception {
+		var logPath = dir.resolve("changes/changes.log");
+		try (var changes = new EntryChanges(dir)) {
+			for (int i = 0; i < 3 * Configure.ChangeSequenceBlock; i++) {
+				changes.record(i % 2 == 0 ? Day1 : Day2);
+			}
+			// rewritten once stale, only two days live
+			assertTrue(Files.size(logPath) <= 12L * (2 * 2 + Configure.ChangeSequenceBlock));
+			assertEquals(2, changes.since(0, changes.getLastSequence(), 10).size());
+			assertEquals(3 * Configure.ChangeSequenceBlock, changes.record(Day3) - 1);
+		}
+		try (var changes = new EntryChanges(dir)) {
+			assertEquals(3 * Configure.ChangeSequenceBlock + 1, changes.getLastSequence());
+			assertEquals(List.of(Day1, Day2, Day3), changes.since(0, changes.getLastSequence(), 10).stream()
+					.map(EntryChanges.Change::date).sorted().toList());
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.izfsk.diary.server.storage;
+
+import jakarta.servlet.ServletOutputStream;
+import jakarta.servlet.WriteListener;
+import org.izfsk.diary.server.Configure;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryEventsTest {
+	/**
+	 * Output that only accepts bytes while ready, like a non-blocking servlet output.
+	 */
+	private static final class FakeOutput extends ServletOutputStream {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		private boolean ready = true;
+
+		@Override
+		public boolean isReady() {
+			return ready;
+		}
+
+		@Override
+		public void setWriteListener(WriteListener writeListener) {
+		}
+
+		@Override
+		public void write(int b) {
+			assertTrue(ready);
+			bytes.write(b);
+		}
+
+		String take() {
+			var text = bytes.toString(StandardCharsets.UTF_8);
+			bytes.reset();
+			return text;
+		}
+	}
+
+	@Test
+	void eventTest() {
+		assertEquals("event: entry\ndata: {\"date\":\"2022/11/5\",\"version\":\"\\\"abc\\\"\"}\n\n",
+				new String(EntryEvents.toEvent(LocalDate.of(2022, 11, 5), "\"abc\""), StandardCharsets.UTF_8));
+	}
+
+	@Test
+	void coalesceTest() {
+		var output = new FakeOutput();
+		var subscriber = EntryEvents.getInstance().new Subscriber("", "", "", output);
+		subscriber.listen();
+		subscriber.drain();
+		assertEquals("retry: 5000\n\n", output.take());
+
+		// buffered while the client is slow, the latest version per date wins
+		output.ready = false;
+		subscriber.offer(LocalDate.of(2022, 1, 1), "\"a\"");
+		subscriber.offer(LocalDate.of(2022, 1, 2), "\"b\"");
+		subscriber.offer(LocalDate.of(2022, 1, 1), "\"c\"");
+		subscriber.drain();
+		output.ready = true;
+		subscriber.onWritePossible();
+		var text = output.take();
+		assertFalse(text.contains("\\\"a\\\""));
+		assertEquals(2, text.split("event: entry").length - 1);
+		assertTrue(text.indexOf("\\\"b\\\"") < text.indexOf("\\\"c\\\""));
+
+		// too many dates, the client is told to reset
+		output.ready = false;
+		for (int i = 0; i <= Configure.EventBufferEntries; i++) {
+			subscriber.offer(LocalDate.of(2022, 1, 1).plusDays(i), "\"d\"");
+		}
+		subscriber.offer(LocalDate.of(2023, 1, 1), "\"e\"");
+		output.ready = true;
+		subscriber.onWritePossible();
+		assertEquals("event: reset\ndata: \n\n", output.take());
+	}
+}
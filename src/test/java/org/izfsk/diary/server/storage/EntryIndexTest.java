@@ -0,0 +1,43 @@
+package org.izfsk.diary.server.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryIndexTest {
+
+	@Test
+	void rebuildTest(@TempDir Path rootDir) throws IOException {
+		Files.createDirectories(rootDir.resolve("2022/11/5"));
+		Files.writeString(rootDir.resolve("2022/11/5/diary.asc"), "entry");
+		Files.createDirectories(rootDir.resolve("2022/1/1"));
+		Files.writeString(rootDir.resolve("2022/1/1/diary.asc"), "entry");
+		Files.createDirectories(rootDir.resolve("2022/2/31"));
+		Files.writeString(rootDir.resolve("2022/2/31/diary.asc"), "entry");
+		Files.createDirectories(rootDir.resolve("2022/11/6"));
+
+		var index = new EntryIndex();
+		assertEquals(2, index.rebuild(new FileTreeStore(rootDir)));
+		assertTrue(index.contains(LocalDate.of(2022, 11, 5)));
+		assertFalse(index.contains(LocalDate.of(2022, 11, 6)));
+		assertFalse(index.contains(LocalDate.of(2023, 11, 5)));
+
+		index.add(LocalDate.of(2022, 12, 31));
+		var bitmap = index.getYearBitmap(2022);
+		assertEquals(EntryIndex.YearBitmapBytes, bitmap.length);
+		assertEquals(1, bitmap[0]);
+		assertEquals(1 << (364 % 8), bitmap[364 / 8]);
+
+		index.add(LocalDate.of(2024, 2, 29));
+		assertEquals(LocalDate.of(2022, 1, 1), index.nextDate(LocalDate.of(2001, 1, 1)));
+		assertEquals(LocalDate.of(2022, 11, 5), index.nextDate(LocalDate.of(2022, 1, 2)));
+		assertEquals(LocalDate.of(2024, 2, 29), index.nextDate(LocalDate.of(2023, 1, 1)));
+		assertNull(index.nextDate(LocalDate.of(2024, 3, 1)));
+	}
+}
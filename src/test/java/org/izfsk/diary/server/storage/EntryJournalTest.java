@@ -0,0 +1,74 @@
+package org.izfsk.diary.server.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryJournalTest {
+
+	private static Path spool(Path rootDir, LocalDate date, String content) throws Exception {
+		var entryDir = rootDir.resolve(date.getYear() + "/" + date.getMonthValue() + "/" + date.getDayOfMonth());
+		Files.createDirectories(entryDir);
+		var spoolFile = Files.createTempFile(entryDir, "diary.asc.", ".tmp");
+		Files.writeString(spoolFile, content);
+		return spoolFile;
+	}
+
+	@Test
+	void appendTest(@TempDir Path rootDir) throws Exception {
+		var diary = new Diary("", new FileTreeStore(rootDir));
+		var journal = new EntryJournal(rootDir, diary, EntryJournal.FsyncPolicy.BATCHED, 5, Long.MAX_VALUE);
+		var firstDate = LocalDate.of(2001, 3, 1);
+		var secondDate = LocalDate.of(2001, 3, 2);
+		var first = journal.append(firstDate, spool(rootDir, firstDate, "first"), "\"first\"");
+		var second = journal.append(secondDate, spool(rootDir, secondDate, "second"), "\"second\"");
+		CompletableFuture.allOf(first, second).get(10, TimeUnit.SECONDS);
+
+		// durable entries are visible at once
+		assertTrue(diary.getIndex().contains(firstDate));
+		assertArrayEquals("first".getBytes(), EntryCache.getInstance().get("", firstDate));
+		assertEquals("\"second\"", diary.getVersions().get(secondDate));
+		assertTrue(Files.size(EntryJournal.getJournalPath(rootDir)) > 0);
+
+		journal.close();
+		assertNull(journal.getUnmaterializedPath(firstDate));
+		assertEquals("second", Files.readString(rootDir.resolve("2001/3/2/diary.asc")));
+	}
+
+	@Test
+	void replayTest(@TempDir Path rootDir) throws Exception {
+		var journal = new EntryJournal(rootDir, new Diary("", new FileTreeStore(rootDir)), EntryJournal.FsyncPolicy.ALWAYS, 0, Long.MAX_VALUE);
+		var date = LocalDate.of(2001, 4, 1);
+		journal.append(date, spool(rootDir, date, "old"), "\"old\"").get(10, TimeUnit.SECONDS);
+		journal.append(date, spool(rootDir, date, "new"), "\"new\"").get(10, TimeUnit.SECONDS);
+		journal.close();
+
+		// simulate a crash : entry file lost, and a torn record at the tail
+		Files.delete(rootDir.resolve("2001/4/1/diary.asc"));
+		Files.write(EntryJournal.getJournalPath(rootDir), new byte[]{0, 0, 0, 42, 1, 2}, StandardOpenOption.APPEND);
+
+		var reopened = new EntryJournal(rootDir, new Diary("", new FileTreeStore(rootDir)), EntryJournal.FsyncPolicy.ALWAYS, 0, Long.MAX_VALUE);
+		assertEquals("new", Files.readString(rootDir.resolve("2001/4/1/diary.asc")));
+		assertEquals(0, Files.size(EntryJournal.getJournalPath(rootDir)));
+		reopened.close();
+	}
+
+	@Test
+	void checkpointTest(@TempDir Path rootDir) throws Exception {
+		var journal = new EntryJournal(rootDir, new Diary("", new FileTreeStore(rootDir)), EntryJournal.FsyncPolicy.NEVER, 0, 1);
+		var date = LocalDate.of(2001, 5, 1);
+		journal.append(date, spool(rootDir, date, "entry"), "\"entry\"").get(10, TimeUnit.SECONDS);
+		journal.close();
+
+		assertEquals(0, Files.size(EntryJournal.getJournalPath(rootDir)));
+		assertEquals("entry", Files.readString(rootDir.resolve("2001/5/1/diary.asc")));
+	}
+}
@@ -0,0 +1,82 @@
+package org.izfsk.diary.server.storage;
+
+import org.bouncycastle.openpgp.PGPSecretKeyRing;
+import org.bouncycastle.util.io.Streams;
+import org.izfsk.diary.server.SignatureVerifier;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.pgpainless.PGPainless;
+import org.pgpainless.algorithm.DocumentSignatureType;
+import org.pgpainless.encryption_signing.ProducerOptions;
+import org.pgpainless.encryption_signing.SigningOptions;
+import org.pgpainless.key.protection.SecretKeyRingProtector;
+import org.pgpainless.util.ArmorUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntryUploadTest {
+	private static PGPSecretKeyRing secretKeyRing;
+	private static SignatureVerifier verifier;
+
+	@BeforeAll
+	static void generateKey() throws Exception {
+		secretKeyRing = PGPainless.generateKeyRing().modernKeyRing("test <test@example.com>", (String) null);
+		verifier = new SignatureVerifier(PGPainless.extractCertificate(secretKeyRing));
+	}
+
+	// like the frontend : a text signature over btoa(data), where data has LF line endings
+	private static byte[] signLikeClient(String data) throws Exception {
+		var signingStream = PGPainless.encryptAndOrSign()
+				.onOutputStream(new ByteArrayOutputStream())
+				.withOptions(ProducerOptions.sign(SigningOptions.get().addDetachedSignature(
+						SecretKeyRingProtector.unprotectedKeys(), secretKeyRing, DocumentSignatureType.CANONICAL_TEXT_DOCUMENT)));
+		Streams.pipeAll(new ByteArrayInputStream(Base64.getEncoder().encode(data.getBytes(StandardCharsets.UTF_8))), signingStream);
+		signingStream.close();
+		var signature = signingStream.getResult().getDetachedSignatures().values().iterator().next().iterator().next();
+		return ArmorUtils.toAsciiArmoredString(signature).getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	void spoolAndVerifyCRLFTest(@TempDir Path tempDir) throws Exception {
+		// put a CRLF across the chunk boundary, and a lone CR
+		var builder = new StringBuilder("-----BEGIN PGP MESSAGE-----\n\n");
+		while (builder.length() < 8191) {
+			builder.append('A');
+		}
+		builder.append("\nBBBB\r\r\nCCCC\n-----END PGP MESSAGE-----\n");
+		var data = builder.toString();
+		var uploaded = data.replace("\n", "\r\n");
+		// what the previous, fully buffered implementation verified
+		var signature = signLikeClient(uploaded.replaceAll("\r\n", "\n"));
+
+		var tempFile = tempDir.resolve("diary.asc.tmp");
+		var digest = EntryVersions.newDigest();
+		assertTrue(EntryUpload.spoolAndVerify(
+				new ByteArrayInputStream(uploaded.getBytes(StandardCharsets.UTF_8)), tempFile,
+				verifier.startVerification(signature), digest, 1024 * 1024));
+		assertEquals(uploaded, Files.readString(tempFile));
+		// the validator is the one a later read computes from the stored entry
+		assertEquals(EntryVersions.etagOf(ByteBuffer.wrap(Files.readAllBytes(tempFile))), EntryVersions.toEtag(digest.digest()));
+
+		assertFalse(EntryUpload.spoolAndVerify(
+				new ByteArrayInputStream(("x" + uploaded).getBytes(StandardCharsets.UTF_8)), tempFile,
+				verifier.startVerification(signature), EntryVersions.newDigest(), 1024 * 1024));
+	}
+
+	@Test
+	void rejectTooLargeTest(@TempDir Path tempDir) throws Exception {
+		var signature = signLikeClient("data");
+		assertThrows(EntryUpload.TooLargeException.class, () -> EntryUpload.spoolAndVerify(
+				new ByteArrayInputStream(new byte[100]), tempDir.resolve("diary.asc.tmp"),
+				verifier.startVerification(signature), EntryVersions.newDigest(), 10));
+	}
+}
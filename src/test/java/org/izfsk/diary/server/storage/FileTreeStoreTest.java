@@ -0,0 +1,56 @@
+package org.izfsk.diary.server.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class FileTreeStoreTest {
+
+	@Test
+	void versionTest(@TempDir Path rootDir) throws Exception {
+		assumeTrue(Files.getFileStore(rootDir).supportsFileAttributeView(UserDefinedFileAttributeView.class));
+		var store = new FileTreeStore(rootDir);
+		var date = LocalDate.of(2001, 6, 1);
+		assertNull(store.readVersion(date));
+
+		// the version is renamed along with the entry
+		var spoolFile = store.createSpoolFile(date);
+		Files.writeString(spoolFile, "entry");
+		var etag = EntryVersions.etagOf(ByteBuffer.wrap("entry".getBytes()));
+		store.setSpoolVersion(spoolFile, etag);
+		store.write(date, spoolFile);
+		assertEquals(etag, store.readVersion(date));
+
+		// and replaced by an entry without version
+		spoolFile = store.createSpoolFile(date);
+		Files.writeString(spoolFile, "other");
+		store.write(date, spoolFile);
+		assertNull(store.readVersion(date));
+	}
+
+	@Test
+	void spoolTest(@TempDir Path rootDir) throws Exception {
+		var store = new FileTreeStore(rootDir);
+		var date = LocalDate.of(2001, 6, 2);
+
+		// nothing is created under the day dir until the entry is published
+		var spoolFile = store.createSpoolFile(date);
+		assertFalse(Files.exists(store.getEntryPath(date).getParent()));
+		Files.writeString(spoolFile, "entry");
+		store.write(date, spoolFile);
+		assertEquals("entry", Files.readString(store.getEntryPath(date)));
+
+		// an interrupted upload is removed when the store is opened again
+		var leftover = store.createSpoolFile(date);
+		new FileTreeStore(rootDir);
+		assertFalse(Files.exists(leftover));
+	}
+}
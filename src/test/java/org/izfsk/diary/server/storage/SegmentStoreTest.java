@@ -0,0 +1,76 @@
+package org.izfsk.diary.server.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SegmentStoreTest {
+
+	private static void write(SegmentStore store, LocalDate date, String content) throws Exception {
+		var spoolFile = store.createSpoolFile(date);
+		Files.writeString(spoolFile, content);
+		store.write(date, spoolFile);
+	}
+
+	private static String read(SegmentStore store, LocalDate date) throws Exception {
+		ByteBuffer buffer = store.read(date);
+		return buffer == null ? null : StandardCharsets.UTF_8.decode(buffer).toString();
+	}
+
+	@Test
+	void readWriteTest(@TempDir Path dir) throws Exception {
+		var first = LocalDate.of(2001, 1, 1);
+		var last = LocalDate.of(2100, 12, 31);
+		try (var store = new SegmentStore(dir, 1024, 0.5)) {
+			write(store, first, "first");
+			write(store, last, "last");
+			write(store, first, "first again");
+			assertEquals("first again", read(store, first));
+			assertEquals("last", read(store, last));
+			assertNull(read(store, LocalDate.of(2022, 1, 1)));
+			assertThrows(IllegalArgumentException.class, () -> store.read(LocalDate.of(2000, 12, 31)));
+
+			var dates = new ArrayList<LocalDate>();
+			store.forEachDate(dates::add);
+			assertEquals(2, dates.size());
+		}
+
+		// reopen, torn tail and lost index
+		Files.write(dir.resolve("00000001.seg"), new byte[]{0, 0, 1, 0, 7}, StandardOpenOption.APPEND);
+		Files.delete(dir.resolve("entries.idx"));
+		try (var store = new SegmentStore(dir, 1024, 0.5)) {
+			assertEquals("first again", read(store, first));
+			assertEquals("last", read(store, last));
+		}
+	}
+
+	@Test
+	void compactTest(@TempDir Path dir) throws Exception {
+		var date = LocalDate.of(2022, 11, 5);
+		var other = LocalDate.of(2022, 11, 6);
+		try (var store = new SegmentStore(dir, 256, 0.5)) {
+			write(store, other, "kept");
+			// each overwrite fills a segment, leaving the previous ones mostly dead
+			for (int i = 0; i < 8; i++) {
+				write(store, date, String.valueOf(i).repeat(200));
+			}
+			var before = store.getSegmentBytes();
+			assertTrue(store.compact() > 0);
+			assertTrue(store.getSegmentBytes() < before);
+			assertEquals("7".repeat(200), read(store, date));
+			assertEquals("kept", read(store, other));
+		}
+		try (var store = new SegmentStore(dir, 256, 0.5)) {
+			assertEquals("kept", read(store, other));
+		}
+	}
+}
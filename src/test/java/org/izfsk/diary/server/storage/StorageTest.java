@@ -0,0 +1,146 @@
+package org.izfsk.diary.server.storage;
+
+import io.javalin.Javalin;
+import org.izfsk.diary.server.Configure;
+import org.izfsk.diary.server.utils.StringUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StorageTest {
+	private static void save(Diary diary, LocalDate date, String entry) throws Exception {
+		var bytes = entry.getBytes(StandardCharsets.UTF_8);
+		var spoolFile = Storage.createTempEntryFile(diary, date);
+		Files.write(spoolFile, bytes);
+		new SaveFileTask(diary, date, spoolFile, EntryVersions.etagOf(ByteBuffer.wrap(bytes))).run();
+	}
+
+	@Test
+	void conditionalGetTest(@TempDir Path rootDir) throws Exception {
+		var date = LocalDate.of(2003, 3, 4);
+		var missingDate = LocalDate.of(2003, 3, 5);
+		try (var diary = new Diary("", new FileTreeStore(rootDir))) {
+			var application = Javalin.create()
+					.get("/data/<date>", context -> Storage.sendEntryIfChanged(context, diary,
+							StringUtils.parseDate(context.pathParam("date"))))
+					.start("127.0.0.1", 0);
+			try {
+				var httpClient = HttpClient.newHttpClient();
+				var uri = URI.create("http://127.0.0.1:" + application.port() + "/data/" + StringUtils.formatDate(date));
+				save(diary, date, "first");
+
+				// the entry carries its version
+				var response = httpClient.send(HttpRequest.newBuilder(uri).build(), HttpResponse.BodyHandlers.ofString());
+				assertEquals(200, response.statusCode());
+				assertEquals("first", response.body());
+				var etag = response.headers().firstValue("ETag").orElseThrow();
+				assertEquals(EntryVersions.etagOf(ByteBuffer.wrap("first".getBytes(StandardCharsets.UTF_8))), etag);
+
+				// a listed, weak or wildcard match is not modified
+				for (var ifNoneMatch : new String[]{etag, "\"other\", " + etag, "W/" + etag, "*"}) {
+					response = httpClient.send(HttpRequest.newBuilder(uri).header("If-None-Match", ifNoneMatch).build(),
+							HttpResponse.BodyHandlers.ofString());
+					assertEquals(304, response.statusCode(), ifNoneMatch);
+					assertEquals(etag, response.headers().firstValue("ETag").orElseThrow());
+				}
+				// part of the version is not a match
+				response = httpClient.send(HttpRequest.newBuilder(uri)
+								.header("If-None-Match", etag.substring(0, etag.length() - 2) + "\"").build(),
+						HttpResponse.BodyHandlers.ofString());
+				assertEquals(200, response.statusCode());
+
+				// a save changes the version
+				save(diary, date, "second");
+				response = httpClient.send(HttpRequest.newBuilder(uri).header("If-None-Match", etag).build(),
+						HttpResponse.BodyHandlers.ofString());
+				assertEquals(200, response.statusCode());
+				assertEquals("second", response.body());
+				assertNotEquals(etag, response.headers().firstValue("ETag").orElseThrow());
+
+				// the wildcard needs an entry
+				response = httpClient.send(HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + application.port() +
+								"/data/" + StringUtils.formatDate(missingDate))).header("If-None-Match", "*").build(),
+						HttpResponse.BodyHandlers.ofString());
+				assertEquals(200, response.statusCode());
+				assertEquals("null", response.body());
+			} finally {
+				application.stop();
+			}
+		}
+	}
+
+	@Test
+	void elisionTest(@TempDir Path rootDir) throws Exception {
+		var date = LocalDate.of(2003, 3, 6);
+		var first = EntryVersions.etagOf(ByteBuffer.wrap("first".getBytes(StandardCharsets.UTF_8)));
+		var second = EntryVersions.etagOf(ByteBuffer.wrap("second".getBytes(StandardCharsets.UTF_8)));
+		try (var diary = new Diary("", new FileTreeStore(rootDir))) {
+			assertFalse(Storage.isEntryUnchanged(diary, date, first));
+			save(diary, date, "first");
+			assertTrue(Storage.isEntryUnchanged(diary, date, first));
+			assertFalse(Storage.isEntryUnchanged(diary, date, second));
+
+			// a queued journal append of the day will replace the entry, a repeat of the entry is written again
+			var journal = new EntryJournal(rootDir, diary, EntryJournal.FsyncPolicy.BATCHED, 1000, Long.MAX_VALUE);
+			diary.setJournal(journal);
+			var spoolFile = Storage.createTempEntryFile(diary, date);
+			Files.writeString(spoolFile, "second");
+			var durable = journal.append(date, spoolFile, second);
+			assertFalse(Storage.isEntryUnchanged(diary, date, first));
+			durable.get(10, TimeUnit.SECONDS);
+			// materialized in the background
+			var deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+			while (journal.hasPendingSave(date) && System.nanoTime() < deadline) {
+				Thread.sleep(10);
+			}
+			assertTrue(Storage.isEntryUnchanged(diary, date, second));
+		}
+	}
+
+	@Test
+	void sendEntryAsyncTest(@TempDir Path rootDir) throws Exception {
+		var small = LocalDate.of(2003, 3, 7);
+		var large = LocalDate.of(2003, 3, 8);
+		var largeEntry = "x".repeat((int) Configure.ZeroCopyThresholdBytes + 1);
+		try (var diary = new Diary("", new FileTreeStore(rootDir))) {
+			var application = Javalin.create()
+					.get("/data/<date>", context -> {
+						var date = StringUtils.parseDate(context.pathParam("date"));
+						context.future(() -> Storage.sendEntryAsync(context, diary, date));
+					})
+					.start("127.0.0.1", 0);
+			try {
+				var httpClient = HttpClient.newHttpClient();
+				save(diary, small, "small");
+				save(diary, large, largeEntry);
+
+				// a small entry is read into the heap and cached, a large one is memory-mapped and never cached
+				for (var date : new LocalDate[]{small, large}) {
+					var entry = date.equals(small) ? "small" : largeEntry;
+					var response = httpClient.send(HttpRequest.newBuilder(URI.create("http://127.0.0.1:" +
+							application.port() + "/data/" + StringUtils.formatDate(date))).build(), HttpResponse.BodyHandlers.ofString());
+					assertEquals(200, response.statusCode());
+					assertEquals(entry, response.body());
+					assertEquals(EntryVersions.etagOf(ByteBuffer.wrap(entry.getBytes(StandardCharsets.UTF_8))),
+							response.headers().firstValue("ETag").orElseThrow());
+				}
+				assertNotNull(EntryCache.getInstance().get("", small));
+				assertNull(EntryCache.getInstance().get("", large));
+			} finally {
+				application.stop();
+			}
+		}
+	}
+}
@@ -2,7 +2,12 @@ package org.izfsk.diary.server.utils;
 
 import org.junit.jupiter.api.Test;
 
-import static org.izfsk.diary.server.utils.StringUtils.getRandomString;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+
+import static org.izfsk.diary.server.utils.StringUtils.*;
 import static org.junit.jupiter.api.Assertions.*;
 
 class StringUtilsTest {
@@ -13,4 +18,37 @@ class StringUtilsTest {
 		var b=getRandomString(32);
 		assertNotEquals(a,b);
 	}
-}
\ No newline at end of file
+
+	@Test
+	void parseDateTest() {
+		assertEquals(LocalDate.of(2022, 11, 5), parseDate("2022/11/05"));
+		assertEquals("2022/11/5", formatDate(parseDate("2022/11/5")));
+		assertNull(parseDate("2022/2/31"));
+		assertNull(parseDate("1999/1/1"));
+		assertNull(parseDate("2022-11-05"));
+	}
+
+	@Test
+	void matchesIfNoneMatchTest() {
+		assertTrue(matchesIfNoneMatch("\"a\"", "\"a\""));
+		assertTrue(matchesIfNoneMatch("\"b\", W/\"a\"", "\"a\""));
+		assertTrue(matchesIfNoneMatch("*", "\"a\""));
+		assertTrue(matchesIfNoneMatch("*", null));
+		assertFalse(matchesIfNoneMatch("\"ab\"", "\"a\""));
+		assertFalse(matchesIfNoneMatch("\"a\"\"b\"", "\"a\""));
+		assertFalse(matchesIfNoneMatch("\"a\"", null));
+		assertFalse(matchesIfNoneMatch(null, "\"a\""));
+	}
+
+	@Test
+	void writeJsonStringTest() throws Exception {
+		var output = new ByteArrayOutputStream();
+		writeJsonString(output, ByteBuffer.wrap("a\"b\\c\r\nd\t\u0001\u00e9".getBytes(StandardCharsets.UTF_8)));
+		assertEquals("\"a\\\"b\\\\c\\r\\nd\\t\\u0001\u00e9\"", output.toString(StandardCharsets.UTF_8));
+
+		// long values are written in several chunks
+		output.reset();
+		writeJsonString(output, "\"".repeat(10000));
+		assertEquals("\"" + "\\\"".repeat(10000) + "\"", output.toString(StandardCharsets.UTF_8));
+	}
+}